@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.timeseries.impl.influxdb.DeflaterPool;
+import org.opennms.timeseries.impl.influxdb.LineProtocolBuffer;
+import org.opennms.timeseries.impl.influxdb.LineProtocolEncoder;
+import org.opennms.timeseries.impl.influxdb.LineProtocolRequestBody;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import okio.Buffer;
+
+/**
+ * The gzip compression of the request bodies of the opennms write strategy. compress() compresses line protocol
+ * which was already encoded, like a replayed spool batch, encodeAndCompress() is the whole body of a regular write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int batchSize;
+
+    @Param({"2", "6", "12"})
+    public int tagCount;
+
+    @Param({"1", "6"})
+    public int compressionLevel;
+
+    private List<Sample> samples;
+    private LineProtocolEncoder encoder;
+    private DeflaterPool deflaters;
+    private byte[] encoded;
+    private int lines;
+    private final Buffer sink = new Buffer();
+
+    @Setup
+    public void setUp() {
+        samples = Samples.create(batchSize, tagCount);
+        encoder = new LineProtocolEncoder();
+        deflaters = new DeflaterPool(compressionLevel, 1);
+        final LineProtocolBuffer buffer = encoder.encode(samples);
+        encoded = buffer.toByteArray();
+        lines = buffer.lines();
+    }
+
+    @TearDown
+    public void tearDown() {
+        deflaters.close();
+    }
+
+    @Benchmark
+    public long compress() throws IOException {
+        return write(new LineProtocolRequestBody(encoded, lines, deflaters));
+    }
+
+    @Benchmark
+    public long encodeAndCompress() throws IOException {
+        return write(new LineProtocolRequestBody(samples, encoder, deflaters));
+    }
+
+    private long write(final LineProtocolRequestBody body) throws IOException {
+        body.writeTo(sink);
+        final long size = sink.size();
+        sink.clear();
+        return size;
+    }
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for InfluxDB which implements just enough of /api/v2/write and /api/v2/query for the load
+ * test. Writes are counted and dropped, queries are answered with a generated series. Latency, errors and slow reads
+ * can be injected. A write retried after a timeout or replayed from the spool carries the same body again, InfluxDB
+ * would overwrite the points. The samples of such a body are only counted as distinct the first time, bodies are
+ * recognized by a hash of their content.
+ */
+final class InfluxdbStandIn implements AutoCloseable {
+
+    private static final Pattern NAME = Pattern.compile("r\\[\\\\?\"intrinsic_name\\\\?\"\\]\\s*==\\s*\\\\?\"([^\"\\\\]*)");
+    private static final Pattern RESOURCE_ID = Pattern.compile("r\\[\\\\?\"intrinsic_resourceId\\\\?\"\\]\\s*==\\s*\\\\?\"([^\"\\\\]*)");
+    private static final int ROWS_PER_CHUNK = 64;
+
+    static {
+        // the JDK server closes the connections beyond 200 idle ones, InfluxDB keeps them. Must be set before the
+        // server is loaded.
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+        }
+    }
+
+    /** The faults to inject. */
+    static final class Faults {
+        long latencyInMs;
+        double errorRate;
+        int errorStatus = 503;
+        long slowReadDelayInMs;
+        int queryRows = 288;
+    }
+
+    private final Faults faults;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong samplesReceived = new AtomicLong();
+    private final AtomicLong distinctSamplesReceived = new AtomicLong();
+    private final Set<HashCode> bodiesReceived = ConcurrentHashMap.newKeySet();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong rejectedWrites = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+
+    InfluxdbStandIn(final Faults faults, final int threads) throws IOException {
+        this.faults = faults;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-stand-in-%d")
+                .setDaemon(true)
+                .build());
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/api/v2/write", this::write);
+        server.createContext("/api/v2/query", this::query);
+        server.createContext("/ping", exchange -> respond(exchange, 204, null));
+        server.createContext("/health", exchange -> respond(exchange, 200, "{\"status\":\"pass\"}"));
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** The samples received, each time they were received. */
+    long getSamplesReceived() {
+        return samplesReceived.get();
+    }
+
+    /** The samples received, the ones of a body received again aren't counted again. */
+    long getDistinctSamplesReceived() {
+        return distinctSamplesReceived.get();
+    }
+
+    long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    long getWrites() {
+        return writes.get();
+    }
+
+    long getRejectedWrites() {
+        return rejectedWrites.get();
+    }
+
+    long getQueries() {
+        return queries.get();
+    }
+
+    private void write(final HttpExchange exchange) throws IOException {
+        final byte[] body = readBody(exchange);
+        writes.incrementAndGet();
+        sleep(faults.latencyInMs);
+        if (shouldFail()) {
+            rejectedWrites.incrementAndGet();
+            respond(exchange, faults.errorStatus, "{\"code\":\"unavailable\",\"message\":\"injected failure\"}");
+            return;
+        }
+        int lines = 0;
+        for (byte b : body) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        if (body.length > 0 && body[body.length - 1] != '\n') {
+            lines++;
+        }
+        samplesReceived.addAndGet(lines);
+        if (bodiesReceived.add(Hashing.murmur3_128().hashBytes(body))) {
+            distinctSamplesReceived.addAndGet(lines);
+        }
+        bytesReceived.addAndGet(body.length);
+        respond(exchange, 204, null);
+    }
+
+    /**
+     * Answers with a single series of queryRows samples, named after the series the query asks for. The rows are
+     * streamed in chunks, slowReadDelayInMs apart. Queries which ask for annotations, like the ones of findMetrics(),
+     * get an empty result.
+     */
+    private void query(final HttpExchange exchange) throws IOException {
+        final String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+        queries.incrementAndGet();
+        sleep(faults.latencyInMs);
+        if (shouldFail()) {
+            respond(exchange, faults.errorStatus, "{\"code\":\"unavailable\",\"message\":\"injected failure\"}");
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", "text/csv; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (body.contains("datatype")) {
+                out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            final String name = find(NAME, body);
+            final String resourceId = find(RESOURCE_ID, body);
+            final long start = System.currentTimeMillis() - faults.queryRows * 300_000L;
+            final StringBuilder chunk = new StringBuilder(",result,table,_time,_value,intrinsic_name,intrinsic_resourceId\r\n");
+            for (int i = 0; i < faults.queryRows; i++) {
+                chunk.append(",_result,0,").append(Instant.ofEpochMilli(start + i * 300_000L)).append(',')
+                        .append(i * 1.5).append(',').append(name).append(',').append(resourceId).append("\r\n");
+                if ((i + 1) % ROWS_PER_CHUNK == 0) {
+                    out.write(chunk.toString().getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    chunk.setLength(0);
+                    sleep(faults.slowReadDelayInMs);
+                }
+            }
+            out.write(chunk.append("\r\n").toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private boolean shouldFail() {
+        return faults.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < faults.errorRate;
+    }
+
+    private static String find(final Pattern pattern, final String query) {
+        final Matcher matcher = pattern.matcher(query);
+        return matcher.find() ? matcher.group(1) : "unknown";
+    }
+
+    private static byte[] readBody(final HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        try (InputStream body = in) {
+            return body.readAllBytes();
+        }
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String json) throws IOException {
+        if (json == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void sleep(final long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
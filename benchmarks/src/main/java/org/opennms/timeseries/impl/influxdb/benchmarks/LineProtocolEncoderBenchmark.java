@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.timeseries.impl.influxdb.LineProtocolBuffer;
+import org.opennms.timeseries.impl.influxdb.LineProtocolEncoder;
+import org.opennms.timeseries.impl.influxdb.SeriesKeyCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The conversion of the samples passed to InfluxdbStorage.store() into line protocol. encode() is what the opennms
+ * write strategy does for every batch, encodeToString() is what the nonblocking and blocking strategies hand to the
+ * write api of the client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineProtocolEncoderBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int batchSize;
+
+    @Param({"2", "6", "12"})
+    public int tagCount;
+
+    @Param({"true", "false"})
+    public boolean seriesKeyCache;
+
+    private List<Sample> samples;
+    private LineProtocolEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        samples = Samples.create(batchSize, tagCount);
+        encoder = new LineProtocolEncoder(seriesKeyCache ? new SeriesKeyCache(batchSize * 2L) : null);
+        // fill the cache, the series are stored over and over again
+        encoder.encode(samples);
+    }
+
+    @Benchmark
+    public LineProtocolBuffer encode() {
+        return encoder.encode(samples);
+    }
+
+    @Benchmark
+    public String encodeToString() {
+        return encoder.encodeToString(samples);
+    }
+}
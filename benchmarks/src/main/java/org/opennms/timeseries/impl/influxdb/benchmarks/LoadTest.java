@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.timeseries.impl.influxdb.InfluxdbConfig;
+import org.opennms.timeseries.impl.influxdb.InfluxdbStorage;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+
+/**
+ * Runs InfluxdbStorage with each write strategy against an {@link InfluxdbStandIn} and reports the sustained
+ * throughput, the latency of store() and getTimeseries(), the memory use and the samples lost. No InfluxDB or Docker
+ * is needed. Received counts the distinct samples, the ones written again after a timeout or replayed from the spool
+ * are counted once, resent shows how many were received again.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.opennms.timeseries.impl.influxdb.benchmarks.LoadTest \
+ *     --strategies opennms,nonblocking --durationInS 30 --latencyInMs 5 --errorRate 0.01 --errorStatus 429
+ * </pre>
+ * Options, with their defaults:
+ * <ul>
+ *     <li>strategies (opennms,nonblocking,blocking): the write strategies to compare</li>
+ *     <li>durationInS (30): how long the samples are stored</li>
+ *     <li>writers (8): the threads calling store(), like the collector threads of OpenNMS</li>
+ *     <li>batchSize (100): the samples per store() call</li>
+ *     <li>rate (0): the samples per second offered by all writers together, 0 is as fast as possible</li>
+ *     <li>series (10000), tagCount (4): the series the samples belong to</li>
+ *     <li>serverThreads (128), latencyInMs (0), errorRate (0), errorStatus (503): the stand-in and its faults</li>
+ *     <li>readers (2), readDurationInS (10), queryRows (288), slowReadDelayInMs (0): the getTimeseries() phase</li>
+ *     <li>drainTimeoutInS (30): how long to wait for the samples in flight before they count as lost</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    private final Map<String, String> options;
+
+    private LoadTest(final Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option instead of " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        final LoadTest loadTest = new LoadTest(options);
+        final List<Result> results = new ArrayList<>();
+        for (String strategy : loadTest.getString("strategies", "opennms,nonblocking,blocking").split(",")) {
+            results.add(loadTest.run(InfluxdbConfig.WriteStrategy.valueOf(strategy.trim())));
+        }
+        System.out.println();
+        System.out.println(Result.HEADER);
+        results.forEach(System.out::println);
+    }
+
+    private Result run(final InfluxdbConfig.WriteStrategy strategy) throws Exception {
+        final InfluxdbStandIn.Faults faults = new InfluxdbStandIn.Faults();
+        faults.latencyInMs = getLong("latencyInMs", 0);
+        faults.errorRate = Double.parseDouble(getString("errorRate", "0"));
+        faults.errorStatus = (int) getLong("errorStatus", 503);
+        faults.slowReadDelayInMs = getLong("slowReadDelayInMs", 0);
+        faults.queryRows = (int) getLong("queryRows", 288);
+
+        final int tagCount = (int) getLong("tagCount", 4);
+        final Metric[] series = new Metric[(int) getLong("series", 10000)];
+        for (int i = 0; i < series.length; i++) {
+            series[i] = Samples.createMetric(i, tagCount);
+        }
+
+        System.gc();
+        final MemorySampler memory = new MemorySampler();
+        final Result result = new Result(strategy);
+        try (InfluxdbStandIn standIn = new InfluxdbStandIn(faults, (int) getLong("serverThreads", 128))) {
+            final InfluxdbStorage storage = new InfluxdbStorage(InfluxdbConfig.builder()
+                    .url(standIn.getUrl())
+                    .token("load-test")
+                    .writeStrategy(strategy)
+                    .build());
+            System.out.printf("%s: storing samples for %ds against %s%n", strategy, getLong("durationInS", 30), standIn.getUrl());
+            memory.start();
+            final long start = System.nanoTime();
+            runWriters(storage, series, result);
+            final long offeredAt = System.nanoTime();
+            // the samples in flight are no loss, wait until the stand-in doesn't receive any more of them
+            final long drainDeadline = offeredAt + TimeUnit.SECONDS.toNanos(getLong("drainTimeoutInS", 30));
+            long received = -1;
+            while (standIn.getDistinctSamplesReceived() < result.offered.get() && standIn.getSamplesReceived() != received
+                    && System.nanoTime() < drainDeadline) {
+                received = standIn.getSamplesReceived();
+                TimeUnit.SECONDS.sleep(1);
+            }
+            result.writeDurationInNanos = System.nanoTime() - start;
+            result.received = standIn.getDistinctSamplesReceived();
+            result.resent = standIn.getSamplesReceived() - result.received;
+            result.rejectedWrites = standIn.getRejectedWrites();
+
+            runReaders(storage, series, result);
+            storage.destroy();
+            memory.stop();
+        }
+        result.peakHeapInBytes = memory.peakHeapInBytes;
+        result.gcTimeInMs = memory.getGcTimeInMs();
+        System.out.println(Result.HEADER);
+        System.out.println(result);
+        return result;
+    }
+
+    private void runWriters(final InfluxdbStorage storage, final Metric[] series, final Result result) throws InterruptedException {
+        final int writers = (int) getLong("writers", 8);
+        final int batchSize = (int) getLong("batchSize", 100);
+        final long rate = getLong("rate", 0);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(getLong("durationInS", 30));
+        // the interval between the batches of a writer to reach the rate
+        final long intervalInNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * batchSize * writers / rate : 0;
+        final List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            final Thread thread = new Thread(() -> {
+                int next = writer * (series.length / writers);
+                long due = System.nanoTime();
+                while (System.nanoTime() < deadline) {
+                    final List<Sample> samples = new ArrayList<>(batchSize);
+                    final Instant now = Instant.now();
+                    for (int i = 0; i < batchSize; i++) {
+                        samples.add(ImmutableSample.builder()
+                                .metric(series[next++ % series.length])
+                                .time(now)
+                                .value(ThreadLocalRandom.current().nextDouble())
+                                .build());
+                    }
+                    final long start = System.nanoTime();
+                    try {
+                        storage.store(samples);
+                    } catch (StorageException | RuntimeException e) {
+                        result.storeErrors.incrementAndGet();
+                    }
+                    result.storeLatency.update(System.nanoTime() - start);
+                    result.offered.addAndGet(samples.size());
+                    if (intervalInNanos > 0) {
+                        due += intervalInNanos;
+                        final long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            }, "load-test-writer-" + w);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void runReaders(final InfluxdbStorage storage, final Metric[] series, final Result result) throws InterruptedException {
+        final int readers = (int) getLong("readers", 2);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(getLong("readDurationInS", 10));
+        final List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            final Thread thread = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    final Instant end = Instant.now();
+                    final long start = System.nanoTime();
+                    try {
+                        storage.getTimeseries(request(series[ThreadLocalRandom.current().nextInt(series.length)], end));
+                        result.readLatency.update(System.nanoTime() - start);
+                    } catch (Exception e) {
+                        result.readErrors.incrementAndGet();
+                    }
+                }
+            }, "load-test-reader-" + r);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static TimeSeriesFetchRequest request(final Metric metric, final Instant end) {
+        return new TimeSeriesFetchRequest() {
+            @Override
+            public Metric getMetric() {
+                return metric;
+            }
+
+            @Override
+            public Instant getStart() {
+                return end.minus(Duration.ofDays(1));
+            }
+
+            @Override
+            public Instant getEnd() {
+                return end;
+            }
+
+            @Override
+            public Duration getStep() {
+                return Duration.ofMinutes(5);
+            }
+
+            @Override
+            public Aggregation getAggregation() {
+                return Aggregation.AVERAGE;
+            }
+        };
+    }
+
+    private String getString(final String name, final String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private long getLong(final String name, final long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    /** Samples the used heap every 100ms and tracks the time spent in garbage collection. */
+    private static final class MemorySampler {
+        private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        private final long gcTimeAtStart = getGcTime();
+        private volatile boolean running;
+        private volatile long peakHeapInBytes;
+        private long gcTimeAtStop;
+        private Thread thread;
+
+        private void start() {
+            running = true;
+            thread = new Thread(() -> {
+                while (running) {
+                    peakHeapInBytes = Math.max(peakHeapInBytes, memoryBean.getHeapMemoryUsage().getUsed());
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+            }, "load-test-memory");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            gcTimeAtStop = getGcTime();
+        }
+
+        private long getGcTimeInMs() {
+            return gcTimeAtStop - gcTimeAtStart;
+        }
+
+        private static long getGcTime() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                    .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+                    .filter(t -> t > 0)
+                    .sum();
+        }
+    }
+
+    private static final class Result {
+        private static final String HEADER = String.format(Locale.ROOT, "%-12s %12s %12s %10s %10s %10s %10s %10s %10s %10s %10s %10s %10s",
+                "strategy", "offered", "received", "lost", "resent", "samples/s", "storeP50ms", "storeP99ms", "readP50ms", "readP99ms",
+                "rejected", "peakHeapMB", "gcMs");
+
+        private final InfluxdbConfig.WriteStrategy strategy;
+        private final AtomicLong offered = new AtomicLong();
+        private final AtomicLong storeErrors = new AtomicLong();
+        private final AtomicLong readErrors = new AtomicLong();
+        private final Histogram storeLatency = new Histogram(new UniformReservoir(100_000));
+        private final Histogram readLatency = new Histogram(new UniformReservoir(100_000));
+        private long writeDurationInNanos;
+        private long received;
+        private long resent;
+        private long rejectedWrites;
+        private long peakHeapInBytes;
+        private long gcTimeInMs;
+
+        private Result(final InfluxdbConfig.WriteStrategy strategy) {
+            this.strategy = strategy;
+        }
+
+        @Override
+        public String toString() {
+            final Snapshot store = storeLatency.getSnapshot();
+            final Snapshot read = readLatency.getSnapshot();
+            final String row = String.format(Locale.ROOT, "%-12s %12d %12d %10d %10d %10.0f %10.2f %10.2f %10.2f %10.2f %10d %10d %10d",
+                    strategy, offered.get(), received, offered.get() - received, resent,
+                    received / (writeDurationInNanos / 1e9),
+                    store.getMedian() / 1e6, store.get99thPercentile() / 1e6,
+                    read.getMedian() / 1e6, read.get99thPercentile() / 1e6,
+                    rejectedWrites, peakHeapInBytes / (1024 * 1024), gcTimeInMs);
+            if (storeErrors.get() == 0 && readErrors.get() == 0) {
+                return row;
+            }
+            return row + String.format(Locale.ROOT, "   (store() failed %d times, getTimeseries() failed %d times)", storeErrors.get(), readErrors.get());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.timeseries.impl.influxdb.MetricFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Turning the columns of a query result into Metrics. createMetric() returns the interned Metric, which is what
+ * findMetrics() and getTimeseries() do, buildMetric() builds a new one every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricFactoryBenchmark {
+
+    private static final int SERIES = 1000;
+
+    @Param({"2", "6", "12"})
+    public int tagCount;
+
+    private List<Map<String, Object>> columns;
+    private MetricFactory metricFactory;
+
+    @Setup
+    public void setUp() {
+        columns = new ArrayList<>(SERIES);
+        for (int i = 0; i < SERIES; i++) {
+            columns.add(Samples.createColumns(i, tagCount));
+        }
+        metricFactory = new MetricFactory(SERIES * 2L);
+        columns.forEach(metricFactory::createMetric);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERIES)
+    public void createMetric(final Blackhole blackhole) {
+        for (Map<String, Object> c : columns) {
+            blackhole.consume(metricFactory.createMetric(c));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SERIES)
+    public void buildMetric(final Blackhole blackhole) {
+        for (Map<String, Object> c : columns) {
+            blackhole.consume(metricFactory.buildMetric(c));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.benchmarks;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+/**
+ * Creates the samples the benchmarks work on. They look like the samples of the SNMP collector: every sample belongs
+ * to another series, the series carry the two intrinsic tags and tagCount - 2 meta tags.
+ */
+final class Samples {
+
+    static final long START = Instant.parse("2021-06-01T00:00:00Z").toEpochMilli();
+
+    private Samples() {
+    }
+
+    static List<Sample> create(final int batchSize, final int tagCount) {
+        final List<Sample> samples = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(createMetric(i, tagCount))
+                    .time(Instant.ofEpochMilli(START + i * 300_000L))
+                    .value(i * 1.5 + 0.25)
+                    .build());
+        }
+        return samples;
+    }
+
+    static Metric createMetric(final int series, final int tagCount) {
+        final ImmutableMetric.MetricBuilder builder = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId(series))
+                .intrinsicTag(IntrinsicTagNames.name, name(series));
+        for (int t = 2; t < tagCount; t++) {
+            builder.metaTag("tag" + t, "value " + t + " of node " + series / 10);
+        }
+        return builder.build();
+    }
+
+    /** The columns of the series as they appear in a query result. */
+    static Map<String, Object> createColumns(final int series, final int tagCount) {
+        final Map<String, Object> columns = new HashMap<>();
+        columns.put("intrinsic_" + IntrinsicTagNames.resourceId, resourceId(series));
+        columns.put("intrinsic_" + IntrinsicTagNames.name, name(series));
+        for (int t = 2; t < tagCount; t++) {
+            columns.put("meta_tag" + t, "value " + t + " of node " + series / 10);
+        }
+        return columns;
+    }
+
+    static String resourceId(final int series) {
+        return "snmp:" + series / 10 + ":interfaceSnmp:eth" + series / 5;
+    }
+
+    static String name(final int series) {
+        return "ifHCInOctets" + series % 5;
+    }
+}
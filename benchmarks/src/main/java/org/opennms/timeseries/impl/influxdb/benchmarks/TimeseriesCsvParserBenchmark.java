@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.benchmarks;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.timeseries.impl.influxdb.MetricFactory;
+import org.opennms.timeseries.impl.influxdb.SeriesSamples;
+import org.opennms.timeseries.impl.influxdb.TimeseriesCsvParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.influxdb.Cancellable;
+
+/**
+ * Parsing the annotated CSV getTimeseries() receives from InfluxDB. The response holds the samples of the five
+ * series of a resource, like a batched fetch of a graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimeseriesCsvParserBenchmark {
+
+    private static final int SERIES = 5;
+
+    private static final Cancellable NOT_CANCELLABLE = new Cancellable() {
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    @Param({"100", "1000", "10000"})
+    public int batchSize;
+
+    @Param({"2", "6", "12"})
+    public int tagCount;
+
+    private List<String> lines;
+    private MetricFactory metricFactory;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder header = new StringBuilder(",result,table,_time,_value,intrinsic_name,intrinsic_resourceId");
+        for (int t = 2; t < tagCount; t++) {
+            header.append(",meta_tag").append(t);
+        }
+        lines = new ArrayList<>(batchSize + 1);
+        lines.add(header.append('\r').toString());
+        final int samplesPerSeries = Math.max(1, batchSize / SERIES);
+        for (int i = 0; i < batchSize; i++) {
+            final int series = Math.min(i / samplesPerSeries, SERIES - 1);
+            final StringBuilder line = new StringBuilder(",_result,").append(series).append(',')
+                    .append(Instant.ofEpochMilli(Samples.START + i * 300_000L)).append(',')
+                    .append(i * 1.5 + 0.25).append(',')
+                    .append(Samples.name(series)).append(',')
+                    .append(Samples.resourceId(0));
+            for (int t = 2; t < tagCount; t++) {
+                line.append(",value ").append(t).append(" of node 0");
+            }
+            lines.add(line.append('\r').toString());
+        }
+        metricFactory = new MetricFactory(1000);
+    }
+
+    @Benchmark
+    public List<SeriesSamples> parse() throws StorageException {
+        final List<SeriesSamples> series = new ArrayList<>(SERIES);
+        final TimeseriesCsvParser parser = new TimeseriesCsvParser(metricFactory::createMetric, series::add);
+        for (String line : lines) {
+            parser.accept(NOT_CANCELLABLE, line);
+        }
+        parser.finish();
+        return series;
+    }
+}
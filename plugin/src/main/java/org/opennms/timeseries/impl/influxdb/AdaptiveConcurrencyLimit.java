@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+/**
+ * A concurrency limit which adapts to the latency of InfluxDB, following the gradient approach: a short term and a
+ * long term average of the round trip time are tracked. As long as the short term RTT doesn't exceed the long term
+ * one the limit grows by a small queue allowance, when requests start to queue up at InfluxDB the short term RTT rises
+ * and the limit shrinks proportionally. Overload signals (timeouts, 429, 5xx) cut the limit multiplicatively.
+ * <p>
+ * The limit only grows while at least half of it is used, an idle writer doesn't inflate it.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private static final double SHORT_WINDOW = 10;
+    private static final double LONG_WINDOW = 600;
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double estimatedLimit;
+    private double shortRttInNanos = -1;
+    private double longRttInNanos = -1;
+
+    public AdaptiveConcurrencyLimit(final int initialLimit, final int minLimit, final int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits, min: " + minLimit + ", max: " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = clamp(initialLimit);
+    }
+
+    /**
+     * Updates the limit with the outcome of a request.
+     *
+     * @param rttInNanos the time the request took
+     * @param inflight the number of requests in flight when it was sent
+     * @param overload true if InfluxDB was overloaded or didn't answer in time
+     * @return the new limit
+     */
+    public synchronized int onSample(final long rttInNanos, final int inflight, final boolean overload) {
+        if (overload) {
+            estimatedLimit = clamp(estimatedLimit * BACKOFF_RATIO);
+            return getLimit();
+        }
+        if (shortRttInNanos < 0) {
+            shortRttInNanos = rttInNanos;
+            longRttInNanos = rttInNanos;
+        } else {
+            shortRttInNanos += (rttInNanos - shortRttInNanos) * 2 / (SHORT_WINDOW + 1);
+            longRttInNanos += (rttInNanos - longRttInNanos) * 2 / (LONG_WINDOW + 1);
+        }
+        // after a long phase of high latency the long term RTT would never catch up again, let it drift down
+        if (longRttInNanos / shortRttInNanos > 2) {
+            longRttInNanos *= 0.95;
+        }
+        if (inflight < estimatedLimit / 2) {
+            return getLimit();
+        }
+        final double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRttInNanos / shortRttInNanos));
+        final double queueSize = Math.sqrt(estimatedLimit);
+        final double newLimit = estimatedLimit * gradient + queueSize;
+        estimatedLimit = clamp(estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING);
+        return getLimit();
+    }
+
+    public synchronized int getLimit() {
+        return (int) estimatedLimit;
+    }
+
+    /** The short term average of the round trip time, -1 before the first request. */
+    public synchronized double getRttInMs() {
+        return shortRttInNanos < 0 ? -1 : shortRttInNanos / 1_000_000d;
+    }
+
+    /** The long term average of the round trip time, -1 before the first request. */
+    public synchronized double getLongRttInMs() {
+        return longRttInNanos < 0 ? -1 : longRttInNanos / 1_000_000d;
+    }
+
+    private double clamp(final double limit) {
+        return Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+}
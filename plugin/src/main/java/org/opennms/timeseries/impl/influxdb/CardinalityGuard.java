@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Estimates the number of series per measurement and the number of values per meta and external tag key with
+ * {@link HyperLogLog} sketches, and enforces limits on them. A collector which puts a unique value into a tag creates a
+ * new series with every sample, this shows up here long before the index of InfluxDB runs out of memory.
+ * <p>
+ * The sketches are fed with {@link String#hashCode()}, which is cached by the Strings of the tags, spread over 64 bits.
+ * Most samples therefore cost a few map lookups and register reads. Intrinsic tags are part of the series but aren't
+ * tracked by themselves, the resourceId has a high cardinality by design. Tags which the {@link TagStoragePolicy}
+ * doesn't store as tags create no series and aren't tracked either. The estimates only grow, see {@link #reset()}.
+ */
+public class CardinalityGuard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CardinalityGuard.class);
+
+    /** Bounds the memory if the measurements or tag keys themselves run away. */
+    static final int MAX_TRACKED_KEYS = 10_000;
+
+    private final int precision;
+    private final long maxSeriesPerMeasurement;
+    private final long maxValuesPerTagKey;
+    private final InfluxdbConfig.CardinalityLimitAction action;
+    private final TagStoragePolicy tagStoragePolicy;
+    private final Predicate<Metric> knownSeries;
+    private final Map<String, Tracker> measurements = new ConcurrentHashMap<>();
+    private final Map<Metric.TagType, Map<String, Tracker>> tagKeys = new EnumMap<>(Metric.TagType.class);
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Meter samplesBeyondLimit = metrics.meter("cardinalitySamplesBeyondLimit");
+    private final Meter tagsDropped = metrics.meter("cardinalityTagsDropped");
+    private final Meter samplesRejected = metrics.meter("cardinalitySamplesRejected");
+    private final Meter untrackedKeys = metrics.meter("cardinalityUntrackedKeys");
+
+    /**
+     * @param knownSeries tells the series which were stored before, null if unknown. The action rejectSeries falls
+     *                    back to warn without it.
+     */
+    public CardinalityGuard(final int precision, final long maxSeriesPerMeasurement, final long maxValuesPerTagKey,
+                            final InfluxdbConfig.CardinalityLimitAction action, final TagStoragePolicy tagStoragePolicy,
+                            final Predicate<Metric> knownSeries) {
+        // fail early on an invalid precision
+        new HyperLogLog(precision);
+        this.precision = precision;
+        this.maxSeriesPerMeasurement = maxSeriesPerMeasurement;
+        this.maxValuesPerTagKey = maxValuesPerTagKey;
+        this.action = Objects.requireNonNull(action);
+        this.tagStoragePolicy = Objects.requireNonNull(tagStoragePolicy);
+        this.knownSeries = knownSeries;
+        if (action == InfluxdbConfig.CardinalityLimitAction.rejectSeries && knownSeries == null) {
+            LOG.warn("The cardinality limit action rejectSeries needs the series index to tell new series, samples beyond a limit are stored anyway.");
+        }
+        for (Metric.TagType tagType : Metric.TagType.values()) {
+            tagKeys.put(tagType, new ConcurrentHashMap<>());
+        }
+        metrics.register("cardinalityMeasurements", (Gauge<Integer>) measurements::size);
+        metrics.register("cardinalityTagKeys", (Gauge<Integer>) () -> tagKeys.values().stream().mapToInt(Map::size).sum());
+        metrics.register("cardinalitySeries", (Gauge<Long>) this::getSeriesEstimate);
+        metrics.register("cardinalityMaxSeriesPerMeasurement", (Gauge<Long>) () -> max(measurements.values()));
+        metrics.register("cardinalityMaxValuesPerTagKey", (Gauge<Long>) () -> tagKeys.values().stream()
+                .mapToLong(trackers -> max(trackers.values())).max().orElse(0));
+    }
+
+    /**
+     * Tracks the samples and applies the limit action. Returns the samples to store, the given list if all of them
+     * are within the limits.
+     */
+    public List<Sample> apply(final List<Sample> samples) {
+        List<Sample> checked = null;
+        for (int i = 0; i < samples.size(); i++) {
+            final Sample sample = samples.get(i);
+            final Sample result = apply(sample);
+            if (result != sample && checked == null) {
+                checked = new ArrayList<>(samples.subList(0, i));
+            }
+            if (checked != null && result != null) {
+                checked.add(result);
+            }
+        }
+        return checked != null ? checked : samples;
+    }
+
+    /** Returns the sample to store, a copy without the dropped tags or null if it was rejected. */
+    private Sample apply(final Sample sample) {
+        final Metric metric = sample.getMetric();
+        final Tag name = metric.getFirstTagByKey(IntrinsicTagNames.name);
+        if (name == null) {
+            // can't be encoded anyway
+            return sample;
+        }
+        long seriesHash = HyperLogLog.mix(name.getValue().hashCode());
+        for (Tag tag : metric.getIntrinsicTags()) {
+            seriesHash += hash(Metric.TagType.intrinsic, tag);
+        }
+        boolean beyondLimit = false;
+        Set<Tag> drop = null;
+        for (Metric.TagType tagType : new Metric.TagType[]{Metric.TagType.meta, Metric.TagType.external}) {
+            for (Tag tag : getTags(metric, tagType)) {
+                if (!tagStoragePolicy.isStoredAsTag(tagType, tag.getKey())) {
+                    continue;
+                }
+                seriesHash += hash(tagType, tag);
+                final Tracker tracker = track(tagKeys.get(tagType), tag.getKey(), maxValuesPerTagKey, HyperLogLog.mix(tag.getValue().hashCode()));
+                if (tracker != null && tracker.beyondLimit) {
+                    beyondLimit = true;
+                    if (drop == null) {
+                        drop = new HashSet<>();
+                    }
+                    drop.add(tag);
+                }
+            }
+        }
+        final Tracker measurement = track(measurements, name.getValue(), maxSeriesPerMeasurement, HyperLogLog.mix(seriesHash));
+        if (measurement != null && measurement.beyondLimit) {
+            beyondLimit = true;
+        }
+        if (!beyondLimit) {
+            return sample;
+        }
+        samplesBeyondLimit.mark();
+        switch (action) {
+            case dropTag:
+                if (drop == null) {
+                    // the measurement is beyond its limit, but none of its tags
+                    return sample;
+                }
+                tagsDropped.mark(drop.size());
+                return withoutTags(sample, drop);
+            case rejectSeries:
+                if (knownSeries == null || knownSeries.test(metric)) {
+                    return sample;
+                }
+                samplesRejected.mark();
+                return null;
+            default:
+                return sample;
+        }
+    }
+
+    /** Offers the hash to the tracker of the key, returns null if too many keys are tracked already. */
+    private Tracker track(final Map<String, Tracker> trackers, final String key, final long limit, final long hash) {
+        Tracker tracker = trackers.get(key);
+        if (tracker == null) {
+            if (trackers.size() >= MAX_TRACKED_KEYS) {
+                untrackedKeys.mark();
+                return null;
+            }
+            tracker = trackers.computeIfAbsent(key, k -> new Tracker(k, new HyperLogLog(precision), limit));
+        }
+        if (tracker.offer(hash)) {
+            LOG.warn("The estimated cardinality of {} is {}, beyond its limit of {}. Samples beyond the limit are handled by {}.",
+                    trackers == measurements ? "measurement " + key : "tag key " + key, tracker.estimate, limit, knownSeries == null
+                            && action == InfluxdbConfig.CardinalityLimitAction.rejectSeries ? InfluxdbConfig.CardinalityLimitAction.warn : action);
+        }
+        return tracker;
+    }
+
+    private static long hash(final Metric.TagType tagType, final Tag tag) {
+        return HyperLogLog.mix((((long) tagType.ordinal() << 32) | (tag.getKey().hashCode() & 0xffffffffL)) * 31 + tag.getValue().hashCode());
+    }
+
+    private static Collection<Tag> getTags(final Metric metric, final Metric.TagType tagType) {
+        return tagType == Metric.TagType.meta ? metric.getMetaTags() : metric.getExternalTags();
+    }
+
+    private static Sample withoutTags(final Sample sample, final Set<Tag> drop) {
+        final Metric metric = sample.getMetric();
+        final ImmutableMetric.MetricBuilder builder = ImmutableMetric.builder();
+        metric.getIntrinsicTags().forEach(builder::intrinsicTag);
+        for (Tag tag : metric.getMetaTags()) {
+            if (!drop.contains(tag)) {
+                builder.metaTag(tag);
+            }
+        }
+        for (Tag tag : metric.getExternalTags()) {
+            if (!drop.contains(tag)) {
+                builder.externalTag(tag);
+            }
+        }
+        return ImmutableSample.builder()
+                .metric(builder.build())
+                .time(sample.getTime())
+                .value(sample.getValue())
+                .build();
+    }
+
+    /** The estimated number of series, the union of the series of all measurements. */
+    public long getSeriesEstimate() {
+        final HyperLogLog union = new HyperLogLog(precision);
+        for (Tracker tracker : measurements.values()) {
+            union.merge(tracker.sketch);
+        }
+        return union.cardinality();
+    }
+
+    /** The estimated number of series per measurement, the largest first. */
+    public List<Estimate> getMeasurementEstimates() {
+        return toEstimates(measurements.values(), "");
+    }
+
+    /** The estimated number of values per tag key, the largest first. The keys are prefixed by their tag type. */
+    public List<Estimate> getTagKeyEstimates() {
+        final List<Estimate> estimates = new ArrayList<>();
+        for (Map.Entry<Metric.TagType, Map<String, Tracker>> entry : tagKeys.entrySet()) {
+            estimates.addAll(toEstimates(entry.getValue().values(), LineProtocolEncoder.toClassifiedTagPrefix(entry.getKey())));
+        }
+        estimates.sort(Comparator.comparingLong(Estimate::getCardinality).reversed());
+        return estimates;
+    }
+
+    private static List<Estimate> toEstimates(final Collection<Tracker> trackers, final String prefix) {
+        final List<Estimate> estimates = new ArrayList<>(trackers.size());
+        for (Tracker tracker : trackers) {
+            estimates.add(new Estimate(prefix + tracker.key, tracker.estimate, tracker.limit));
+        }
+        estimates.sort(Comparator.comparingLong(Estimate::getCardinality).reversed());
+        return estimates;
+    }
+
+    private static long max(final Collection<Tracker> trackers) {
+        return trackers.stream().mapToLong(tracker -> tracker.estimate).max().orElse(0);
+    }
+
+    /** Forgets all estimates, e.g. after the collector creating too many series was fixed. */
+    public void reset() {
+        measurements.clear();
+        tagKeys.values().forEach(Map::clear);
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    private static final class Tracker {
+        private final String key;
+        private final HyperLogLog sketch;
+        private final long limit;
+        private volatile long estimate;
+        private volatile boolean beyondLimit;
+
+        private Tracker(final String key, final HyperLogLog sketch, final long limit) {
+            this.key = key;
+            this.sketch = sketch;
+            this.limit = limit;
+        }
+
+        /** Returns true if the estimate just went beyond the limit. */
+        private boolean offer(final long hash) {
+            if (!sketch.offer(hash)) {
+                return false;
+            }
+            estimate = sketch.cardinality();
+            if (limit > 0 && !beyondLimit && estimate > limit) {
+                synchronized (this) {
+                    if (!beyondLimit) {
+                        beyondLimit = true;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    public static final class Estimate {
+        private final String name;
+        private final long cardinality;
+        private final long limit;
+
+        Estimate(final String name, final long cardinality, final long limit) {
+            this.name = name;
+            this.cardinality = cardinality;
+            this.limit = limit;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCardinality() {
+            return cardinality;
+        }
+
+        /** 0 if unlimited. */
+        public long getLimit() {
+            return limit;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + cardinality;
+        }
+    }
+}
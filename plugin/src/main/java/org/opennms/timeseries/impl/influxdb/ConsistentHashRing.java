@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Assigns series to nodes with consistent hashing: each node is placed on the ring at virtualNodes points, a series
+ * belongs to the node of the first point at or after the hash of its series key. Adding or removing a node only
+ * moves the series of that node, the virtual nodes keep the share of each node close to 1/n.
+ */
+public class ConsistentHashRing<T> {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final List<T> nodes;
+    /** The sorted points of the ring. */
+    private final long[] points;
+    /** The index of the node owning the point at the same position. */
+    private final int[] owners;
+
+    /**
+     * @param nodes the nodes, in a stable order
+     * @param nodeKeys identifies the nodes on the ring, a node keeps its share as long as its key doesn't change
+     */
+    public ConsistentHashRing(final List<T> nodes, final List<String> nodeKeys, final int virtualNodes) {
+        if (nodes.isEmpty() || nodes.size() != nodeKeys.size() || virtualNodes < 1) {
+            throw new IllegalArgumentException("At least one node with a key and one virtual node per node is required.");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        final long[][] entries = new long[nodes.size() * virtualNodes][];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                final long point = HASH.hashString(nodeKeys.get(node) + "#" + i, StandardCharsets.UTF_8).asLong();
+                entries[node * virtualNodes + i] = new long[]{point, node};
+            }
+        }
+        // ties are broken by the node index, the ring doesn't depend on the order the points were added
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.points = new long[entries.length];
+        this.owners = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    /** Returns the node owning the series with the given resourceId and name. */
+    public T get(final String resourceId, final String name) {
+        return nodes.get(getIndex(resourceId, name));
+    }
+
+    public int getIndex(final String resourceId, final String name) {
+        if (nodes.size() == 1) {
+            return 0;
+        }
+        final long hash = HASH.newHasher()
+                .putString(resourceId != null ? resourceId : "", StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(name != null ? name : "", StandardCharsets.UTF_8)
+                .hash()
+                .asLong();
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public List<T> getNodes() {
+        return nodes;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+}
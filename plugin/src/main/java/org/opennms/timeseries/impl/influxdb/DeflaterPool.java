@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps a bounded number of {@link Deflater}s around. A Deflater holds native memory which is only released by
+ * {@link Deflater#end()} or finalization, creating one per request causes a lot of native memory churn.
+ * Deflaters exceeding the pool size are ended immediately when they are returned.
+ */
+public class DeflaterPool {
+
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    private final int level;
+    private final BlockingQueue<PooledDeflater> pool;
+    private volatile boolean closed = false;
+
+    public DeflaterPool(final int level, final int maxPoolSize) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.level = level;
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, maxPoolSize));
+    }
+
+    public PooledDeflater borrow() {
+        final PooledDeflater deflater = pool.poll();
+        return deflater != null ? deflater : new PooledDeflater(level);
+    }
+
+    public void release(final PooledDeflater deflater) {
+        deflater.reset();
+        if (closed || !pool.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    /** Ends all pooled Deflaters, the ones which are currently borrowed are ended when they are released. */
+    public void close() {
+        closed = true;
+        PooledDeflater deflater;
+        while ((deflater = pool.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    int getPoolSize() {
+        return pool.size();
+    }
+
+    /** A raw Deflater together with the state we need to write gzip around it. */
+    public static class PooledDeflater {
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[CHUNK_SIZE];
+
+        private PooledDeflater(final int level) {
+            // gzip header and trailer are written by us
+            this.deflater = new Deflater(level, true);
+        }
+
+        void reset() {
+            deflater.reset();
+            crc.reset();
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+
+/**
+ * Plans the queries of a batch of fetch requests. The requests for the same resource on the same shard with the same
+ * range, step and aggregation are fetched together, with a single query for up to maxSeries names. The series a query
+ * returns are handed back to its requests by name.
+ */
+class FetchBatcher {
+
+    private final int maxSeries;
+    private final ToIntFunction<Metric> shardIndex;
+
+    FetchBatcher(final int maxSeries, final ToIntFunction<Metric> shardIndex) {
+        this.maxSeries = Math.max(1, maxSeries);
+        this.shardIndex = Objects.requireNonNull(shardIndex);
+    }
+
+    /** Returns the indexes of the requests fetched by each query, in the order of the requests. */
+    List<List<Integer>> batch(final List<TimeSeriesFetchRequest> requests) {
+        final Map<Key, List<Integer>> batches = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            final TimeSeriesFetchRequest request = requests.get(i);
+            batches.computeIfAbsent(new Key(request, shardIndex.applyAsInt(request.getMetric())), k -> new ArrayList<>()).add(i);
+        }
+        final List<List<Integer>> queries = new ArrayList<>();
+        for (List<Integer> batch : batches.values()) {
+            queries.addAll(partitionByName(requests, batch));
+        }
+        return queries;
+    }
+
+    /** Splits a batch into parts of at most maxSeries distinct names. */
+    private List<List<Integer>> partitionByName(final List<TimeSeriesFetchRequest> requests, final List<Integer> batch) {
+        final List<List<Integer>> parts = new ArrayList<>();
+        final Map<String, List<Integer>> byName = new LinkedHashMap<>();
+        for (int index : batch) {
+            byName.computeIfAbsent(getName(requests.get(index).getMetric()), k -> new ArrayList<>()).add(index);
+        }
+        List<Integer> part = new ArrayList<>();
+        int names = 0;
+        for (List<Integer> indexes : byName.values()) {
+            if (names == maxSeries) {
+                parts.add(part);
+                part = new ArrayList<>();
+                names = 0;
+            }
+            part.addAll(indexes);
+            names++;
+        }
+        parts.add(part);
+        return parts;
+    }
+
+    /** The requested Metrics of the query by name, they restore the tags which aren't stored as tags. */
+    static Map<String, Metric> getMetricsByName(final List<TimeSeriesFetchRequest> requests, final List<Integer> indexes) {
+        final Map<String, Metric> metricsByName = new LinkedHashMap<>();
+        for (int index : indexes) {
+            metricsByName.putIfAbsent(getName(requests.get(index).getMetric()), requests.get(index).getMetric());
+        }
+        return metricsByName;
+    }
+
+    /** Splits the series of a query by name and sets the samples of its requests in the results. */
+    static void distribute(final List<TimeSeriesFetchRequest> requests, final List<Integer> indexes, final List<SeriesSamples> series,
+                           final List<List<Sample>> results) {
+        final Map<String, List<Sample>> samplesByName = new HashMap<>();
+        for (SeriesSamples s : series) {
+            s.addTo(samplesByName.computeIfAbsent(getName(s.getMetric()), k -> new ArrayList<>()));
+        }
+        final Set<String> claimed = new HashSet<>();
+        for (int index : indexes) {
+            final String name = getName(requests.get(index).getMetric());
+            final List<Sample> samples = samplesByName.getOrDefault(name, Collections.emptyList());
+            // every request gets its own list, also when a name was requested twice
+            results.set(index, claimed.add(name) && !samples.isEmpty() ? samples : new ArrayList<>(samples));
+        }
+    }
+
+    private static String getName(final Metric metric) {
+        final Tag name = metric.getFirstTagByKey(IntrinsicTagNames.name);
+        return name != null ? name.getValue() : null;
+    }
+
+    private static class Key {
+        private final int shard;
+        private final String resourceId;
+        private final Instant start;
+        private final Instant end;
+        private final long stepInMs;
+        private final Aggregation aggregation;
+
+        private Key(final TimeSeriesFetchRequest request, final int shard) {
+            this.shard = shard;
+            final Tag resourceId = request.getMetric().getFirstTagByKey(IntrinsicTagNames.resourceId);
+            this.resourceId = resourceId != null ? resourceId.getValue() : null;
+            this.start = request.getStart();
+            this.end = request.getEnd();
+            this.stepInMs = FetchQuery.toDownsamplingStepInMs(request);
+            this.aggregation = stepInMs > 0 ? request.getAggregation() : Aggregation.NONE;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key that = (Key) o;
+            return shard == that.shard
+                    && stepInMs == that.stepInMs
+                    && Objects.equals(resourceId, that.resourceId)
+                    && start.equals(that.start)
+                    && end.equals(that.end)
+                    && aggregation == that.aggregation;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(shard, resourceId, start, end, stepInMs, aggregation);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.stream.Collectors;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+
+/**
+ * Builds the Flux queries of getTimeseries(). A query fetches the series with the given names of a single resource,
+ * downsampled on the server if the request asks for an aggregation.
+ */
+class FetchQuery {
+
+    private final static DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneId.of("UTC"));
+
+    /** The query for the series with the given names of the resource of the request, the stop is exclusive. */
+    static String create(final String bucket, final TimeSeriesFetchRequest request, final Collection<String> names,
+                         final Instant start, final Instant stop) {
+        final String nameRestriction = names.stream()
+                .map(name -> "r[\"intrinsic_name\"]==\"" + name + "\"")
+                .collect(Collectors.joining(" or "));
+
+        return "from(bucket:\"" + bucket + "\")\n" +
+                " |> range(start:" + DATE_TIME_FORMAT.format(start) + ", stop:" + DATE_TIME_FORMAT.format(stop) + ")\n" +
+                " |> filter(fn:(r) => " + (names.size() > 1 ? "(" + nameRestriction + ")" : nameRestriction) + " and\n " +
+                "                     r[\"intrinsic_resourceId\"]==\"" + request.getMetric().getFirstTagByKey(IntrinsicTagNames.resourceId).getValue() + "\" and\n " +
+                "                     r._field == \"value\")\n" +
+                toAggregateWindow(request) +
+                " |> drop(columns: [\"_start\", \"_stop\", \"_field\", \"_measurement\"])";
+    }
+
+    /** The step the series is downsampled to on the server, 0 if the raw samples are fetched. */
+    static long toDownsamplingStepInMs(final TimeSeriesFetchRequest request) {
+        final Aggregation aggregation = request.getAggregation();
+        final Duration step = request.getStep();
+        if (aggregation == null || Aggregation.NONE == aggregation || step == null || step.toMillis() <= 0) {
+            return 0;
+        }
+        return step.toMillis();
+    }
+
+    /**
+     * Downsamples the series on the server to one sample per step. Empty windows are left out, gaps are filled by
+     * OpenNMS anyway. The raw samples are fetched for Aggregation.NONE.
+     */
+    static String toAggregateWindow(final TimeSeriesFetchRequest request) {
+        final long step = toDownsamplingStepInMs(request);
+        if (step <= 0) {
+            return "";
+        }
+        final String fn;
+        switch (request.getAggregation()) {
+            case AVERAGE:
+                fn = "mean";
+                break;
+            case MIN:
+                fn = "min";
+                break;
+            case MAX:
+                fn = "max";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown Aggregation " + request.getAggregation().name());
+        }
+        return " |> aggregateWindow(every: " + step + "ms, fn: " + fn + ", createEmpty: false)\n";
+    }
+}
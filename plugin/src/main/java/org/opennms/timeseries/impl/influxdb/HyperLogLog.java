@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+/**
+ * A HyperLogLog sketch which estimates the number of distinct hashes offered to it, with a standard error of
+ * 1.04 / sqrt(2^precision). Sketches of the same precision can be merged, the result estimates the union.
+ * <p>
+ * Offering a hash which doesn't raise its register, by far the most common case once the sketch is warm, only reads
+ * the register. Raising a register takes the lock and keeps the harmonic sum up to date, the estimate never has to
+ * scan the registers.
+ */
+public class HyperLogLog {
+
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private final int precision;
+    private final byte[] registers;
+    private final double alpha;
+    /** Sum of 2^-register over all registers. */
+    private double harmonicSum;
+    private int zeroRegisters;
+
+    public HyperLogLog(final int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("The precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION + ", got " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+        this.harmonicSum = registers.length;
+        this.zeroRegisters = registers.length;
+        final int m = registers.length;
+        if (m == 16) {
+            alpha = 0.673;
+        } else if (m == 32) {
+            alpha = 0.697;
+        } else if (m == 64) {
+            alpha = 0.709;
+        } else {
+            alpha = 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Offers a 64 bit hash, its bits have to be well distributed, see {@link #mix(long)}.
+     *
+     * @return true if the sketch changed, the hash was certainly not offered before
+     */
+    public boolean offer(final long hash) {
+        final int index = (int) (hash >>> (64 - precision));
+        // the position of the first 1 bit of the remaining bits, the sentinel bit limits it to 64 - precision + 1
+        final byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+        if (registers[index] >= rank) {
+            return false;
+        }
+        synchronized (this) {
+            return raise(index, rank);
+        }
+    }
+
+    private boolean raise(final int index, final byte rank) {
+        final byte current = registers[index];
+        if (current >= rank) {
+            return false;
+        }
+        if (current == 0) {
+            zeroRegisters--;
+        }
+        harmonicSum += Math.scalb(1d, -rank) - Math.scalb(1d, -current);
+        registers[index] = rank;
+        return true;
+    }
+
+    public synchronized long cardinality() {
+        final int m = registers.length;
+        final double estimate = alpha * m * m / harmonicSum;
+        if (estimate <= 2.5 * m && zeroRegisters > 0) {
+            // linear counting is more accurate for small cardinalities
+            return Math.round(m * Math.log((double) m / zeroRegisters));
+        }
+        return Math.round(estimate);
+    }
+
+    /** Adds the hashes offered to the other sketch to this one. */
+    public void merge(final HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Can't merge sketches of different precisions: " + precision + " and " + other.precision);
+        }
+        final byte[] otherRegisters;
+        synchronized (other) {
+            otherRegisters = other.registers.clone();
+        }
+        synchronized (this) {
+            for (int i = 0; i < registers.length; i++) {
+                raise(i, otherRegisters[i]);
+            }
+        }
+    }
+
+    /** The size of the registers in bytes. */
+    public int getSizeInBytes() {
+        return registers.length;
+    }
+
+    /** Spreads the bits of a hash code, e.g. of {@link String#hashCode()}, over 64 bits (the finalizer of MurmurHash3). */
+    public static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53e87d1L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,7 +1,10 @@
 package org.opennms.timeseries.impl.influxdb;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.StringJoiner;
+import java.util.stream.Collectors;
 
 public class InfluxdbConfig {
     private final String bucket;
@@ -13,11 +16,92 @@ public class InfluxdbConfig {
     private final long writeTimeoutInMs;
     private final long readTimeoutInMs;
     private final long bulkheadMaxWaitDurationInMs;
+    private final int compressionLevel;
+    private final int compressionMinSizeInBytes;
+    private final String spoolDirectory;
+    private final int spoolSegmentSizeInBytes;
+    private final long spoolMaxSizeInBytes;
+    private final SpoolEvictionPolicy spoolEvictionPolicy;
+    private final long spoolRetentionInMs;
+    private final long spoolReplayIntervalInMs;
+    private final int batchMaxSamples;
+    private final long batchMaxSizeInBytes;
+    private final long batchLingerInMs;
+    private final int retryMaxRetries;
+    private final long retryInitialBackoffInMs;
+    private final long retryMaxBackoffInMs;
+    private final long retryBufferMaxSamples;
+    private final long seriesKeyCacheMaxSize;
+    private final boolean seriesIndexEnabled;
+    private final String seriesIndexFile;
+    private final long seriesIndexSnapshotIntervalInMs;
+    private final FindMetricsStrategy findMetricsStrategy;
+    private final long findMetricsLookbackInMs;
+    private final long readCacheMaxSizeInBytes;
+    private final long readCacheChunkDurationInMs;
+    private final long readCacheSettleTimeInMs;
+    private final int fetchBatchMaxSeries;
+    private final int fetchParallelism;
+    private final long metricCacheMaxSize;
+    private final long maxPendingSamples;
+    private final boolean adaptiveConcurrencyEnabled;
+    private final int concurrencyLimitMin;
+    private final int concurrencyLimitMax;
+    private final int shardVirtualNodes;
+    private final ReadBalancingStrategy readBalancingStrategy;
+    private final double readHedgePercentile;
+    private final long readHedgeMinDelayInMs;
+    private final long deleteLingerInMs;
+    private final int deleteParallelism;
+    private final long deleteLookbackInMs;
+    private final boolean jmxEnabled;
+    private final int cardinalityPrecision;
+    private final long cardinalityMaxSeriesPerMeasurement;
+    private final long cardinalityMaxValuesPerTagKey;
+    private final CardinalityLimitAction cardinalityLimitAction;
+    private final String tagStoragePolicy;
+    private final long closeDrainTimeoutInMs;
+    private final int connectionPoolWarmupCount;
+    private final long deleteTimeoutInMs;
+    private final long maxPendingWaitInMs;
+    private final long readCacheTimeToLiveInMs;
 
     public enum WriteStrategy {
         nonblocking, blocking, opennms;
     }
 
+    /** What to do when the spool is full. */
+    public enum SpoolEvictionPolicy {
+        dropOldest, dropNewest;
+    }
+
+    /**
+     * distinct: reads the raw samples of the matching series and returns the distinct measurements.
+     * metadata: resolves the matching series from the tag predicates and reads only a single sample per series.
+     */
+    public enum FindMetricsStrategy {
+        distinct, metadata;
+    }
+
+    /**
+     * leastOutstanding: sends the query to the replica with the fewest queries in flight.
+     * ewma: sends the query to the replica with the lowest moving average of the latency, weighted by its queries in flight.
+     */
+    public enum ReadBalancingStrategy {
+        leastOutstanding, ewma;
+    }
+
+    /**
+     * What to do with the samples of a measurement or a tag key beyond its cardinality limit.
+     * warn: logs a warning and stores them anyway.
+     * dropTag: stores them without the tags whose key is beyond its limit. Once a key is beyond its limit it is dropped
+     * from every sample, the series which were stored with the tag before continue as new series without it.
+     * rejectSeries: rejects the samples of series which are not in the series index yet, needs the series index.
+     */
+    public enum CardinalityLimitAction {
+        warn, dropTag, rejectSeries;
+    }
+
     public InfluxdbConfig(Builder builder) {
         this.bucket = Objects.requireNonNull(builder.bucket);
         this.org = Objects.requireNonNull(builder.org);
@@ -28,6 +112,55 @@ public class InfluxdbConfig {
         this.writeTimeoutInMs = builder.writeTimeoutInMs;
         this.readTimeoutInMs = builder.readTimeoutInMs;
         this.bulkheadMaxWaitDurationInMs = builder.bulkheadMaxWaitDurationInMs;
+        this.compressionLevel = builder.compressionLevel;
+        this.compressionMinSizeInBytes = builder.compressionMinSizeInBytes;
+        this.spoolDirectory = builder.spoolDirectory;
+        this.spoolSegmentSizeInBytes = builder.spoolSegmentSizeInBytes;
+        this.spoolMaxSizeInBytes = builder.spoolMaxSizeInBytes;
+        this.spoolEvictionPolicy = builder.spoolEvictionPolicy;
+        this.spoolRetentionInMs = builder.spoolRetentionInMs;
+        this.spoolReplayIntervalInMs = builder.spoolReplayIntervalInMs;
+        this.batchMaxSamples = builder.batchMaxSamples;
+        this.batchMaxSizeInBytes = builder.batchMaxSizeInBytes;
+        this.batchLingerInMs = builder.batchLingerInMs;
+        this.retryMaxRetries = builder.retryMaxRetries;
+        this.retryInitialBackoffInMs = builder.retryInitialBackoffInMs;
+        this.retryMaxBackoffInMs = builder.retryMaxBackoffInMs;
+        this.retryBufferMaxSamples = builder.retryBufferMaxSamples;
+        this.seriesKeyCacheMaxSize = builder.seriesKeyCacheMaxSize;
+        this.seriesIndexEnabled = builder.seriesIndexEnabled;
+        this.seriesIndexFile = builder.seriesIndexFile;
+        this.seriesIndexSnapshotIntervalInMs = builder.seriesIndexSnapshotIntervalInMs;
+        this.findMetricsStrategy = builder.findMetricsStrategy;
+        this.findMetricsLookbackInMs = builder.findMetricsLookbackInMs;
+        this.readCacheMaxSizeInBytes = builder.readCacheMaxSizeInBytes;
+        this.readCacheChunkDurationInMs = builder.readCacheChunkDurationInMs;
+        this.readCacheSettleTimeInMs = builder.readCacheSettleTimeInMs;
+        this.fetchBatchMaxSeries = builder.fetchBatchMaxSeries;
+        this.fetchParallelism = builder.fetchParallelism;
+        this.metricCacheMaxSize = builder.metricCacheMaxSize;
+        this.maxPendingSamples = builder.maxPendingSamples;
+        this.adaptiveConcurrencyEnabled = builder.adaptiveConcurrencyEnabled;
+        this.concurrencyLimitMin = builder.concurrencyLimitMin;
+        this.concurrencyLimitMax = builder.concurrencyLimitMax;
+        this.shardVirtualNodes = builder.shardVirtualNodes;
+        this.readBalancingStrategy = builder.readBalancingStrategy;
+        this.readHedgePercentile = builder.readHedgePercentile;
+        this.readHedgeMinDelayInMs = builder.readHedgeMinDelayInMs;
+        this.deleteLingerInMs = builder.deleteLingerInMs;
+        this.deleteParallelism = builder.deleteParallelism;
+        this.deleteLookbackInMs = builder.deleteLookbackInMs;
+        this.jmxEnabled = builder.jmxEnabled;
+        this.cardinalityPrecision = builder.cardinalityPrecision;
+        this.cardinalityMaxSeriesPerMeasurement = builder.cardinalityMaxSeriesPerMeasurement;
+        this.cardinalityMaxValuesPerTagKey = builder.cardinalityMaxValuesPerTagKey;
+        this.cardinalityLimitAction = builder.cardinalityLimitAction;
+        this.tagStoragePolicy = builder.tagStoragePolicy;
+        this.closeDrainTimeoutInMs = builder.closeDrainTimeoutInMs;
+        this.connectionPoolWarmupCount = builder.connectionPoolWarmupCount;
+        this.deleteTimeoutInMs = builder.deleteTimeoutInMs;
+        this.maxPendingWaitInMs = builder.maxPendingWaitInMs;
+        this.readCacheTimeToLiveInMs = builder.readCacheTimeToLiveInMs;
     }
 
     /** Will be called via blueprint. The builder can be called when not running as Osgi plugin. */
@@ -40,7 +173,56 @@ public class InfluxdbConfig {
             final int maxConcurrentHttpConnections,
             final long writeTimeoutInMs,
             final long readTimeoutInMs,
-            final long bulkheadMaxWaitDurationInMs) {
+            final long bulkheadMaxWaitDurationInMs,
+            final int compressionLevel,
+            final int compressionMinSizeInBytes,
+            final String spoolDirectory,
+            final int spoolSegmentSizeInBytes,
+            final long spoolMaxSizeInBytes,
+            final String spoolEvictionPolicy,
+            final long spoolRetentionInMs,
+            final long spoolReplayIntervalInMs,
+            final int batchMaxSamples,
+            final long batchMaxSizeInBytes,
+            final long batchLingerInMs,
+            final int retryMaxRetries,
+            final long retryInitialBackoffInMs,
+            final long retryMaxBackoffInMs,
+            final long retryBufferMaxSamples,
+            final long seriesKeyCacheMaxSize,
+            final boolean seriesIndexEnabled,
+            final String seriesIndexFile,
+            final long seriesIndexSnapshotIntervalInMs,
+            final String findMetricsStrategy,
+            final long findMetricsLookbackInMs,
+            final long readCacheMaxSizeInBytes,
+            final long readCacheChunkDurationInMs,
+            final long readCacheSettleTimeInMs,
+            final int fetchBatchMaxSeries,
+            final int fetchParallelism,
+            final long metricCacheMaxSize,
+            final long maxPendingSamples,
+            final boolean adaptiveConcurrencyEnabled,
+            final int concurrencyLimitMin,
+            final int concurrencyLimitMax,
+            final int shardVirtualNodes,
+            final String readBalancingStrategy,
+            final double readHedgePercentile,
+            final long readHedgeMinDelayInMs,
+            final long deleteLingerInMs,
+            final int deleteParallelism,
+            final long deleteLookbackInMs,
+            final boolean jmxEnabled,
+            final int cardinalityPrecision,
+            final long cardinalityMaxSeriesPerMeasurement,
+            final long cardinalityMaxValuesPerTagKey,
+            final String cardinalityLimitAction,
+            final String tagStoragePolicy,
+            final long closeDrainTimeoutInMs,
+            final int connectionPoolWarmupCount,
+            final long deleteTimeoutInMs,
+            final long maxPendingWaitInMs,
+            final long readCacheTimeToLiveInMs) {
         this(builder()
                 .bucket(bucket)
                 .org(org)
@@ -50,7 +232,56 @@ public class InfluxdbConfig {
                 .maxConcurrentHttpConnections(maxConcurrentHttpConnections)
                 .writeTimeoutInMs(writeTimeoutInMs)
                 .readTimeoutInMs(readTimeoutInMs)
-                .bulkheadMaxWaitDurationInMs(bulkheadMaxWaitDurationInMs));
+                .bulkheadMaxWaitDurationInMs(bulkheadMaxWaitDurationInMs)
+                .compressionLevel(compressionLevel)
+                .compressionMinSizeInBytes(compressionMinSizeInBytes)
+                .spoolDirectory(spoolDirectory)
+                .spoolSegmentSizeInBytes(spoolSegmentSizeInBytes)
+                .spoolMaxSizeInBytes(spoolMaxSizeInBytes)
+                .spoolEvictionPolicy(SpoolEvictionPolicy.valueOf(spoolEvictionPolicy))
+                .spoolRetentionInMs(spoolRetentionInMs)
+                .spoolReplayIntervalInMs(spoolReplayIntervalInMs)
+                .batchMaxSamples(batchMaxSamples)
+                .batchMaxSizeInBytes(batchMaxSizeInBytes)
+                .batchLingerInMs(batchLingerInMs)
+                .retryMaxRetries(retryMaxRetries)
+                .retryInitialBackoffInMs(retryInitialBackoffInMs)
+                .retryMaxBackoffInMs(retryMaxBackoffInMs)
+                .retryBufferMaxSamples(retryBufferMaxSamples)
+                .seriesKeyCacheMaxSize(seriesKeyCacheMaxSize)
+                .seriesIndexEnabled(seriesIndexEnabled)
+                .seriesIndexFile(seriesIndexFile)
+                .seriesIndexSnapshotIntervalInMs(seriesIndexSnapshotIntervalInMs)
+                .findMetricsStrategy(FindMetricsStrategy.valueOf(findMetricsStrategy))
+                .findMetricsLookbackInMs(findMetricsLookbackInMs)
+                .readCacheMaxSizeInBytes(readCacheMaxSizeInBytes)
+                .readCacheChunkDurationInMs(readCacheChunkDurationInMs)
+                .readCacheSettleTimeInMs(readCacheSettleTimeInMs)
+                .fetchBatchMaxSeries(fetchBatchMaxSeries)
+                .fetchParallelism(fetchParallelism)
+                .metricCacheMaxSize(metricCacheMaxSize)
+                .maxPendingSamples(maxPendingSamples)
+                .adaptiveConcurrencyEnabled(adaptiveConcurrencyEnabled)
+                .concurrencyLimitMin(concurrencyLimitMin)
+                .concurrencyLimitMax(concurrencyLimitMax)
+                .shardVirtualNodes(shardVirtualNodes)
+                .readBalancingStrategy(ReadBalancingStrategy.valueOf(readBalancingStrategy))
+                .readHedgePercentile(readHedgePercentile)
+                .readHedgeMinDelayInMs(readHedgeMinDelayInMs)
+                .deleteLingerInMs(deleteLingerInMs)
+                .deleteParallelism(deleteParallelism)
+                .deleteLookbackInMs(deleteLookbackInMs)
+                .jmxEnabled(jmxEnabled)
+                .cardinalityPrecision(cardinalityPrecision)
+                .cardinalityMaxSeriesPerMeasurement(cardinalityMaxSeriesPerMeasurement)
+                .cardinalityMaxValuesPerTagKey(cardinalityMaxValuesPerTagKey)
+                .cardinalityLimitAction(CardinalityLimitAction.valueOf(cardinalityLimitAction))
+                .tagStoragePolicy(tagStoragePolicy)
+                .closeDrainTimeoutInMs(closeDrainTimeoutInMs)
+                .connectionPoolWarmupCount(connectionPoolWarmupCount)
+                .deleteTimeoutInMs(deleteTimeoutInMs)
+                .maxPendingWaitInMs(maxPendingWaitInMs)
+                .readCacheTimeToLiveInMs(readCacheTimeToLiveInMs));
     }
 
     public String getBucket() {
@@ -65,10 +296,32 @@ public class InfluxdbConfig {
         return token;
     }
 
+    /**
+     * The url of InfluxDB, a comma separated list if the series are sharded across several nodes. The url of a node
+     * can be followed by the urls of its read replicas, separated by '|'.
+     */
     public String getUrl() {
         return url;
     }
 
+    /** The urls the samples are written to, one per node. */
+    public List<String> getUrls() {
+        return getNodeUrls().stream()
+                .map(urls -> urls.get(0))
+                .collect(Collectors.toList());
+    }
+
+    /** The urls of each node, the first one is written to, all of them are read from. */
+    public List<List<String>> getNodeUrls() {
+        return Arrays.stream(url.split(","))
+                .map(node -> Arrays.stream(node.split("\\|"))
+                        .map(String::trim)
+                        .filter(u -> !u.isEmpty())
+                        .collect(Collectors.toList()))
+                .filter(urls -> !urls.isEmpty())
+                .collect(Collectors.toList());
+    }
+
     public WriteStrategy getWriteStrategy() {
         return writeStrategy;
     }
@@ -85,10 +338,264 @@ public class InfluxdbConfig {
         return readTimeoutInMs;
     }
 
+    /** How long a write request waits for a permit of the bulkhead before it fails. The requests wait in a queue, no thread blocks. */
     public long getBulkheadMaxWaitDurationInMs() {
         return bulkheadMaxWaitDurationInMs;
     }
 
+    /** The gzip level used by the opennms write strategy: 0-9 or -1 for the default level. */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /** Bodies smaller than this, before compression, are sent uncompressed by the opennms write strategy. */
+    public int getCompressionMinSizeInBytes() {
+        return compressionMinSizeInBytes;
+    }
+
+    /** Failed writes of the opennms write strategy are spooled to this directory. Empty disables the spool. */
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public int getSpoolSegmentSizeInBytes() {
+        return spoolSegmentSizeInBytes;
+    }
+
+    /** The maximum disk usage of the spool. */
+    public long getSpoolMaxSizeInBytes() {
+        return spoolMaxSizeInBytes;
+    }
+
+    public SpoolEvictionPolicy getSpoolEvictionPolicy() {
+        return spoolEvictionPolicy;
+    }
+
+    /** Spooled samples older than this are not replayed anymore. */
+    public long getSpoolRetentionInMs() {
+        return spoolRetentionInMs;
+    }
+
+    public long getSpoolReplayIntervalInMs() {
+        return spoolReplayIntervalInMs;
+    }
+
+    /** Samples are merged into batches of at most this many samples by the opennms write strategy. */
+    public int getBatchMaxSamples() {
+        return batchMaxSamples;
+    }
+
+    /** The maximum estimated size of the line protocol of a batch. */
+    public long getBatchMaxSizeInBytes() {
+        return batchMaxSizeInBytes;
+    }
+
+    /** How long samples may wait for more samples to be merged into the batch. 0 disables merging. */
+    public long getBatchLingerInMs() {
+        return batchLingerInMs;
+    }
+
+    /** How often a failed write of the opennms write strategy is retried. 0 disables retries. */
+    public int getRetryMaxRetries() {
+        return retryMaxRetries;
+    }
+
+    public long getRetryInitialBackoffInMs() {
+        return retryInitialBackoffInMs;
+    }
+
+    public long getRetryMaxBackoffInMs() {
+        return retryMaxBackoffInMs;
+    }
+
+    /** The maximum number of samples kept in memory while waiting for a retry. */
+    public long getRetryBufferMaxSamples() {
+        return retryBufferMaxSamples;
+    }
+
+    /**
+     * The maximum number of metrics whose encoded series key is cached on the write path. Each entry keeps the Metric
+     * and its encoded key, roughly 2 KiB. 0 disables the cache.
+     */
+    public long getSeriesKeyCacheMaxSize() {
+        return seriesKeyCacheMaxSize;
+    }
+
+    /** Answer findMetrics() from a series index kept in memory instead of querying InfluxDB. */
+    public boolean isSeriesIndexEnabled() {
+        return seriesIndexEnabled;
+    }
+
+    /** The file the series index is persisted to. If empty the index is rebuilt from InfluxDB on every start. */
+    public String getSeriesIndexFile() {
+        return seriesIndexFile;
+    }
+
+    /** How often a changed series index is written to the seriesIndexFile. */
+    public long getSeriesIndexSnapshotIntervalInMs() {
+        return seriesIndexSnapshotIntervalInMs;
+    }
+
+    /** How findMetrics() queries InfluxDB when the series index isn't used. */
+    public FindMetricsStrategy getFindMetricsStrategy() {
+        return findMetricsStrategy;
+    }
+
+    /** How far back findMetrics() looks for series in InfluxDB. */
+    public long getFindMetricsLookbackInMs() {
+        return findMetricsLookbackInMs;
+    }
+
+    /** The memory the getTimeseries() cache may hold. 0 disables the cache. */
+    public long getReadCacheMaxSizeInBytes() {
+        return readCacheMaxSizeInBytes;
+    }
+
+    /** The time span of the chunks the getTimeseries() cache holds. */
+    public long getReadCacheChunkDurationInMs() {
+        return readCacheChunkDurationInMs;
+    }
+
+    /** Samples younger than this may still be written, they are always read from InfluxDB. */
+    public long getReadCacheSettleTimeInMs() {
+        return readCacheSettleTimeInMs;
+    }
+
+    /** The maximum number of series of a resource that are fetched with a single query by the batch getTimeseries(). */
+    public int getFetchBatchMaxSeries() {
+        return fetchBatchMaxSeries;
+    }
+
+    /** The maximum number of queries the batch getTimeseries() runs in parallel. */
+    public int getFetchParallelism() {
+        return fetchParallelism;
+    }
+
+    /** The maximum number of Metrics restored from query results that are interned. 0 disables the cache. */
+    public long getMetricCacheMaxSize() {
+        return metricCacheMaxSize;
+    }
+
+    /**
+     * The maximum number of samples accepted but not yet written, storeAsync() rejects writes beyond it and store() waits
+     * for up to maxPendingWaitInMs. 0 means no limit, store() never waits then.
+     */
+    public long getMaxPendingSamples() {
+        return maxPendingSamples;
+    }
+
+    /** Adapt the number of concurrent write requests to the latency of InfluxDB. Disabled by default, the limit is then fixed to its maximum. */
+    public boolean isAdaptiveConcurrencyEnabled() {
+        return adaptiveConcurrencyEnabled;
+    }
+
+    /** The lower bound of the adaptive concurrency limit. */
+    public int getConcurrencyLimitMin() {
+        return concurrencyLimitMin;
+    }
+
+    /** The upper bound of the adaptive concurrency limit. 0 means maxConcurrentHttpConnections * 6. */
+    public int getConcurrencyLimitMax() {
+        return concurrencyLimitMax;
+    }
+
+    /** The number of points each InfluxDB node gets on the hash ring when several urls are configured. */
+    public int getShardVirtualNodes() {
+        return shardVirtualNodes;
+    }
+
+    /** How the queries are balanced across the read replicas of a node. */
+    public ReadBalancingStrategy getReadBalancingStrategy() {
+        return readBalancingStrategy;
+    }
+
+    /** A query which takes longer than this percentile of the query latency is sent to a second replica as well, the first answer wins. 0 disables hedging. */
+    public double getReadHedgePercentile() {
+        return readHedgePercentile;
+    }
+
+    /** The minimum time to wait for an answer before a query is hedged. */
+    public long getReadHedgeMinDelayInMs() {
+        return readHedgeMinDelayInMs;
+    }
+
+    /** How long deletes are queued to be merged with the other deletes of their resource. */
+    public long getDeleteLingerInMs() {
+        return deleteLingerInMs;
+    }
+
+    /** The maximum number of resources deleted at the same time. */
+    public int getDeleteParallelism() {
+        return deleteParallelism;
+    }
+
+    /** Deletes only the samples of the last deleteLookbackInMs, e.g. the retention of the bucket. 0 deletes all samples. */
+    public long getDeleteLookbackInMs() {
+        return deleteLookbackInMs;
+    }
+
+    /** Exports the statistics of the writers, readers and caches via JMX. */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * The precision of the HyperLogLog sketches which estimate the series per measurement and the values per tag key,
+     * 0 disables the tracking. The cardinalities are only tracked if one of the limits is set.
+     */
+    public int getCardinalityPrecision() {
+        return cardinalityPrecision;
+    }
+
+    /** The estimated number of series a measurement may have, 0 is unlimited. */
+    public long getCardinalityMaxSeriesPerMeasurement() {
+        return cardinalityMaxSeriesPerMeasurement;
+    }
+
+    /** The estimated number of values a meta or external tag key may have, 0 is unlimited. */
+    public long getCardinalityMaxValuesPerTagKey() {
+        return cardinalityMaxValuesPerTagKey;
+    }
+
+    /** What to do with samples beyond a cardinality limit. */
+    public CardinalityLimitAction getCardinalityLimitAction() {
+        return cardinalityLimitAction;
+    }
+
+    /** How the meta and external tags are stored, e.g. 'external=field,meta_ifAlias=field', see {@link TagStoragePolicy}. Empty stores all of them as tags. */
+    public String getTagStoragePolicy() {
+        return tagStoragePolicy;
+    }
+
+    /**
+     * How long closing the opennms writer waits for the pending samples to be written, the rest is spooled for the next
+     * writer. Without a spool the requests get up to the read timeout more, then the rest is lost. Closing the storage
+     * waits as long for the queued deletes.
+     */
+    public long getCloseDrainTimeoutInMs() {
+        return closeDrainTimeoutInMs;
+    }
+
+    /** The number of connections the opennms writer opens when created, it waits for them up to a second. 0 opens them on demand. */
+    public int getConnectionPoolWarmupCount() {
+        return connectionPoolWarmupCount;
+    }
+
+    /** How long delete() waits for the queued deletes of the metric to be done, deleteAsync() doesn't wait. */
+    public long getDeleteTimeoutInMs() {
+        return deleteTimeoutInMs;
+    }
+
+    /** How long store() waits while maxPendingSamples are pending. Its samples are spooled afterwards, without a spool it fails with a BackpressureException. */
+    public long getMaxPendingWaitInMs() {
+        return maxPendingWaitInMs;
+    }
+
+    /** How long the getTimeseries() cache keeps the chunks of a series before it reads them again, 0 keeps them until they are evicted. Bounds how long samples written late by others stay invisible. */
+    public long getReadCacheTimeToLiveInMs() {
+        return readCacheTimeToLiveInMs;
+    }
+
     @Override
     public String toString() {
         return new StringJoiner(", ", InfluxdbConfig.class.getSimpleName() + "[", "]")
@@ -101,6 +608,55 @@ public class InfluxdbConfig {
                 .add("writeTimeoutInMs=" + writeTimeoutInMs)
                 .add("readTimeoutInMs=" + readTimeoutInMs)
                 .add("bulkheadMaxWaitDurationInMs=" + bulkheadMaxWaitDurationInMs)
+                .add("compressionLevel=" + compressionLevel)
+                .add("compressionMinSizeInBytes=" + compressionMinSizeInBytes)
+                .add("spoolDirectory='" + spoolDirectory + "'")
+                .add("spoolSegmentSizeInBytes=" + spoolSegmentSizeInBytes)
+                .add("spoolMaxSizeInBytes=" + spoolMaxSizeInBytes)
+                .add("spoolEvictionPolicy=" + spoolEvictionPolicy)
+                .add("spoolRetentionInMs=" + spoolRetentionInMs)
+                .add("spoolReplayIntervalInMs=" + spoolReplayIntervalInMs)
+                .add("batchMaxSamples=" + batchMaxSamples)
+                .add("batchMaxSizeInBytes=" + batchMaxSizeInBytes)
+                .add("batchLingerInMs=" + batchLingerInMs)
+                .add("retryMaxRetries=" + retryMaxRetries)
+                .add("retryInitialBackoffInMs=" + retryInitialBackoffInMs)
+                .add("retryMaxBackoffInMs=" + retryMaxBackoffInMs)
+                .add("retryBufferMaxSamples=" + retryBufferMaxSamples)
+                .add("seriesKeyCacheMaxSize=" + seriesKeyCacheMaxSize)
+                .add("seriesIndexEnabled=" + seriesIndexEnabled)
+                .add("seriesIndexFile='" + seriesIndexFile + "'")
+                .add("seriesIndexSnapshotIntervalInMs=" + seriesIndexSnapshotIntervalInMs)
+                .add("findMetricsStrategy=" + findMetricsStrategy)
+                .add("findMetricsLookbackInMs=" + findMetricsLookbackInMs)
+                .add("readCacheMaxSizeInBytes=" + readCacheMaxSizeInBytes)
+                .add("readCacheChunkDurationInMs=" + readCacheChunkDurationInMs)
+                .add("readCacheSettleTimeInMs=" + readCacheSettleTimeInMs)
+                .add("fetchBatchMaxSeries=" + fetchBatchMaxSeries)
+                .add("fetchParallelism=" + fetchParallelism)
+                .add("metricCacheMaxSize=" + metricCacheMaxSize)
+                .add("maxPendingSamples=" + maxPendingSamples)
+                .add("adaptiveConcurrencyEnabled=" + adaptiveConcurrencyEnabled)
+                .add("concurrencyLimitMin=" + concurrencyLimitMin)
+                .add("concurrencyLimitMax=" + concurrencyLimitMax)
+                .add("shardVirtualNodes=" + shardVirtualNodes)
+                .add("readBalancingStrategy=" + readBalancingStrategy)
+                .add("readHedgePercentile=" + readHedgePercentile)
+                .add("readHedgeMinDelayInMs=" + readHedgeMinDelayInMs)
+                .add("deleteLingerInMs=" + deleteLingerInMs)
+                .add("deleteParallelism=" + deleteParallelism)
+                .add("deleteLookbackInMs=" + deleteLookbackInMs)
+                .add("jmxEnabled=" + jmxEnabled)
+                .add("cardinalityPrecision=" + cardinalityPrecision)
+                .add("cardinalityMaxSeriesPerMeasurement=" + cardinalityMaxSeriesPerMeasurement)
+                .add("cardinalityMaxValuesPerTagKey=" + cardinalityMaxValuesPerTagKey)
+                .add("cardinalityLimitAction=" + cardinalityLimitAction)
+                .add("tagStoragePolicy='" + tagStoragePolicy + "'")
+                .add("closeDrainTimeoutInMs=" + closeDrainTimeoutInMs)
+                .add("connectionPoolWarmupCount=" + connectionPoolWarmupCount)
+                .add("deleteTimeoutInMs=" + deleteTimeoutInMs)
+                .add("maxPendingWaitInMs=" + maxPendingWaitInMs)
+                .add("readCacheTimeToLiveInMs=" + readCacheTimeToLiveInMs)
                 .toString();
     }
 
@@ -120,6 +676,55 @@ public class InfluxdbConfig {
         private long writeTimeoutInMs = 1000;
         private long readTimeoutInMs = 1000;
         private long bulkheadMaxWaitDurationInMs = Long.MAX_VALUE;
+        private int compressionLevel = -1;
+        private int compressionMinSizeInBytes = 1024;
+        private String spoolDirectory = "";
+        private int spoolSegmentSizeInBytes = 16 * 1024 * 1024;
+        private long spoolMaxSizeInBytes = 1024L * 1024 * 1024;
+        private SpoolEvictionPolicy spoolEvictionPolicy = SpoolEvictionPolicy.dropOldest;
+        private long spoolRetentionInMs = 24 * 60 * 60 * 1000L;
+        private long spoolReplayIntervalInMs = 10000;
+        private int batchMaxSamples = 5000;
+        private long batchMaxSizeInBytes = 1024 * 1024;
+        private long batchLingerInMs = 50;
+        private int retryMaxRetries = 3;
+        private long retryInitialBackoffInMs = 500;
+        private long retryMaxBackoffInMs = 30000;
+        private long retryBufferMaxSamples = 500000;
+        private long seriesKeyCacheMaxSize = 0;
+        private boolean seriesIndexEnabled = false;
+        private String seriesIndexFile = "";
+        private long seriesIndexSnapshotIntervalInMs = 300000;
+        private FindMetricsStrategy findMetricsStrategy = FindMetricsStrategy.metadata;
+        private long findMetricsLookbackInMs = 5L * 365 * 24 * 60 * 60 * 1000;
+        private long readCacheMaxSizeInBytes = 0;
+        private long readCacheChunkDurationInMs = 3600000;
+        private long readCacheSettleTimeInMs = 300000;
+        private int fetchBatchMaxSeries = 20;
+        private int fetchParallelism = 4;
+        private long metricCacheMaxSize = 100000;
+        private long maxPendingSamples = 1000000;
+        private boolean adaptiveConcurrencyEnabled = false;
+        private int concurrencyLimitMin = 10;
+        private int concurrencyLimitMax = 0;
+        private int shardVirtualNodes = 128;
+        private ReadBalancingStrategy readBalancingStrategy = ReadBalancingStrategy.ewma;
+        private double readHedgePercentile = 0.95;
+        private long readHedgeMinDelayInMs = 20;
+        private long deleteLingerInMs = 100;
+        private int deleteParallelism = 4;
+        private long deleteLookbackInMs = 0;
+        private boolean jmxEnabled = true;
+        private int cardinalityPrecision = 12;
+        private long cardinalityMaxSeriesPerMeasurement = 0;
+        private long cardinalityMaxValuesPerTagKey = 0;
+        private CardinalityLimitAction cardinalityLimitAction = CardinalityLimitAction.warn;
+        private String tagStoragePolicy = "";
+        private long closeDrainTimeoutInMs = 10000;
+        private int connectionPoolWarmupCount = 10;
+        private long deleteTimeoutInMs = 60000;
+        private long maxPendingWaitInMs = 10000;
+        private long readCacheTimeToLiveInMs = 3600000;
 
         public Builder bucket(final String bucket) {
             this.bucket = bucket;
@@ -166,6 +771,251 @@ public class InfluxdbConfig {
             return this;
         }
 
+        public Builder compressionLevel(final int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        public Builder compressionMinSizeInBytes(final int compressionMinSizeInBytes) {
+            this.compressionMinSizeInBytes = compressionMinSizeInBytes;
+            return this;
+        }
+
+        public Builder spoolDirectory(final String spoolDirectory) {
+            this.spoolDirectory = spoolDirectory;
+            return this;
+        }
+
+        public Builder spoolSegmentSizeInBytes(final int spoolSegmentSizeInBytes) {
+            this.spoolSegmentSizeInBytes = spoolSegmentSizeInBytes;
+            return this;
+        }
+
+        public Builder spoolMaxSizeInBytes(final long spoolMaxSizeInBytes) {
+            this.spoolMaxSizeInBytes = spoolMaxSizeInBytes;
+            return this;
+        }
+
+        public Builder spoolEvictionPolicy(final SpoolEvictionPolicy spoolEvictionPolicy) {
+            this.spoolEvictionPolicy = spoolEvictionPolicy;
+            return this;
+        }
+
+        public Builder spoolRetentionInMs(final long spoolRetentionInMs) {
+            this.spoolRetentionInMs = spoolRetentionInMs;
+            return this;
+        }
+
+        public Builder spoolReplayIntervalInMs(final long spoolReplayIntervalInMs) {
+            this.spoolReplayIntervalInMs = spoolReplayIntervalInMs;
+            return this;
+        }
+
+        public Builder batchMaxSamples(final int batchMaxSamples) {
+            this.batchMaxSamples = batchMaxSamples;
+            return this;
+        }
+
+        public Builder batchMaxSizeInBytes(final long batchMaxSizeInBytes) {
+            this.batchMaxSizeInBytes = batchMaxSizeInBytes;
+            return this;
+        }
+
+        public Builder batchLingerInMs(final long batchLingerInMs) {
+            this.batchLingerInMs = batchLingerInMs;
+            return this;
+        }
+
+        public Builder retryMaxRetries(final int retryMaxRetries) {
+            this.retryMaxRetries = retryMaxRetries;
+            return this;
+        }
+
+        public Builder retryInitialBackoffInMs(final long retryInitialBackoffInMs) {
+            this.retryInitialBackoffInMs = retryInitialBackoffInMs;
+            return this;
+        }
+
+        public Builder retryMaxBackoffInMs(final long retryMaxBackoffInMs) {
+            this.retryMaxBackoffInMs = retryMaxBackoffInMs;
+            return this;
+        }
+
+        public Builder retryBufferMaxSamples(final long retryBufferMaxSamples) {
+            this.retryBufferMaxSamples = retryBufferMaxSamples;
+            return this;
+        }
+
+        public Builder seriesKeyCacheMaxSize(final long seriesKeyCacheMaxSize) {
+            this.seriesKeyCacheMaxSize = seriesKeyCacheMaxSize;
+            return this;
+        }
+
+        public Builder seriesIndexEnabled(final boolean seriesIndexEnabled) {
+            this.seriesIndexEnabled = seriesIndexEnabled;
+            return this;
+        }
+
+        public Builder seriesIndexFile(final String seriesIndexFile) {
+            this.seriesIndexFile = seriesIndexFile;
+            return this;
+        }
+
+        public Builder seriesIndexSnapshotIntervalInMs(final long seriesIndexSnapshotIntervalInMs) {
+            this.seriesIndexSnapshotIntervalInMs = seriesIndexSnapshotIntervalInMs;
+            return this;
+        }
+
+        public Builder findMetricsStrategy(final FindMetricsStrategy findMetricsStrategy) {
+            this.findMetricsStrategy = findMetricsStrategy;
+            return this;
+        }
+
+        public Builder findMetricsLookbackInMs(final long findMetricsLookbackInMs) {
+            this.findMetricsLookbackInMs = findMetricsLookbackInMs;
+            return this;
+        }
+
+        public Builder readCacheMaxSizeInBytes(final long readCacheMaxSizeInBytes) {
+            this.readCacheMaxSizeInBytes = readCacheMaxSizeInBytes;
+            return this;
+        }
+
+        public Builder readCacheChunkDurationInMs(final long readCacheChunkDurationInMs) {
+            this.readCacheChunkDurationInMs = readCacheChunkDurationInMs;
+            return this;
+        }
+
+        public Builder readCacheSettleTimeInMs(final long readCacheSettleTimeInMs) {
+            this.readCacheSettleTimeInMs = readCacheSettleTimeInMs;
+            return this;
+        }
+
+        public Builder fetchBatchMaxSeries(final int fetchBatchMaxSeries) {
+            this.fetchBatchMaxSeries = fetchBatchMaxSeries;
+            return this;
+        }
+
+        public Builder fetchParallelism(final int fetchParallelism) {
+            this.fetchParallelism = fetchParallelism;
+            return this;
+        }
+
+        public Builder metricCacheMaxSize(final long metricCacheMaxSize) {
+            this.metricCacheMaxSize = metricCacheMaxSize;
+            return this;
+        }
+
+        public Builder maxPendingSamples(final long maxPendingSamples) {
+            this.maxPendingSamples = maxPendingSamples;
+            return this;
+        }
+
+        public Builder adaptiveConcurrencyEnabled(final boolean adaptiveConcurrencyEnabled) {
+            this.adaptiveConcurrencyEnabled = adaptiveConcurrencyEnabled;
+            return this;
+        }
+
+        public Builder concurrencyLimitMin(final int concurrencyLimitMin) {
+            this.concurrencyLimitMin = concurrencyLimitMin;
+            return this;
+        }
+
+        public Builder concurrencyLimitMax(final int concurrencyLimitMax) {
+            this.concurrencyLimitMax = concurrencyLimitMax;
+            return this;
+        }
+
+        public Builder shardVirtualNodes(final int shardVirtualNodes) {
+            this.shardVirtualNodes = shardVirtualNodes;
+            return this;
+        }
+
+        public Builder readBalancingStrategy(final ReadBalancingStrategy readBalancingStrategy) {
+            this.readBalancingStrategy = readBalancingStrategy;
+            return this;
+        }
+
+        public Builder readHedgePercentile(final double readHedgePercentile) {
+            this.readHedgePercentile = readHedgePercentile;
+            return this;
+        }
+
+        public Builder readHedgeMinDelayInMs(final long readHedgeMinDelayInMs) {
+            this.readHedgeMinDelayInMs = readHedgeMinDelayInMs;
+            return this;
+        }
+
+        public Builder deleteLingerInMs(final long deleteLingerInMs) {
+            this.deleteLingerInMs = deleteLingerInMs;
+            return this;
+        }
+
+        public Builder deleteParallelism(final int deleteParallelism) {
+            this.deleteParallelism = deleteParallelism;
+            return this;
+        }
+
+        public Builder deleteLookbackInMs(final long deleteLookbackInMs) {
+            this.deleteLookbackInMs = deleteLookbackInMs;
+            return this;
+        }
+
+        public Builder jmxEnabled(final boolean jmxEnabled) {
+            this.jmxEnabled = jmxEnabled;
+            return this;
+        }
+
+        public Builder cardinalityPrecision(final int cardinalityPrecision) {
+            this.cardinalityPrecision = cardinalityPrecision;
+            return this;
+        }
+
+        public Builder cardinalityMaxSeriesPerMeasurement(final long cardinalityMaxSeriesPerMeasurement) {
+            this.cardinalityMaxSeriesPerMeasurement = cardinalityMaxSeriesPerMeasurement;
+            return this;
+        }
+
+        public Builder cardinalityMaxValuesPerTagKey(final long cardinalityMaxValuesPerTagKey) {
+            this.cardinalityMaxValuesPerTagKey = cardinalityMaxValuesPerTagKey;
+            return this;
+        }
+
+        public Builder cardinalityLimitAction(final CardinalityLimitAction cardinalityLimitAction) {
+            this.cardinalityLimitAction = cardinalityLimitAction;
+            return this;
+        }
+
+        public Builder tagStoragePolicy(final String tagStoragePolicy) {
+            this.tagStoragePolicy = tagStoragePolicy;
+            return this;
+        }
+
+        public Builder closeDrainTimeoutInMs(final long closeDrainTimeoutInMs) {
+            this.closeDrainTimeoutInMs = closeDrainTimeoutInMs;
+            return this;
+        }
+
+        public Builder connectionPoolWarmupCount(final int connectionPoolWarmupCount) {
+            this.connectionPoolWarmupCount = connectionPoolWarmupCount;
+            return this;
+        }
+
+        public Builder deleteTimeoutInMs(final long deleteTimeoutInMs) {
+            this.deleteTimeoutInMs = deleteTimeoutInMs;
+            return this;
+        }
+
+        public Builder maxPendingWaitInMs(final long maxPendingWaitInMs) {
+            this.maxPendingWaitInMs = maxPendingWaitInMs;
+            return this;
+        }
+
+        public Builder readCacheTimeToLiveInMs(final long readCacheTimeToLiveInMs) {
+            this.readCacheTimeToLiveInMs = readCacheTimeToLiveInMs;
+            return this;
+        }
+
         public InfluxdbConfig build() {
             return new InfluxdbConfig(this);
         }
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+/** InfluxDB answered with a non 2xx status code. */
+public class InfluxdbHttpException extends StorageException {
+
+    private final int statusCode;
+    private final long retryAfterInMs;
+
+    public InfluxdbHttpException(final int statusCode, final String message) {
+        this(statusCode, -1, message);
+    }
+
+    public InfluxdbHttpException(final int statusCode, final long retryAfterInMs, final String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterInMs = retryAfterInMs;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /** The delay requested by the Retry-After header or -1 if there was none. */
+    public long getRetryAfterInMs() {
+        return retryAfterInMs;
+    }
+
+    /**
+     * Parses the value of a Retry-After header which can either be a number of seconds or a http date.
+     *
+     * @return the delay in ms or -1 if the header is missing or invalid.
+     */
+    public static long parseRetryAfter(final String retryAfter, final Instant now) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Duration.ofSeconds(Long.parseLong(retryAfter.trim())).toMillis());
+        } catch (NumberFormatException | ArithmeticException e) {
+            // not a number, try the date format
+        }
+        try {
+            final Instant retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return Math.max(0, Duration.between(now, retryAt).toMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Client errors (e.g. a malformed line protocol) will fail again when repeated, except for 408 (Request Timeout) and
+     * 429 (Too Many Requests).
+     */
+    public boolean isPermanent() {
+        return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
+    }
+}
@@ -30,33 +30,60 @@ package org.opennms.timeseries.impl.influxdb;
 
 import static org.opennms.integration.api.v1.timeseries.TagMatcher.Type.NOT_EQUALS;
 import static org.opennms.integration.api.v1.timeseries.TagMatcher.Type.NOT_EQUALS_REGEX;
-import static org.opennms.timeseries.impl.influxdb.TransformUtil.metricKeyToInflux;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
 import org.opennms.integration.api.v1.timeseries.Metric;
 import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
 import org.opennms.integration.api.v1.timeseries.Tag;
 import org.opennms.integration.api.v1.timeseries.TagMatcher;
 import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
 import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
-import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
-import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTag;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jmx.JmxReporter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.influxdb.client.DeleteApi;
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
@@ -64,11 +91,7 @@ import com.influxdb.client.InfluxDBClientOptions;
 import com.influxdb.client.QueryApi;
 import com.influxdb.client.WriteApi;
 import com.influxdb.client.WriteApiBlocking;
-import com.influxdb.client.domain.DeletePredicateRequest;
 import com.influxdb.client.domain.WritePrecision;
-import com.influxdb.client.write.Point;
-import com.influxdb.query.FluxRecord;
-import com.influxdb.query.FluxTable;
 
 /**
  * Implementation of TimeSeriesStorage that uses InfluxdbStorage.
@@ -79,90 +102,375 @@ import com.influxdb.query.FluxTable;
  */
 public class InfluxdbStorage implements TimeSeriesStorage {
     private static final Logger LOG = LoggerFactory.getLogger(InfluxdbStorage.class);
-    private final static DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneId.of("UTC"));
     private final static String TAG_RESOURCE_ID = Metric.TagType.intrinsic.name() + "_" + IntrinsicTagNames.resourceId;
     private final static String TAG_NAME = Metric.TagType.intrinsic.name() + "_" + IntrinsicTagNames.name;
+    static final String JMX_DOMAIN = "org.opennms.timeseries.influxdb";
 
     private final InfluxdbConfig config;
-    private final InfluxDBClient influxDBClient;
-    private final WriterWrapper writeApi;
-    private final QueryApi queryApi;
-    private final DeleteApi deleteApi;
+    private final SeriesKeyCache seriesKeyCache;
+    private final LineProtocolEncoder encoder;
+    private final TagStoragePolicy tagStoragePolicy;
+    private final ConsistentHashRing<Shard> shards;
+    private final ScheduledExecutorService hedgeScheduler;
+    private final SeriesIndex seriesIndex;
+    private final ScheduledExecutorService seriesIndexExecutor;
+    private final TimeseriesCache readCache;
+    private final MetricFactory metricFactory;
+    private final ExecutorService fetchExecutor;
+    private final FetchBatcher fetchBatcher;
+    private final MetricDeleter deleter;
+    private final CardinalityGuard cardinalityGuard;
+
+    /** The statistics of the storage and of all its parts, the writers of the opennms strategy, the caches etc. */
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Timer storeTimer = registry.timer("store");
+    private final Histogram storeBatchSize = registry.histogram("storeBatchSize");
+    private final Timer findMetricsTimer = registry.timer("findMetrics");
+    private final Timer getTimeseriesTimer = registry.timer("getTimeseries");
+    private final Timer getTimeseriesBatchTimer = registry.timer("getTimeseriesBatch");
+    private final Histogram queryRows = registry.histogram("queryRows");
+    private final Histogram queryBytes = registry.histogram("queryBytes");
+    /** The writes and encoded bytes of the blocking and nonblocking strategies, the opennms strategy has its own. */
+    private final Timer clientWrites;
+    private final Meter clientBytesEncoded;
+    private final JmxReporter jmxReporter;
 
     public InfluxdbStorage(final InfluxdbConfig config) {
         this.config = config;
+        this.seriesKeyCache = config.getSeriesKeyCacheMaxSize() > 0 ? new SeriesKeyCache(config.getSeriesKeyCacheMaxSize()) : null;
+        this.tagStoragePolicy = TagStoragePolicy.parse(config.getTagStoragePolicy());
+        this.encoder = new LineProtocolEncoder(seriesKeyCache, tagStoragePolicy);
+        if (InfluxdbConfig.WriteStrategy.opennms != config.getWriteStrategy()) {
+            this.clientWrites = registry.timer("clientWrites");
+            this.clientBytesEncoded = registry.meter("clientBytesEncoded");
+        } else {
+            this.clientWrites = null;
+            this.clientBytesEncoded = null;
+        }
+
+        final List<List<String>> nodeUrls = config.getNodeUrls();
+        final List<String> urls = config.getUrls();
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No InfluxDB url configured.");
+        }
+        this.hedgeScheduler = config.getReadHedgePercentile() > 0 && nodeUrls.stream().anyMatch(replicas -> replicas.size() > 1)
+                ? Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("influxdb-read-hedge-%d")
+                        .setDaemon(true)
+                        .build())
+                : null;
+        final List<Shard> nodes = new ArrayList<>(urls.size());
+        for (List<String> replicaUrls : nodeUrls) {
+            // each node gets its own spool, a node that is down must not block the replay of the others
+            final String spoolDirectory = urls.size() > 1 && !config.getSpoolDirectory().isEmpty()
+                    ? Paths.get(config.getSpoolDirectory(), toSpoolDirectoryName(replicaUrls.get(0))).toString()
+                    : config.getSpoolDirectory();
+            nodes.add(createShard(replicaUrls, spoolDirectory, urls.size() > 1 ? MetricRegistry.name("shard", replicaUrls.get(0)) : null));
+        }
+        this.shards = new ConsistentHashRing<>(nodes, urls, config.getShardVirtualNodes());
+
+        if (config.isSeriesIndexEnabled()) {
+            this.seriesIndex = new SeriesIndex();
+            this.seriesIndexExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("influxdb-series-index-%d")
+                    .setDaemon(true)
+                    .build());
+            seriesIndexExecutor.execute(this::initSeriesIndex);
+            if (!config.getSeriesIndexFile().isEmpty()) {
+                seriesIndexExecutor.scheduleWithFixedDelay(this::saveSeriesIndex, config.getSeriesIndexSnapshotIntervalInMs(),
+                        config.getSeriesIndexSnapshotIntervalInMs(), TimeUnit.MILLISECONDS);
+            }
+        } else {
+            this.seriesIndex = null;
+            this.seriesIndexExecutor = null;
+        }
 
+        this.readCache = config.getReadCacheMaxSizeInBytes() > 0
+                ? new TimeseriesCache(config.getReadCacheMaxSizeInBytes(), config.getReadCacheChunkDurationInMs(),
+                        config.getReadCacheSettleTimeInMs(), config.getReadCacheTimeToLiveInMs())
+                : null;
+        this.metricFactory = new MetricFactory(config.getMetricCacheMaxSize());
+        this.fetchExecutor = Executors.newFixedThreadPool(Math.max(1, config.getFetchParallelism()), new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-fetch-%d")
+                .setDaemon(true)
+                .build());
+        this.fetchBatcher = new FetchBatcher(config.getFetchBatchMaxSeries(), this::getShardIndex);
+
+        this.deleter = new MetricDeleter(config.getDeleteLingerInMs(), config.getDeleteParallelism(), this::deleteResource);
+        // without a limit the sketches would be updated with every sample for nothing but the cardinality command
+        final boolean cardinalityLimited = config.getCardinalityMaxSeriesPerMeasurement() > 0 || config.getCardinalityMaxValuesPerTagKey() > 0;
+        this.cardinalityGuard = config.getCardinalityPrecision() > 0 && cardinalityLimited
+                ? new CardinalityGuard(config.getCardinalityPrecision(), config.getCardinalityMaxSeriesPerMeasurement(),
+                        config.getCardinalityMaxValuesPerTagKey(), config.getCardinalityLimitAction(), tagStoragePolicy,
+                        seriesIndex != null ? metric -> !seriesIndex.isReady() || seriesIndex.contains(metric) : null)
+                : null;
+
+        if (seriesKeyCache != null) {
+            registry.registerAll(seriesKeyCache.getMetrics());
+        }
+        if (readCache != null) {
+            registry.registerAll(readCache.getMetrics());
+        }
+        registry.registerAll(metricFactory.getMetrics());
+        registry.registerAll(deleter.getMetrics());
+        if (cardinalityGuard != null) {
+            registry.registerAll(cardinalityGuard.getMetrics());
+        }
+        if (config.isJmxEnabled()) {
+            this.jmxReporter = JmxReporter.forRegistry(registry).inDomain(JMX_DOMAIN).build();
+            jmxReporter.start();
+        } else {
+            this.jmxReporter = null;
+        }
+
+        LOG.info("Successfully initialized InfluxDB client for {}.", nodeUrls);
+    }
+
+    private InfluxDBClient createClient(final String url) {
         InfluxDBClientOptions options = InfluxDBClientOptions.builder()
                 .bucket(config.getBucket())
                 .org(config.getOrg())
-                .url(config.getUrl())
+                .url(url)
                 .authenticateToken(config.getToken().toCharArray())
                 .build();
-        influxDBClient = InfluxDBClientFactory.create(options);
+        return InfluxDBClientFactory.create(options);
+    }
 
-        // Fetch the APIs once during init, some of these require to be closed
-        queryApi = influxDBClient.getQueryApi();
-        deleteApi = influxDBClient.getDeleteApi();
+    /**
+     * Creates the client and writer of a node. The samples are written to the first url, the replicas are expected to
+     * be mirrored from it.
+     *
+     * @param metricPrefix the prefix of the statistics of the node, null if there is a single node
+     */
+    private Shard createShard(final List<String> replicaUrls, final String spoolDirectory, final String metricPrefix) {
+        final String url = replicaUrls.get(0);
+        final List<InfluxDBClient> clients = new ArrayList<>(replicaUrls.size());
+        for (String replicaUrl : replicaUrls) {
+            clients.add(createClient(replicaUrl));
+        }
+        final InfluxDBClient influxDBClient = clients.get(0);
 
-        this.writeApi = new WriterWrapper();
+        final WriterWrapper writeApi = new WriterWrapper();
         if (InfluxdbConfig.WriteStrategy.blocking == config.getWriteStrategy()) {
             WriteApiBlocking w = influxDBClient.getWriteApiBlocking();
-            this.writeApi.setWriter(w::writePoints);
-            this.writeApi.setCloser(() -> {}); // do nothing
+            writeApi.setWriter(samples -> writeRecords(samples, records -> w.writeRecord(WritePrecision.MS, records)));
+            writeApi.setCloser(() -> {}); // do nothing
         } else if (InfluxdbConfig.WriteStrategy.opennms == config.getWriteStrategy()) {
-            InfluxdbWriter w = new InfluxdbWriter(config);
-            this.writeApi.setWriter(w::writePoints);
-            this.writeApi.setCloser(() -> {}); // do nothing
+            InfluxdbWriter w = new InfluxdbWriter(config, url, spoolDirectory, encoder);
+            registry.registerAll(metricPrefix, w.getMetrics());
+            writeApi.setWriter(w::write);
+            writeApi.setAsyncWriter(w::writeAsync, w::getAvailableCapacity, w::whenCapacityAvailable);
+            writeApi.setCloser(w::close);
         } else {
             WriteApi w = influxDBClient.getWriteApi();
-            this.writeApi.setWriter(w::writePoints);
-            this.writeApi.setCloser(w::close);
+            writeApi.setWriter(samples -> writeRecords(samples, records -> w.writeRecord(WritePrecision.MS, records)));
+            writeApi.setCloser(w::close);
         }
+        final ReadReplicas<QueryApi> replicas = new ReadReplicas<>(replicaUrls,
+                clients.stream().map(InfluxDBClient::getQueryApi).collect(Collectors.toList()),
+                config.getReadBalancingStrategy(),
+                config.getReadHedgePercentile(),
+                config.getReadHedgeMinDelayInMs(),
+                config.getReadTimeoutInMs(),
+                hedgeScheduler);
+        registry.registerAll(MetricRegistry.name(metricPrefix, "read"), replicas.getMetrics());
+        return new Shard(url, clients, replicas, writeApi);
+    }
+
+    private static String toSpoolDirectoryName(final String url) {
+        return url.replaceFirst("^[a-zA-Z]+://", "").replaceAll("[^a-zA-Z0-9.-]", "_");
+    }
+
+    /** The statistics of the storage, see the stats command. */
+    public MetricRegistry getMetrics() {
+        return registry;
+    }
 
-        LOG.info("Successfully initialized InfluxDB client.");
+    /** The estimated cardinalities, null if they aren't tracked, i.e. no cardinality limit is set. */
+    public CardinalityGuard getCardinalityGuard() {
+        return cardinalityGuard;
     }
 
+    /**
+     * Stops the storage, e.g. when the configuration is reloaded. The writers of the opennms strategy drain their
+     * pending samples for up to closeDrainTimeoutInMs and spool the rest for the next instance. Stores fail afterwards.
+     */
     public void destroy() {
-        writeApi.close();
-        influxDBClient.close();
+        if (jmxReporter != null) {
+            jmxReporter.stop();
+        }
+        deleter.close(config.getCloseDrainTimeoutInMs());
+        fetchExecutor.shutdownNow();
+        if (hedgeScheduler != null) {
+            hedgeScheduler.shutdownNow();
+        }
+        if (seriesIndexExecutor != null) {
+            seriesIndexExecutor.shutdownNow();
+            try {
+                // a periodic save or a rebuild may still be running, the final save must not race with it
+                if (!seriesIndexExecutor.awaitTermination(config.getReadTimeoutInMs(), TimeUnit.MILLISECONDS)) {
+                    LOG.warn("The series index is still being saved or rebuilt, saving it anyway.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            saveSeriesIndex();
+        }
+        closeShards();
     }
 
+    /** Closes the shards in parallel, each writer may take up to closeDrainTimeoutInMs to drain. */
+    private void closeShards() {
+        if (shards.size() == 1) {
+            shards.getNodes().get(0).close();
+            return;
+        }
+        final ExecutorService closer = Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-close-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            CompletableFuture.allOf(shards.getNodes().stream()
+                    .map(shard -> CompletableFuture.runAsync(shard::close, closer))
+                    .toArray(CompletableFuture[]::new))
+                    .join();
+        } catch (CompletionException e) {
+            LOG.warn("Could not close all shards.", e.getCause());
+        } finally {
+            closer.shutdown();
+        }
+    }
+
+    /**
+     * Stores the samples. With the opennms write strategy this waits for up to maxPendingWaitInMs while too many samples
+     * are pending, then spools the samples or fails with a {@link BackpressureException}.
+     */
     @Override
-    public void store(List<Sample> samples) {
-        List<Point> points = new ArrayList<>(samples.size());
-        for (Sample sample : samples) {
-            Point point = Point
-                    .measurement(metricKeyToInflux(sample.getMetric().getFirstTagByKey(IntrinsicTagNames.name).getValue()))
-                    .addField("value", sample.getValue())
-                    .time(sample.getTime().toEpochMilli(), WritePrecision.MS);
-            storeTags(point, ImmutableMetric.TagType.intrinsic, sample.getMetric().getIntrinsicTags());
-            storeTags(point, ImmutableMetric.TagType.meta, sample.getMetric().getMetaTags());
-            storeTags(point, ImmutableMetric.TagType.external, sample.getMetric().getExternalTags());
-            points.add(point);
+    public void store(List<Sample> samples) throws StorageException {
+        if (cardinalityGuard != null) {
+            samples = cardinalityGuard.apply(samples);
+        }
+        storeBatchSize.update(samples.size());
+        try (Timer.Context ignored = storeTimer.time()) {
+            if (seriesIndex != null) {
+                seriesIndex.addAll(samples);
+            }
+            if (readCache != null) {
+                readCache.invalidateLateSamples(samples);
+            }
+            if (shards.size() == 1) {
+                shards.getNodes().get(0).writeApi.write(samples);
+                return;
+            }
+            final List<List<Sample>> samplesByShard = partitionByShard(samples);
+            for (int i = 0; i < samplesByShard.size(); i++) {
+                if (!samplesByShard.get(i).isEmpty()) {
+                    shards.getNodes().get(i).writeApi.write(samplesByShard.get(i));
+                }
+            }
         }
-        writeApi.writePoints(points);
     }
 
-    private void storeTags(final Point point, final ImmutableMetric.TagType tagType, final Collection<Tag> tags) {
-        for (final Tag tag : tags) {
-            String value = tag.getValue();
-            point.addTag(toClassifiedTagKey(tagType, tag), value);
+    /**
+     * Stores the samples without blocking. The returned stage completes once the samples were written, or spooled,
+     * and fails with a {@link BackpressureException} if too many samples are pending. Only the opennms write strategy
+     * writes asynchronously, the other strategies store the samples right away.
+     */
+    public CompletionStage<Void> storeAsync(List<Sample> samples) {
+        if (cardinalityGuard != null) {
+            samples = cardinalityGuard.apply(samples);
+        }
+        storeBatchSize.update(samples.size());
+        if (seriesIndex != null) {
+            seriesIndex.addAll(samples);
+        }
+        if (readCache != null) {
+            readCache.invalidateLateSamples(samples);
+        }
+        if (shards.size() == 1) {
+            return shards.getNodes().get(0).writeApi.writeAsync(samples);
+        }
+        final List<List<Sample>> samplesByShard = partitionByShard(samples);
+        final List<CompletableFuture<Void>> writes = new ArrayList<>(samplesByShard.size());
+        for (int i = 0; i < samplesByShard.size(); i++) {
+            if (!samplesByShard.get(i).isEmpty()) {
+                writes.add(shards.getNodes().get(i).writeApi.writeAsync(samplesByShard.get(i)).toCompletableFuture());
+            }
         }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]));
     }
 
-    private String toClassifiedTagKey(final ImmutableMetric.TagType tagType, final TagMatcher tag) {
-        return tagType.name() + "_" + tag.getKey();
+    /** The number of samples storeAsync() accepts right now, the node with the least capacity is the limit. */
+    public long getAvailableCapacity() {
+        long capacity = Long.MAX_VALUE;
+        for (Shard shard : shards.getNodes()) {
+            capacity = Math.min(capacity, shard.writeApi.getAvailableCapacity());
+        }
+        return capacity;
+    }
+
+    /** Returns a stage which completes as soon as storeAsync() accepts samples again. */
+    public CompletionStage<Void> whenCapacityAvailable() {
+        if (shards.size() == 1) {
+            return shards.getNodes().get(0).writeApi.whenCapacityAvailable();
+        }
+        return CompletableFuture.allOf(shards.getNodes().stream()
+                .map(shard -> shard.writeApi.whenCapacityAvailable().toCompletableFuture())
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /** Splits the samples by the node owning their series, the list at index i belongs to the node i. */
+    private List<List<Sample>> partitionByShard(final List<Sample> samples) {
+        final List<List<Sample>> samplesByShard = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            samplesByShard.add(new ArrayList<>(samples.size() / shards.size() + 1));
+        }
+        for (Sample sample : samples) {
+            samplesByShard.get(getShardIndex(sample.getMetric())).add(sample);
+        }
+        return samplesByShard;
+    }
+
+    private int getShardIndex(final Metric metric) {
+        final Tag resourceId = metric.getFirstTagByKey(IntrinsicTagNames.resourceId);
+        return shards.getIndex(resourceId != null ? resourceId.getValue() : null, getName(metric));
+    }
+
+    private Shard getShard(final Metric metric) {
+        return shards.getNodes().get(getShardIndex(metric));
+    }
+
+    /** The client write apis accept multiple lines as one record, this saves us from creating a String per sample. */
+    private void writeRecords(final List<Sample> samples, final Consumer<String> writer) {
+        final String records = encoder.encodeToString(samples);
+        if (!records.isEmpty()) {
+            // line protocol is mostly ASCII, the length is close enough to the encoded size
+            clientBytesEncoded.mark(records.length());
+            try (Timer.Context ignored = clientWrites.time()) {
+                writer.accept(records);
+            }
+        }
     }
 
-    private String toClassifiedTagKey(final ImmutableMetric.TagType tagType, final Tag tag) {
-        return tagType.name() + "_" + tag.getKey();
+    private String toClassifiedTagKey(final ImmutableMetric.TagType tagType, final TagMatcher tag) {
+        return LineProtocolEncoder.toClassifiedTagPrefix(tagType) + tag.getKey();
     }
 
     @Override
-    public List<Metric> findMetrics(Collection<TagMatcher> matchers) {
+    public List<Metric> findMetrics(Collection<TagMatcher> matchers) throws StorageException {
         if (matchers.isEmpty()) {
             throw new IllegalArgumentException("Collection<TagMatcher> can not be empty");
         }
+        try (Timer.Context ignored = findMetricsTimer.time()) {
+            return lookupMetrics(matchers);
+        }
+    }
+
+    /** Finds the metrics in the series index, if it is ready, otherwise in InfluxDB. */
+    private List<Metric> lookupMetrics(final Collection<TagMatcher> matchers) throws StorageException {
+        if (seriesIndex != null && seriesIndex.isReady()) {
+            return seriesIndex.find(matchers);
+        }
         final String tagRestriction = matchers
                 .stream()
                 .map(m -> "(r[\"" + toClassifiedTagKey(Metric.TagType.intrinsic, m) + "\"]" + tagMatcherToComp(m)
@@ -171,21 +479,116 @@ public class InfluxdbStorage implements TimeSeriesStorage {
                         // external tags are not searchable
                 .collect(Collectors.joining(" and "));
 
-        final String query = "from(bucket:\"opennms\")\n" +
-                "  |> range(start:-5y)\n" +
-                "  |> filter(fn: (r) => " + tagRestriction + ")\n" +
-                "  |> distinct(column: \"_measurement\")\n";
+        final String query;
+        if (InfluxdbConfig.FindMetricsStrategy.metadata == config.getFindMetricsStrategy()) {
+            // The tag predicates directly after range() are pushed down to the storage engine which resolves the
+            // series from its index, first() then reads a single sample per series instead of all of them.
+            query = "from(bucket:\"" + config.getBucket() + "\")\n" +
+                    "  |> range(start:" + findMetricsStart() + ")\n" +
+                    "  |> filter(fn: (r) => " + toFieldRestriction() + " and " + tagRestriction + ")\n" +
+                    "  |> first()\n" +
+                    "  |> keep(fn: (column) => " + toKeptColumns() + ")\n";
+        } else {
+            // distinct() replaces the values by the measurement, the tags stored as fields can't be restored from them
+            query = "from(bucket:\"" + config.getBucket() + "\")\n" +
+                    "  |> range(start:" + findMetricsStart() + ")\n" +
+                    "  |> filter(fn: (r) => " + (tagStoragePolicy.hasFields() ? "r._field == \"value\" and " : "") + tagRestriction + ")\n" +
+                    "  |> distinct(column: \"_measurement\")\n";
+        }
+        final boolean mergeFields = InfluxdbConfig.FindMetricsStrategy.metadata == config.getFindMetricsStrategy() && tagStoragePolicy.hasFields();
 
-        return queryApi
-                .query(query)
-                .stream()
-                .map(FluxTable::getRecords)
-                .flatMap(Collection::stream)
-                .map(FluxRecord::getValues)
-                .filter(m -> m.containsKey(TAG_RESOURCE_ID)) // one of "ours"
-                .map(this::createMetricFromMap)
-                .distinct() // shouldn't be necessary but just in case
-                .collect(Collectors.toList());
+        if (shards.size() == 1) {
+            return findMetrics(shards.getNodes().get(0), query, mergeFields);
+        }
+        // the series of a resource are spread across the nodes, all of them have to be asked
+        final List<Future<List<Metric>>> futures = new ArrayList<>(shards.size());
+        for (Shard shard : shards.getNodes()) {
+            futures.add(fetchExecutor.submit(() -> findMetrics(shard, query, mergeFields)));
+        }
+        final Set<Metric> metrics = new LinkedHashSet<>();
+        try {
+            for (Future<List<Metric>> future : futures) {
+                metrics.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof StorageException ? (StorageException) e.getCause() : new StorageException(e.getCause());
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+        return new ArrayList<>(metrics);
+    }
+
+    /** @param mergeFields true if the query returns the tags stored as fields, see {@link SeriesCollector} */
+    private List<Metric> findMetrics(final Shard shard, final String query, final boolean mergeFields) throws StorageException {
+        return shard.replicas.query((queryApi, attempt) -> {
+            final Set<Metric> metrics = new LinkedHashSet<>();
+            final SeriesCollector series = new SeriesCollector(mergeFields, metricFactory::createMetric, metrics::add);
+            final long[] rows = new long[1];
+            queryApi.query(query, (cancellable, record) -> {
+                if (attempt.isDone()) {
+                    // another replica answered first
+                    cancellable.cancel();
+                    return;
+                }
+                rows[0]++;
+                series.add(record.getValues());
+            }, attempt::completeExceptionally, () -> {
+                queryRows.update(rows[0]);
+                series.finish();
+                attempt.complete(new ArrayList<>(metrics));
+            });
+        });
+    }
+
+    /** Reads the sample and, if the policy stores tags as fields, the fields with the tags of each series. */
+    private String toFieldRestriction() {
+        return tagStoragePolicy.hasFields()
+                ? "(r._field == \"value\" or r._field =~ /^(meta|external)_/)"
+                : "r._field == \"value\"";
+    }
+
+    private String toKeptColumns() {
+        return tagStoragePolicy.hasFields()
+                ? "column =~ /^(intrinsic|meta|external)_/ or column == \"_field\" or column == \"_value\""
+                : "column =~ /^(intrinsic|meta|external)_/";
+    }
+
+    /**
+     * Adds the tags of the requested Metric which aren't stored as tags to the Metric read from InfluxDB. Only done if
+     * the policy stores tags as fields or drops them.
+     */
+    private Metric withUnstoredTags(final Metric stored, final Map<String, Metric> requested) {
+        final Metric metric = requested.get(getName(stored));
+        if (metric == null) {
+            return stored;
+        }
+        ImmutableMetric.MetricBuilder builder = null;
+        for (Metric.TagType tagType : new Metric.TagType[]{Metric.TagType.meta, Metric.TagType.external}) {
+            for (Tag tag : tagType == Metric.TagType.meta ? metric.getMetaTags() : metric.getExternalTags()) {
+                if (tagStoragePolicy.isStoredAsTag(tagType, tag.getKey())) {
+                    continue;
+                }
+                if (builder == null) {
+                    builder = ImmutableMetric.builder();
+                    stored.getIntrinsicTags().forEach(builder::intrinsicTag);
+                    stored.getMetaTags().forEach(builder::metaTag);
+                    stored.getExternalTags().forEach(builder::externalTag);
+                }
+                if (tagType == Metric.TagType.meta) {
+                    builder.metaTag(tag);
+                } else {
+                    builder.externalTag(tag);
+                }
+            }
+        }
+        return builder != null ? builder.build() : stored;
+    }
+
+    private String findMetricsStart() {
+        return "-" + config.getFindMetricsLookbackInMs() + "ms";
     }
 
     private String tagMatcherToComp(final TagMatcher matcher) {
@@ -206,93 +609,359 @@ public class InfluxdbStorage implements TimeSeriesStorage {
     }
 
     @Override
-    public List<Sample> getTimeseries(TimeSeriesFetchRequest request) {
-
-        String query = "from(bucket:\"" + this.config.getBucket() + "\")\n" +
-                " |> range(start:" + DATE_TIME_FORMAT.format(request.getStart()) + ", stop:" + DATE_TIME_FORMAT.format(request.getEnd()) + ")\n" +
-                " |> filter(fn:(r) => r[\"intrinsic_name\"]==\"" + request.getMetric().getFirstTagByKey(IntrinsicTagNames.name).getValue() + "\" and\n " +
-                "                     r[\"intrinsic_resourceId\"]==\"" + request.getMetric().getFirstTagByKey(IntrinsicTagNames.resourceId).getValue() + "\")\n" +
-                " |> filter(fn:(r) => r._field == \"value\")";
-        List<FluxTable> tables = queryApi.query(query);
-
-        final List<Sample> samples = new ArrayList<>();
-        for (FluxTable fluxTable : tables) {
-            List<FluxRecord> records = fluxTable.getRecords();
-            Metric metric = null;
-            for (FluxRecord record : records) {
-                if (metric == null) {
-                    // we assume here that the metric is always the same. Therefore we create it only once and not for every record
-                    metric = createMetricFromMap(record.getValues());
-                }
-                Sample sample = ImmutableSample.builder()
-                        .metric(metric)
-                        .time(record.getTime())
-                        .value((Double) record.getValue())
-                        .build();
-                samples.add(sample);
+    public List<Sample> getTimeseries(TimeSeriesFetchRequest request) throws StorageException {
+        try (Timer.Context ignored = getTimeseriesTimer.time()) {
+            if (readCache != null) {
+                return readCache.get(request, FetchQuery.toDownsamplingStepInMs(request), (start, stop) -> fetchTimeseries(request, start, stop));
+            }
+            final List<Sample> samples = new ArrayList<>();
+            for (SeriesSamples series : fetchTimeseries(request, request.getStart(), request.getEnd())) {
+                series.addTo(samples);
+            }
+            return samples;
+        }
+    }
+
+    /**
+     * Fetches the samples of several requests. The requests for the same resource with the same range, step and
+     * aggregation are fetched together, with a single query for up to fetchBatchMaxSeries names. The queries run in
+     * parallel, bounded by fetchParallelism. Requests served by the read cache are fetched one by one, in parallel as
+     * well. Returns the samples in the order of the requests.
+     */
+    public List<List<Sample>> getTimeseries(final List<TimeSeriesFetchRequest> requests) throws StorageException {
+        try (Timer.Context ignored = getTimeseriesBatchTimer.time()) {
+            return fetchRequests(requests);
+        }
+    }
+
+    private List<List<Sample>> fetchRequests(final List<TimeSeriesFetchRequest> requests) throws StorageException {
+        final List<List<Sample>> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        final List<Callable<Void>> tasks = new ArrayList<>();
+        if (readCache != null) {
+            for (int i = 0; i < requests.size(); i++) {
+                final int index = i;
+                tasks.add(() -> {
+                    results.set(index, getTimeseries(requests.get(index)));
+                    return null;
+                });
+            }
+        } else {
+            for (List<Integer> indexes : fetchBatcher.batch(requests)) {
+                tasks.add(() -> {
+                    fetchBatch(requests, indexes, results);
+                    return null;
+                });
             }
         }
-        return samples;
+
+        if (tasks.size() == 1) {
+            try {
+                tasks.get(0).call();
+            } catch (StorageException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new StorageException(e);
+            }
+            return results;
+        }
+        final List<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (Callable<Void> task : tasks) {
+            futures.add(fetchExecutor.submit(task));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof StorageException ? (StorageException) e.getCause() : new StorageException(e.getCause());
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+        return results;
+    }
+
+    /** Fetches the requests with a single query and splits the result tables by name. */
+    private void fetchBatch(final List<TimeSeriesFetchRequest> requests, final List<Integer> indexes, final List<List<Sample>> results) throws StorageException {
+        final TimeSeriesFetchRequest first = requests.get(indexes.get(0));
+        final Map<String, Metric> metricsByName = FetchBatcher.getMetricsByName(requests, indexes);
+        FetchBatcher.distribute(requests, indexes, fetchTimeseries(first, metricsByName, first.getStart(), first.getEnd()), results);
+    }
+
+    private static String getName(final TimeSeriesFetchRequest request) {
+        return getName(request.getMetric());
+    }
+
+    private static String getName(final Metric metric) {
+        final Tag name = metric.getFirstTagByKey(IntrinsicTagNames.name);
+        return name != null ? name.getValue() : null;
     }
 
+    private List<SeriesSamples> fetchTimeseries(final TimeSeriesFetchRequest request, final Instant start, final Instant stop) throws StorageException {
+        return fetchTimeseries(request, Collections.singletonMap(getName(request), request.getMetric()), start, stop);
+    }
+
+    /**
+     * Fetches the series with the given names of the resource of the request. The requested Metrics by name restore
+     * the tags which aren't stored as tags.
+     */
+    private List<SeriesSamples> fetchTimeseries(final TimeSeriesFetchRequest request, final Map<String, Metric> metricsByName,
+                                                final Instant start, final Instant stop) throws StorageException {
+        final Set<String> names = metricsByName.keySet();
+        final Function<Map<String, Object>, Metric> metrics = tagStoragePolicy.isAllTags()
+                ? metricFactory::createMetric
+                : columns -> withUnstoredTags(metricFactory.createMetric(columns), metricsByName);
+        final String query = FetchQuery.create(config.getBucket(), request, names, start, stop);
+
+        // the response is parsed while it is streamed, the records are never materialized
+        return getShard(request.getMetric()).replicas.query((queryApi, attempt) -> {
+            final List<SeriesSamples> series = new ArrayList<>();
+            final TimeseriesCsvParser parser = new TimeseriesCsvParser(metrics, series::add);
+            // rows and bytes of the CSV, the annotations and headers included
+            final long[] received = new long[2];
+            queryApi.queryRaw(query, TimeseriesCsvParser.DIALECT, (cancellable, line) -> {
+                if (attempt.isDone()) {
+                    // another replica answered first
+                    cancellable.cancel();
+                    return;
+                }
+                received[0]++;
+                received[1] += line.length() + 2;
+                parser.accept(cancellable, line);
+            }, attempt::completeExceptionally, () -> {
+                queryRows.update(received[0]);
+                queryBytes.update(received[1]);
+                try {
+                    parser.finish();
+                    attempt.complete(series);
+                } catch (StorageException e) {
+                    attempt.completeExceptionally(e);
+                }
+            });
+        });
+    }
+
+    /**
+     * Deletes the metric, see {@link #deleteAsync(Metric)}. Waits up to deleteTimeoutInMs for the delete to be done, it
+     * is merged with the other deletes of the resource nevertheless.
+     */
     @Override
-    public void delete(Metric metric) {
-        // this doesnt seem to work, see https://github.com/influxdata/influxdb/issues/20399
-        DeletePredicateRequest predicate = new DeletePredicateRequest()
-                .start(OffsetDateTime.now().minusYears(50))
-                .stop(OffsetDateTime.now().plusYears(50))
-                .predicate(TAG_RESOURCE_ID + "=\"" + metric.getFirstTagByKey(IntrinsicTagNames.resourceId).getValue() + "\"")
-                .predicate(TAG_NAME + "=\"" + metric.getFirstTagByKey(IntrinsicTagNames.resourceId).getValue() + "\"");
-        deleteApi.delete(predicate, config.getBucket(), config.getOrg());
+    public void delete(Metric metric) throws StorageException {
+        try {
+            deleteAsync(metric).toCompletableFuture().get(config.getDeleteTimeoutInMs(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof StorageException ? (StorageException) e.getCause() : new StorageException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new StorageException("The metric wasn't deleted within " + config.getDeleteTimeoutInMs() + " ms: " + metric, e);
+        }
     }
 
     /**
-     * Restore the metric from the tags we get out of InfluxDb.
+     * Queues the metric to be deleted. The deletes of a resource are merged and run in the background, the returned
+     * stage completes once the samples were deleted.
      */
-    private Metric createMetricFromMap(final Map<String, Object> map) {
-        ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
-        for (Map.Entry<String, Object> entry : map.entrySet()) {
-            getIfMatching(ImmutableMetric.TagType.intrinsic, entry).ifPresent(metric::intrinsicTag);
-            getIfMatching(ImmutableMetric.TagType.meta, entry).ifPresent(metric::metaTag);
-            getIfMatching(ImmutableMetric.TagType.external, entry).ifPresent(metric::externalTag);
+    public CompletionStage<Void> deleteAsync(final Metric metric) {
+        if (seriesIndex != null) {
+            seriesIndex.remove(metric);
+        }
+        if (readCache != null) {
+            readCache.invalidate(metric);
+        }
+        return deleter.delete(metric);
+    }
+
+    /**
+     * Deletes the queued metrics of a resource. The delete predicates of InfluxDB can't be combined with 'or', each
+     * series is deleted by its own predicate. We never delete the whole resource at once: neither the series index nor
+     * the metrics queued together know all the series of the resource, other instances of OpenNMS or the samples beyond
+     * the lookback of the index may have written more.
+     */
+    private void deleteResource(final String resourceId, final List<Metric> metrics) {
+        final OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        final OffsetDateTime start = config.getDeleteLookbackInMs() > 0
+                ? now.minus(Duration.ofMillis(config.getDeleteLookbackInMs()))
+                : now.minusYears(50);
+        final OffsetDateTime stop = now.plusYears(50);
+        final Set<String> deleted = new HashSet<>();
+        for (Metric metric : metrics) {
+            final String name = getName(metric);
+            if (name == null || !deleted.add(name)) {
+                continue;
+            }
+            final String predicate = TAG_RESOURCE_ID + "=" + toPredicateValue(resourceId) + " AND " + TAG_NAME + "=" + toPredicateValue(name);
+            getShard(metric).deleteApi.delete(start, stop, predicate, config.getBucket(), config.getOrg());
         }
-        return metric.build();
     }
 
-    private Optional<Tag> getIfMatching(final ImmutableMetric.TagType tagType, final Map.Entry<String, Object> entry) {
-        // Check if the key starts with the prefix. If so it is an opennms key, if not something InfluxDb specific and
-        // we can ignore it.
-        final String prefix = tagType.name() + '_';
-        String key = entry.getKey();
+    private static String toPredicateValue(final String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
 
-        if (key.startsWith(prefix)) {
-            key = key.substring(prefix.length());
-            String value = entry.getValue().toString(); // tagValueFromInflux(entry.getValue().toString()); // convert
-            return Optional.of(new ImmutableTag(key, value));
+    /**
+     * Rebuilds the series index from the series found in InfluxDB. findMetrics() queries InfluxDB until the rebuild
+     * is done. Returns the number of indexed series.
+     */
+    public CompletableFuture<Integer> rebuildSeriesIndex() {
+        if (seriesIndex == null) {
+            throw new IllegalStateException("The series index is not enabled.");
+        }
+        return CompletableFuture.supplyAsync(this::loadSeriesIndexFromInfluxdb, seriesIndexExecutor);
+    }
+
+    private void initSeriesIndex() {
+        final String file = config.getSeriesIndexFile();
+        if (!file.isEmpty() && Files.exists(Paths.get(file))) {
+            try {
+                seriesIndex.load(Paths.get(file));
+                LOG.info("Loaded {} series from the series index {}.", seriesIndex.size(), file);
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not load the series index {}, it will be rebuilt from InfluxDB.", file, e);
+                seriesIndex.clear();
+            }
+        }
+        try {
+            loadSeriesIndexFromInfluxdb();
+        } catch (RuntimeException e) {
+            LOG.warn("Could not rebuild the series index, findMetrics() will query InfluxDB.", e);
+        }
+    }
+
+    private int loadSeriesIndexFromInfluxdb() {
+        seriesIndex.clear();
+        // the last sample of each series is enough to know its tags
+        final String query = "from(bucket:\"" + config.getBucket() + "\")\n" +
+                "  |> range(start:" + findMetricsStart() + ")\n" +
+                "  |> filter(fn: (r) => " + toFieldRestriction() + ")\n" +
+                "  |> last()\n" +
+                "  |> keep(fn: (column) => " + toKeptColumns() + ")\n";
+        for (Shard shard : shards.getNodes()) {
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            // built without interning, most of the series won't be queried soon
+            final SeriesCollector series = new SeriesCollector(tagStoragePolicy.hasFields(), metricFactory::buildMetric, seriesIndex::add);
+            shard.replicas.getPrimary().query(query, (cancellable, record) -> series.add(record.getValues()),
+                    done::completeExceptionally, () -> done.complete(null));
+            done.join();
+            series.finish();
+        }
+        seriesIndex.setReady(true);
+        LOG.info("Rebuilt the series index from InfluxDB, {} series found.", seriesIndex.size());
+        return seriesIndex.size();
+    }
+
+    private void saveSeriesIndex() {
+        final String file = config.getSeriesIndexFile();
+        if (file.isEmpty() || !seriesIndex.isReady() || !seriesIndex.isDirty()) {
+            return;
+        }
+        try {
+            final Path path = Paths.get(file);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            seriesIndex.save(path);
+            LOG.debug("Saved {} series to the series index {}.", seriesIndex.size(), file);
+        } catch (IOException | RuntimeException e) {
+            // don't let the exception cancel the scheduled snapshot
+            LOG.warn("Could not save the series index to {}.", file, e);
+        }
+    }
+
+    /** The requests of a batch that can be fetched with a single query. */
+    /**
+     * One of the InfluxDB nodes the series are sharded across, with its own clients and writer. The node is written
+     * to and deleted from through its first client, the queries are routed across all of its replicas.
+     */
+    private static class Shard {
+        private final String url;
+        private final List<InfluxDBClient> clients;
+        private final ReadReplicas<QueryApi> replicas;
+        private final DeleteApi deleteApi;
+        private final WriterWrapper writeApi;
+
+        private Shard(final String url, final List<InfluxDBClient> clients, final ReadReplicas<QueryApi> replicas, final WriterWrapper writeApi) {
+            this.url = url;
+            this.clients = clients;
+            this.replicas = replicas;
+            // Fetch the APIs once during init, some of these require to be closed
+            this.deleteApi = clients.get(0).getDeleteApi();
+            this.writeApi = writeApi;
+        }
+
+        private void close() {
+            try {
+                writeApi.close();
+            } finally {
+                clients.forEach(InfluxDBClient::close);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return url;
         }
-        return Optional.empty();
     }
 
     /** We need to wrap the different write apis since they don't share a common interface.  */
     static class WriterWrapper {
 
-        private Consumer<List<Point>> writer;
+        private SampleWriter writer;
+        private Function<List<Sample>, CompletionStage<Void>> asyncWriter;
+        private LongSupplier capacity = () -> Long.MAX_VALUE;
+        private Supplier<CompletionStage<Void>> capacityAvailable = () -> CompletableFuture.completedFuture(null);
         private Runnable closer;
 
-        public void setWriter(Consumer<List<Point>> writer) {
+        public void setWriter(SampleWriter writer) {
             this.writer = writer;
         }
 
+        public void setAsyncWriter(Function<List<Sample>, CompletionStage<Void>> asyncWriter, LongSupplier capacity,
+                                   Supplier<CompletionStage<Void>> capacityAvailable) {
+            this.asyncWriter = asyncWriter;
+            this.capacity = capacity;
+            this.capacityAvailable = capacityAvailable;
+        }
+
         public void setCloser(Runnable closer) {
             this.closer = closer;
         }
 
-        public void writePoints(List<Point> points) {
-            this.writer.accept(points);
+        public void write(List<Sample> samples) throws StorageException {
+            this.writer.write(samples);
+        }
+
+        public CompletionStage<Void> writeAsync(List<Sample> samples) {
+            if (asyncWriter != null) {
+                return asyncWriter.apply(samples);
+            }
+            try {
+                this.writer.write(samples);
+                return CompletableFuture.completedFuture(null);
+            } catch (StorageException | RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        public long getAvailableCapacity() {
+            return capacity.getAsLong();
+        }
+
+        public CompletionStage<Void> whenCapacityAvailable() {
+            return capacityAvailable.get();
         }
 
         public void close() {
             this.closer.run();
         }
     }
+
+    @FunctionalInterface
+    interface SampleWriter {
+        void write(List<Sample> samples) throws StorageException;
+    }
 }
@@ -1,26 +1,48 @@
 package org.opennms.timeseries.impl.influxdb;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.opennms.integration.api.v1.timeseries.Sample;
 import org.opennms.integration.api.v1.timeseries.StorageException;
 import org.opennms.timeseries.influxdb.shaded.resilience4j.bulkhead.Bulkhead;
 import org.opennms.timeseries.influxdb.shaded.resilience4j.bulkhead.BulkheadConfig;
+import org.opennms.timeseries.influxdb.shaded.resilience4j.bulkhead.BulkheadFullException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.influxdb.client.write.Point;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -29,34 +51,167 @@ import okhttp3.Dispatcher;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
 /**
  * We implement our own write logic with OKClient in order to let our caller handle backpressure.
+ * <p>
+ * The samples which were accepted but not yet written, spooled or given up count as pending. writeAsync() rejects
+ * writes right away once maxPendingSamples are pending, the caller can use {@link #whenCapacityAvailable()} to wait
+ * for capacity without blocking a thread. The blocking write() waits for up to maxPendingWaitInMs instead, then spools
+ * the samples or fails. Since every request queued for the bulkhead holds pending samples, the limit bounds the queue
+ * too. Once closed, both reject all writes with an {@link IllegalStateException}.
  */
 public class InfluxdbWriter {
 
     private static final Logger LOG = LoggerFactory.getLogger(InfluxdbWriter.class);
+    /** How long close() waits for the cancelled calls to be spooled. */
+    private static final long CLOSE_HAND_OVER_TIMEOUT_IN_MS = 1000;
+    /** How long creating a writer waits for its connections to be opened. */
+    private static final long WARM_UP_TIMEOUT_IN_MS = 1000;
 
     final InfluxdbConfig config;
+    private final LineProtocolEncoder encoder;
+    private final DeflaterPool deflaters;
     private final OkHttpClient client;
 
     private final MetricRegistry metrics = new MetricRegistry();
     private final Meter samplesWritten = metrics.meter("samplesWritten");
     private final Meter samplesLost = metrics.meter("samplesLost");
+    private final Meter samplesSpooled = metrics.meter("samplesSpooled");
+    private final Meter samplesReplayed = metrics.meter("samplesReplayed");
+    private final Meter samplesExpired = metrics.meter("samplesExpired");
+    private final Histogram batchSize = metrics.histogram("batchSize");
+    private final Meter retries = metrics.meter("retries");
+    private final Meter retriesGivenUp = metrics.meter("retriesGivenUp");
+    private final Meter retriesRejected = metrics.meter("retriesRejected");
+    private final Timer bulkheadWait = metrics.timer("bulkheadWait");
+    private final Timer capacityWait = metrics.timer("capacityWait");
+    private final Timer writeRequests = metrics.timer("writeRequests");
+    private final Histogram requestSizeInBytes = metrics.histogram("requestSizeInBytes");
+    private final Meter bytesEncoded = metrics.meter("bytesEncoded");
+    private final Meter bytesSent = metrics.meter("bytesSent");
 
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    /** Resizes the bulkhead, shrinking it blocks until enough calls completed. */
+    private final ExecutorService concurrencyLimitResizer;
+    private final AtomicInteger concurrencyLimitTarget = new AtomicInteger();
+    private final AtomicBoolean concurrencyLimitResizePending = new AtomicBoolean();
     private final Bulkhead asyncHttpCallsBulkhead;
+    /** The calls waiting for a permit of the bulkhead, nobody blocks for one. */
+    private final Queue<BulkheadCall> bulkheadQueue = new ConcurrentLinkedQueue<>();
+    private final long bulkheadMaxWaitInNanos;
     private final HttpUrl url;
+    private final HttpUrl pingUrl;
+    private final String spoolDirectory;
+    private final WriteSpool spool;
+    private final ScheduledExecutorService spoolReplayer;
+    private final WriteCoalescer coalescer;
+    private final RetryPolicy retryPolicy;
+    private final ScheduledExecutorService retryScheduler;
+    /** Number of samples waiting for a retry. */
+    private final AtomicLong retryBufferSamples = new AtomicLong();
+    private final Set<Retry> scheduledRetries = ConcurrentHashMap.newKeySet();
+    /** Set once close() gave up draining, failed batches are spooled or lost right away instead of being retried. */
+    private volatile boolean handingOver;
+    /** Writes hold the read lock while they dispatch, close() takes the write lock to wait for them. */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+    private final long maxPendingSamples;
+    private final long maxPendingWaitInMs;
+    private final AtomicLong pendingSamples = new AtomicLong();
+    private final Queue<CompletableFuture<Void>> capacityWaiters = new ConcurrentLinkedQueue<>();
 
-    public InfluxdbWriter(final InfluxdbConfig config) {
+    public InfluxdbWriter(final InfluxdbConfig config, final LineProtocolEncoder encoder) {
+        this(config, config.getUrl(), config.getSpoolDirectory(), encoder);
+    }
+
+    /** Creates a writer for one of the nodes of a sharded setup, each node needs its own spool. */
+    public InfluxdbWriter(final InfluxdbConfig config, final String url, final String spoolDirectory, final LineProtocolEncoder encoder) {
         Objects.requireNonNull(config);
+        Objects.requireNonNull(url);
+        Objects.requireNonNull(encoder);
         this.config = config;
+        this.spoolDirectory = spoolDirectory;
+        this.encoder = encoder;
+        this.maxPendingSamples = config.getMaxPendingSamples() > 0 ? config.getMaxPendingSamples() : Long.MAX_VALUE;
+        this.maxPendingWaitInMs = config.getMaxPendingWaitInMs();
+        // we can't have more bodies in flight than requests
+        this.deflaters = new DeflaterPool(config.getCompressionLevel(), config.getMaxConcurrentHttpConnections());
         this.client = createClient();
-        this.url = createUrl();
+        this.url = createUrl(url);
+        this.pingUrl = createBaseUrl(url).addPathSegment("ping").build();
+        this.concurrencyLimit = createConcurrencyLimit();
+        this.concurrencyLimitResizer = concurrencyLimit == null ? null : Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-concurrency-limit-%d")
+                .setDaemon(true)
+                .build());
         this.asyncHttpCallsBulkhead = createBulkhead();
+        this.bulkheadMaxWaitInNanos = TimeUnit.MILLISECONDS.toNanos(config.getBulkheadMaxWaitDurationInMs());
+        this.spool = createSpool();
+        this.spoolReplayer = createSpoolReplayer();
+        this.coalescer = createCoalescer();
+        this.retryPolicy = new RetryPolicy(config.getRetryMaxRetries(), config.getRetryInitialBackoffInMs(), config.getRetryMaxBackoffInMs());
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-write-retry-%d")
+                .setDaemon(true)
+                .build());
         exposeHttpClientStatistics();
+        exposeSpoolStatistics();
+        metrics.register("retryBufferSamples", (Gauge<Long>) retryBufferSamples::get);
+        metrics.register("pendingSamples", (Gauge<Long>) pendingSamples::get);
+        metrics.register("compressionRatio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(bytesEncoded.getCount(), bytesSent.getCount());
+            }
+        });
+        warmUpConnections();
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Opens connections to InfluxDB before the first write, otherwise the first batches after a restart or reload open
+     * all of them at once. Waits at most a second, InfluxDB being down must not keep us from starting.
+     */
+    private void warmUpConnections() {
+        final int count = Math.min(config.getConnectionPoolWarmupCount(), config.getMaxConcurrentHttpConnections());
+        if (count <= 0) {
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(count);
+        final Request ping = new Request.Builder()
+                .url(pingUrl)
+                .addHeader("User-Agent", InfluxdbWriter.class.getCanonicalName())
+                .get()
+                .build();
+        // the calls run concurrently, each of them needs a connection of its own
+        for (int i = 0; i < count; i++) {
+            client.newCall(ping).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    LOG.debug("Could not open a connection to {} in advance: {}", pingUrl, e.getMessage());
+                    done.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    response.close();
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            if (!done.await(Math.min(WARM_UP_TIMEOUT_IN_MS, config.getReadTimeoutInMs()), TimeUnit.MILLISECONDS)) {
+                LOG.debug("Gave up waiting for {} connections to {}.", done.getCount(), pingUrl);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private OkHttpClient createClient() {
@@ -72,9 +227,8 @@ public class InfluxdbWriter {
                 .build();
     }
 
-    private HttpUrl createUrl() {
-        Objects.requireNonNull(config.getUrl());
-        final HttpUrl base = HttpUrl.parse(config.getUrl());
+    private HttpUrl.Builder createBaseUrl(final String url) {
+        final HttpUrl base = HttpUrl.parse(url);
         HttpUrl.Builder b = new HttpUrl.Builder()
                 .scheme(base.scheme())
                 .host(base.host())
@@ -82,22 +236,89 @@ public class InfluxdbWriter {
         for (String segment : base.pathSegments()) {
             b.addPathSegment(segment);
         }
-        return b.addPathSegments("api/v2/write")
+        return b;
+    }
+
+    private HttpUrl createUrl(final String url) {
+        return createBaseUrl(url).addPathSegments("api/v2/write")
                 .addQueryParameter("org", config.getOrg())
                 .addQueryParameter("bucket", config.getBucket())
                 .addQueryParameter("precision", "ms")
                 .build();
     }
 
+    private int getMaxConcurrentCalls() {
+        return config.getConcurrencyLimitMax() > 0 ? config.getConcurrencyLimitMax() : config.getMaxConcurrentHttpConnections() * 6;
+    }
+
+    private AdaptiveConcurrencyLimit createConcurrencyLimit() {
+        if (!config.isAdaptiveConcurrencyEnabled()) {
+            return null;
+        }
+        final int max = getMaxConcurrentCalls();
+        final int min = Math.max(1, Math.min(config.getConcurrencyLimitMin(), max));
+        // start with as many calls as we have connections and find the limit from there
+        return new AdaptiveConcurrencyLimit(config.getMaxConcurrentHttpConnections(), min, max);
+    }
+
     private Bulkhead createBulkhead() {
         BulkheadConfig bulkheadConfig = BulkheadConfig.custom()
-                .maxConcurrentCalls(config.getMaxConcurrentHttpConnections() * 6)
-                .maxWaitDuration(Duration.ofMillis(config.getBulkheadMaxWaitDurationInMs()))
+                .maxConcurrentCalls(concurrencyLimit != null ? concurrencyLimit.getLimit() : getMaxConcurrentCalls())
+                // the bulkhead would park the thread asking for a permit, the calls wait in our queue instead
+                .maxWaitDuration(Duration.ZERO)
                 .fairCallHandlingStrategyEnabled(true)
                 .build();
         return Bulkhead.of("asyncHttpCalls", bulkheadConfig);
     }
 
+    private WriteSpool createSpool() {
+        if (spoolDirectory == null || spoolDirectory.isEmpty()) {
+            return null;
+        }
+        try {
+            return new WriteSpool(Paths.get(spoolDirectory),
+                    config.getSpoolSegmentSizeInBytes(),
+                    config.getSpoolMaxSizeInBytes(),
+                    config.getSpoolEvictionPolicy());
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Could not open spool in {}, failed writes will be lost.", spoolDirectory, e);
+            return null;
+        }
+    }
+
+    private ScheduledExecutorService createSpoolReplayer() {
+        if (spool == null) {
+            return null;
+        }
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-spool-replay-%d")
+                .setDaemon(true)
+                .build());
+        executor.scheduleWithFixedDelay(this::replaySpool, config.getSpoolReplayIntervalInMs(), config.getSpoolReplayIntervalInMs(), TimeUnit.MILLISECONDS);
+        return executor;
+    }
+
+    private WriteCoalescer createCoalescer() {
+        if (config.getBatchLingerInMs() <= 0) {
+            return null;
+        }
+        return new WriteCoalescer(config.getBatchMaxSamples(),
+                config.getBatchMaxSizeInBytes(),
+                config.getBatchLingerInMs(),
+                Runtime.getRuntime().availableProcessors(),
+                this::writeBatch);
+    }
+
+    private void exposeSpoolStatistics() {
+        if (spool == null) {
+            return;
+        }
+        metrics.register("spoolPendingBatches", (Gauge<Long>) spool::getPendingBatches);
+        metrics.register("spoolPendingSamples", (Gauge<Long>) spool::getPendingSamples);
+        metrics.register("spoolSizeInBytes", (Gauge<Long>) spool::getSizeInBytes);
+        metrics.register("spoolEvictedSamples", (Gauge<Long>) spool::getEvictedSamples);
+    }
+
     private void exposeHttpClientStatistics() {
         // Expose HTTP client statistics
         metrics.register("connectionCount", (Gauge<Integer>) () -> client.connectionPool().connectionCount());
@@ -106,41 +327,390 @@ public class InfluxdbWriter {
         metrics.register("runningCallsCount", (Gauge<Integer>) () -> client.dispatcher().runningCallsCount());
         metrics.register("availableConcurrentCalls", (Gauge<Integer>) () -> asyncHttpCallsBulkhead.getMetrics().getAvailableConcurrentCalls());
         metrics.register("maxAllowedConcurrentCalls", (Gauge<Integer>) () -> asyncHttpCallsBulkhead.getMetrics().getMaxAllowedConcurrentCalls());
+        if (concurrencyLimit != null) {
+            metrics.register("concurrencyLimit", (Gauge<Integer>) concurrencyLimit::getLimit);
+            metrics.register("rttInMs", (Gauge<Double>) concurrencyLimit::getRttInMs);
+            metrics.register("longRttInMs", (Gauge<Double>) concurrencyLimit::getLongRttInMs);
+        }
+    }
+
+    /**
+     * Writes the samples, waits for up to maxPendingWaitInMs while too many samples are pending. If there is still no
+     * capacity then, the samples are spooled. Without a spool the write fails with a {@link BackpressureException},
+     * nothing of it was accepted then.
+     */
+    public void write(final List<Sample> samples) throws BackpressureException {
+        // we must not wait while holding the lock, close() would wait for us
+        final boolean hasCapacity = awaitCapacity();
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The writer is closed.");
+            }
+            if (!hasCapacity) {
+                spoolOrReject(samples);
+                return;
+            }
+            pendingSamples.addAndGet(samples.size());
+            dispatch(samples, null);
+        } finally {
+            closeLock.readLock().unlock();
+        }
     }
 
-    public void writePoints(final List<Point> points) {
-        String bodyContent = points
-                .stream()
-                .map(Point::toLineProtocol)
-                .collect(Collectors.joining("\n"));
+    private boolean awaitCapacity() {
+        if (pendingSamples.get() < maxPendingSamples) {
+            return true;
+        }
+        final CompletableFuture<Void> waiter = whenCapacityAvailable().toCompletableFuture();
+        try (Timer.Context ignored = capacityWait.time()) {
+            waiter.get(maxPendingWaitInMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            capacityWaiters.remove(waiter);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void spoolOrReject(final List<Sample> samples) throws BackpressureException {
+        if (spool != null) {
+            final LineProtocolBuffer content = encoder.encode(samples);
+            if (spool.append(content)) {
+                samplesSpooled.mark(content.lines());
+                LOG.warn("{} samples are pending for more than {} ms, {} samples were spooled.", pendingSamples.get(), maxPendingWaitInMs, content.lines());
+                return;
+            }
+        }
+        throw new BackpressureException(String.format("%d samples are pending, waited %d ms for capacity to write %d more samples.",
+                pendingSamples.get(), maxPendingWaitInMs, samples.size()));
+    }
+
+    /**
+     * Writes the samples without waiting for capacity. The returned stage completes once all samples were written or
+     * spooled and fails if samples were lost. If too many samples are pending the write is rejected with a
+     * {@link BackpressureException}, nothing of it was accepted then.
+     * <p>
+     * The stages complete on the threads of the http client, dependent actions shouldn't block.
+     */
+    public CompletionStage<Void> writeAsync(final List<Sample> samples) {
+        final WriteCompletion completion = new WriteCompletion();
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IllegalStateException("The writer is closed."));
+            }
+            if (!tryReservePending(samples.size())) {
+                return CompletableFuture.failedFuture(new BackpressureException(String.format(
+                        "%d samples are pending, %d more samples exceed the limit of %d.", pendingSamples.get(), samples.size(), maxPendingSamples)));
+            }
+            dispatch(samples, completion);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        completion.release(null);
+        return completion.getCompletionStage();
+    }
+
+    /** The number of samples writeAsync() accepts right now. */
+    public long getAvailableCapacity() {
+        return Math.max(0, maxPendingSamples - pendingSamples.get());
+    }
+
+    /** Returns a stage which completes as soon as writeAsync() accepts samples again. */
+    public CompletionStage<Void> whenCapacityAvailable() {
+        if (pendingSamples.get() < maxPendingSamples) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void> waiter = new CompletableFuture<>();
+        capacityWaiters.add(waiter);
+        // the capacity may have been released before we were added
+        if (pendingSamples.get() < maxPendingSamples) {
+            notifyCapacityWaiters();
+        }
+        return waiter;
+    }
+
+    private boolean tryReservePending(final int sampleCount) {
+        while (true) {
+            final long current = pendingSamples.get();
+            // a write larger than the limit is accepted when nothing else is pending, it would never fit otherwise
+            if (current > 0 && current + sampleCount > maxPendingSamples) {
+                return false;
+            }
+            if (pendingSamples.compareAndSet(current, current + sampleCount)) {
+                return true;
+            }
+        }
+    }
+
+    private void releasePending(final int sampleCount) {
+        if (pendingSamples.addAndGet(-sampleCount) < maxPendingSamples && !capacityWaiters.isEmpty()) {
+            notifyCapacityWaiters();
+        }
+    }
+
+    private void notifyCapacityWaiters() {
+        CompletableFuture<Void> waiter;
+        while ((waiter = capacityWaiters.poll()) != null) {
+            waiter.complete(null);
+        }
+    }
+
+    private void dispatch(final List<Sample> samples, final WriteCompletion completion) {
+        if (coalescer != null) {
+            coalescer.add(samples, completion);
+        } else {
+            if (completion != null) {
+                completion.retain();
+            }
+            // the samples are encoded later on by the http client, make sure our caller can't modify them meanwhile
+            writeBatch(List.copyOf(samples), completion != null ? Collections.singletonList(completion) : Collections.emptyList());
+        }
+    }
+
+    /** Sends the batch as one request. The list must not be modified afterwards. */
+    private void writeBatch(final List<Sample> samples, final List<WriteCompletion> completions) {
+        if (!LineProtocolEncoder.isAnyEncodable(samples)) {
+            complete(samples, completions, null);
+            return;
+        }
+        batchSize.update(samples.size());
+        final LineProtocolRequestBody body = new LineProtocolRequestBody(samples, encoder, getDeflatersForSize(LineProtocolEncoder.estimateSize(samples)));
+        send(samples, completions, body, createRequest(body), 0);
+    }
+
+    /** The batch was written, spooled or given up. */
+    private void complete(final List<Sample> samples, final List<WriteCompletion> completions, final Throwable failure) {
+        releasePending(samples.size());
+        for (WriteCompletion completion : completions) {
+            completion.release(failure);
+        }
+    }
+
+    /**
+     * Sends the request, every attempt has to pass the bulkhead. Retryable failures are retried as long as the retry
+     * buffer has room, otherwise the batch is given up.
+     *
+     * @param retry 0 for the first attempt. Batches with retry > 0 are accounted for in the retry buffer.
+     */
+    private void send(final List<Sample> samples, final List<WriteCompletion> completions, final LineProtocolRequestBody body, final Request request, final int retry) {
+        executeInBulkhead(request, body).whenComplete((r, ex) -> {
+            if (ex == null) {
+                samplesWritten.mark(body.getLines());
+                complete(samples, completions, null);
+            } else if (scheduleRetry(samples, completions, body, request, retry, unwrap(ex))) {
+                return;
+            } else {
+                if (retry > 0) {
+                    retriesGivenUp.mark();
+                }
+                complete(samples, completions, handleFailedWrite(samples, ex));
+            }
+            if (retry > 0) {
+                retryBufferSamples.addAndGet(-samples.size());
+            }
+        });
+    }
 
-        final byte[] compressed;
+    private boolean scheduleRetry(final List<Sample> samples, final List<WriteCompletion> completions, final LineProtocolRequestBody body,
+                                  final Request request, final int retry, final Throwable cause) {
+        if (handingOver || !retryPolicy.shouldRetry(retry, cause)) {
+            return false;
+        }
+        if (retry == 0 && !reserveRetryBuffer(samples.size())) {
+            retriesRejected.mark();
+            return false;
+        }
+        final long delay = retryPolicy.getDelayInMs(retry + 1, cause);
+        final Retry next = new Retry(samples, completions, body, request, retry + 1, cause);
+        scheduledRetries.add(next);
         try {
-            compressed = compress(bodyContent);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            retryScheduler.schedule(next, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // we are shutting down, batches with retry > 0 are released by our caller
+            scheduledRetries.remove(next);
+            if (retry == 0) {
+                retryBufferSamples.addAndGet(-samples.size());
+            }
+            return false;
+        }
+        retries.mark();
+        LOG.debug("Writing {} samples failed, retry {} in {} ms: {}", samples.size(), retry + 1, delay, cause.getMessage());
+        return true;
+    }
+
+    private boolean reserveRetryBuffer(final int sampleCount) {
+        while (true) {
+            final long current = retryBufferSamples.get();
+            if (current + sampleCount > config.getRetryBufferMaxSamples()) {
+                return false;
+            }
+            if (retryBufferSamples.compareAndSet(current, current + sampleCount)) {
+                return true;
+            }
         }
-        final RequestBody body = RequestBody.create(compressed);
+    }
 
-        final Request request = new Request.Builder()
+    /** Returns null if the batch is too small to be worth compressing. */
+    private DeflaterPool getDeflatersForSize(final long sizeInBytes) {
+        return sizeInBytes >= config.getCompressionMinSizeInBytes() ? deflaters : null;
+    }
+
+    private Request createRequest(final LineProtocolRequestBody body) {
+        final Request.Builder requestBuilder = new Request.Builder()
                 .url(url)
-                .addHeader("Content-Encoding", "gzip")
                 .addHeader("Content-Type", "text/plain; charset=utf-8")
                 .addHeader("User-Agent", InfluxdbWriter.class.getCanonicalName())
                 .addHeader("Accept", "application/json")
                 .addHeader("Authorization", "Token " + config.getToken())
-                .post(body)
-                .build();
+                .post(body);
+        if (body.isCompressed()) {
+            requestBuilder.addHeader("Content-Encoding", "gzip");
+        }
+        return requestBuilder.build();
+    }
 
-        asyncHttpCallsBulkhead.executeCompletionStage(() -> executeAsync(request)).whenComplete((r, ex) -> {
-            if (ex == null) {
-                samplesWritten.mark(points.size());
+    /** Returns null if the samples were spooled, otherwise the reason why they are lost. */
+    private Throwable handleFailedWrite(final List<Sample> samples, final Throwable ex) {
+        final Throwable cause = unwrap(ex);
+        if (spool != null && !isPermanent(cause)) {
+            final LineProtocolBuffer content = encoder.encode(samples);
+            if (spool.append(content)) {
+                samplesSpooled.mark(content.lines());
+                LOG.warn("Error occurred while storing samples, {} samples were spooled: {}", content.lines(), cause.getMessage());
+                return null;
+            }
+        }
+        samplesLost.mark(samples.size());
+        LOG.error("Error occurred while storing samples, sample will be lost.", cause);
+        return cause instanceof StorageException ? cause : new StorageException("Writing to InfluxDB failed.", cause);
+    }
+
+    /**
+     * Replays the spooled batches one by one. We stop at the first failure and wait for the next run, InfluxDB is most
+     * likely still not available.
+     */
+    private void replaySpool() {
+        try {
+            WriteSpool.SpooledBatch batch;
+            while ((batch = spool.peek()) != null) {
+                if (System.currentTimeMillis() - batch.getSpooledAt() > config.getSpoolRetentionInMs()) {
+                    spool.commit(batch);
+                    samplesExpired.mark(batch.getLines());
+                    continue;
+                }
+                final LineProtocolRequestBody body = new LineProtocolRequestBody(batch.getContent(), batch.getLines(), getDeflatersForSize(batch.getContent().length));
+                try {
+                    executeInBulkhead(createRequest(body), body).toCompletableFuture().get();
+                    spool.commit(batch);
+                    samplesReplayed.mark(batch.getLines());
+                } catch (ExecutionException e) {
+                    final Throwable cause = unwrap(e);
+                    if (!isPermanent(cause)) {
+                        LOG.debug("Replaying spooled samples failed, will try again in {} ms: {}", config.getSpoolReplayIntervalInMs(), cause.getMessage());
+                        return;
+                    }
+                    spool.commit(batch);
+                    samplesLost.mark(batch.getLines());
+                    LOG.error("InfluxDB rejected {} spooled samples, they will be lost.", batch.getLines(), cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // don't let the exception cancel the scheduled replay
+            LOG.error("Unexpected error while replaying spooled samples.", e);
+        }
+    }
+
+    private static Throwable unwrap(final Throwable ex) {
+        Throwable cause = ex;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static boolean isPermanent(final Throwable cause) {
+        return cause instanceof InfluxdbHttpException && ((InfluxdbHttpException) cause).isPermanent();
+    }
+
+    /**
+     * Executes the request once it passed the bulkhead. Neither the caller nor any other thread waits for a permit,
+     * the call is queued and started by the call releasing the next permit. A call which waited longer than
+     * bulkheadMaxWaitDuration fails with a {@link BulkheadFullException}.
+     */
+    private CompletionStage<Void> executeInBulkhead(final Request request, final LineProtocolRequestBody body) {
+        final BulkheadCall call = new BulkheadCall(request, body);
+        bulkheadQueue.add(call);
+        dispatchBulkheadQueue();
+        return call.future;
+    }
+
+    /**
+     * Starts the queued calls as long as there are permits. Every call adding to the queue or releasing a permit runs
+     * this afterwards, hence a call can't be left behind in the queue while permits are available.
+     */
+    private void dispatchBulkheadQueue() {
+        while (!bulkheadQueue.isEmpty() && asyncHttpCallsBulkhead.tryAcquirePermission()) {
+            final BulkheadCall call = bulkheadQueue.poll();
+            if (call == null) {
+                // someone else took it, the loop checks the queue again
+                asyncHttpCallsBulkhead.releasePermission();
+            } else if (System.nanoTime() - call.queuedAt > bulkheadMaxWaitInNanos) {
+                asyncHttpCallsBulkhead.releasePermission();
+                call.future.completeExceptionally(BulkheadFullException.createBulkheadFullException(asyncHttpCallsBulkhead));
             } else {
-                // FIXME: Data loss
-                samplesLost.mark(points.size());
-                LOG.error("Error occurred while storing samples, sample will be lost.", ex);
+                call.execute();
             }
-        });
+        }
+    }
+
+    /** Executes the request and feeds its latency into the concurrency limit. Must be called with a bulkhead permit. */
+    private CompletableFuture<Void> executeLimited(final Request request) {
+        if (concurrencyLimit == null) {
+            return executeAsync(request);
+        }
+        final Bulkhead.Metrics bulkheadMetrics = asyncHttpCallsBulkhead.getMetrics();
+        final int inflight = bulkheadMetrics.getMaxAllowedConcurrentCalls() - bulkheadMetrics.getAvailableConcurrentCalls();
+        final long start = System.nanoTime();
+        return executeAsync(request).whenComplete((r, ex) -> updateConcurrencyLimit(System.nanoTime() - start, inflight, ex));
+    }
+
+    private void updateConcurrencyLimit(final long rttInNanos, final int inflight, final Throwable ex) {
+        final Throwable cause = ex != null ? unwrap(ex) : null;
+        if (isPermanent(cause)) {
+            // a rejected request says nothing about the load of InfluxDB
+            return;
+        }
+        final int limit = concurrencyLimit.onSample(rttInNanos, inflight, cause != null);
+        if (limit == asyncHttpCallsBulkhead.getBulkheadConfig().getMaxConcurrentCalls()) {
+            return;
+        }
+        // we still hold the permit of this call here, shrinking the bulkhead waits for permits and would deadlock once
+        // all calls in flight shrink at the same time. The resizer applies the latest limit only.
+        concurrencyLimitTarget.set(limit);
+        if (concurrencyLimitResizePending.compareAndSet(false, true)) {
+            try {
+                concurrencyLimitResizer.execute(this::resizeBulkhead);
+            } catch (RejectedExecutionException e) {
+                // closed
+            }
+        }
+    }
+
+    private void resizeBulkhead() {
+        concurrencyLimitResizePending.set(false);
+        final BulkheadConfig current = asyncHttpCallsBulkhead.getBulkheadConfig();
+        final int limit = concurrencyLimitTarget.get();
+        if (limit != current.getMaxConcurrentCalls()) {
+            asyncHttpCallsBulkhead.changeConfig(BulkheadConfig.from(current).maxConcurrentCalls(limit).build());
+            // a larger bulkhead has permits for the queued calls
+            dispatchBulkheadQueue();
+        }
     }
 
     public CompletableFuture<Void> executeAsync(Request request) {
@@ -161,11 +731,13 @@ public class InfluxdbWriter {
                         bodyAsString = "(error reading body)";
                     }
 
-                    future.completeExceptionally(new StorageException(String.format("Writing to Influxdb failed: %s - %s: %s",
+                    final long retryAfter = InfluxdbHttpException.parseRetryAfter(response.header("Retry-After"), Instant.now());
+                    future.completeExceptionally(new InfluxdbHttpException(response.code(), retryAfter, String.format("Writing to Influxdb failed: %s - %s: %s",
                             response.code(),
                             response.message(),
                             bodyAsString)));
                 } else {
+                    response.close();
                     future.complete(null);
                 }
             }
@@ -173,12 +745,178 @@ public class InfluxdbWriter {
         return future;
     }
 
-    byte[] compress(final String stringToCompress) throws IOException {
-        Objects.requireNonNull(stringToCompress);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        GZIPOutputStream gzip = new GZIPOutputStream(outputStream);
-        gzip.write(stringToCompress.getBytes(StandardCharsets.UTF_8));
-        gzip.close();
-        return outputStream.toByteArray();
+    /**
+     * Writes the pending samples and stops the writer. The pending samples get closeDrainTimeoutInMs to be written,
+     * retries included. What is still pending then is spooled, a writer opened on the same spool directory, e.g. after
+     * the configuration was reloaded, replays it.
+     * <p>
+     * Without a spool there is nothing to hand the samples over to. The batches waiting for a retry get a last attempt
+     * right away and the requests get up to the read timeout to complete, the samples still pending then are lost.
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        if (spoolReplayer != null) {
+            // a batch being replayed stays in the spool, the next writer replays it again
+            spoolReplayer.shutdownNow();
+        }
+        if (!awaitDrained(config.getCloseDrainTimeoutInMs())) {
+            final long pending = pendingSamples.get();
+            final long spooledBefore = samplesSpooled.getCount();
+            final long lostBefore = samplesLost.getCount();
+            boolean drained = false;
+            if (spool == null) {
+                retryNow();
+                drained = awaitDrained(config.getReadTimeoutInMs());
+            }
+            if (!drained) {
+                handOver();
+                if (!awaitDrained(CLOSE_HAND_OVER_TIMEOUT_IN_MS)) {
+                    // the calls which didn't complete even when cancelled, we won't wait for them any longer
+                    final long abandoned = pendingSamples.get();
+                    samplesLost.mark(abandoned);
+                    LOG.error("{} samples were not handed over within {} ms, they will be lost.", abandoned, CLOSE_HAND_OVER_TIMEOUT_IN_MS);
+                }
+            }
+            LOG.warn("{} samples were still pending after {} ms, {} of them were spooled and {} lost.", pending, config.getCloseDrainTimeoutInMs(),
+                    samplesSpooled.getCount() - spooledBefore, samplesLost.getCount() - lostBefore);
+        }
+        handingOver = true;
+        retryScheduler.shutdownNow();
+        if (concurrencyLimitResizer != null) {
+            concurrencyLimitResizer.shutdownNow();
+        }
+        awaitTermination(spoolReplayer);
+        if (spool != null) {
+            spool.close();
+        }
+        deflaters.close();
+        // the threads of the dispatcher aren't daemons, they would outlive us for a minute
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    /** Sends the batches waiting for a retry right away, they aren't retried anymore if they fail again. */
+    private void retryNow() {
+        handingOver = true;
+        for (Retry retry : scheduledRetries) {
+            retry.run();
+        }
+    }
+
+    /** Gives up on the batches waiting for a retry, a permit of the bulkhead or a response, they are spooled or lost. */
+    private void handOver() {
+        handingOver = true;
+        for (Retry retry : scheduledRetries) {
+            retry.giveUp();
+        }
+        BulkheadCall call;
+        while ((call = bulkheadQueue.poll()) != null) {
+            call.future.completeExceptionally(new IOException("The writer was closed before the request was sent."));
+        }
+        client.dispatcher().cancelAll();
+    }
+
+    private boolean awaitDrained(final long timeoutInMs) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+        while (pendingSamples.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void awaitTermination(final ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.awaitTermination(CLOSE_HAND_OVER_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A request waiting for a permit of the bulkhead. */
+    private final class BulkheadCall {
+        private final Request request;
+        private final LineProtocolRequestBody body;
+        private final long queuedAt = System.nanoTime();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private BulkheadCall(final Request request, final LineProtocolRequestBody body) {
+            this.request = request;
+            this.body = body;
+        }
+
+        /** Executes the request, the permit was acquired for it. Records the time it waited for the permit. */
+        private void execute() {
+            final long start = System.nanoTime();
+            bulkheadWait.update(start - queuedAt, TimeUnit.NANOSECONDS);
+            executeLimited(request).whenComplete((r, ex) -> {
+                asyncHttpCallsBulkhead.onComplete();
+                writeRequests.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if (ex == null) {
+                    bytesEncoded.mark(body.getUncompressedBytes());
+                    bytesSent.mark(body.getWrittenBytes());
+                    requestSizeInBytes.update(body.getWrittenBytes());
+                }
+                dispatchBulkheadQueue();
+                if (ex == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(ex);
+                }
+            });
+        }
+    }
+
+    /** A batch waiting for its next attempt. Either it runs or it is given up, whatever comes first. */
+    private final class Retry implements Runnable {
+        private final List<Sample> samples;
+        private final List<WriteCompletion> completions;
+        private final LineProtocolRequestBody body;
+        private final Request request;
+        private final int retry;
+        private final Throwable cause;
+
+        private Retry(final List<Sample> samples, final List<WriteCompletion> completions, final LineProtocolRequestBody body,
+                      final Request request, final int retry, final Throwable cause) {
+            this.samples = samples;
+            this.completions = completions;
+            this.body = body;
+            this.request = request;
+            this.retry = retry;
+            this.cause = cause;
+        }
+
+        @Override
+        public void run() {
+            if (scheduledRetries.remove(this)) {
+                send(samples, completions, body, request, retry);
+            }
+        }
+
+        private void giveUp() {
+            if (scheduledRetries.remove(this)) {
+                retriesGivenUp.mark();
+                retryBufferSamples.addAndGet(-samples.size());
+                complete(samples, completions, handleFailedWrite(samples, cause));
+            }
+        }
     }
 }
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that line protocol is encoded into. Unlike {@link java.io.ByteArrayOutputStream} it is not
+ * synchronized and gives direct access to the backing array so the content can be handed to a compressor or socket
+ * without another copy. Instances are meant to be reused, see {@link LineProtocolEncoder}.
+ */
+public class LineProtocolBuffer {
+
+    /** Buffers that grew beyond this size are shrunk again on {@link #reset()} so a single huge batch doesn't pin memory. */
+    static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+
+    private static final byte[] DIGITS = "0123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private final int initialCapacity;
+    private byte[] buffer;
+    private int size;
+    private int lines;
+
+    public LineProtocolBuffer(final int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.buffer = new byte[initialCapacity];
+    }
+
+    public void reset() {
+        size = 0;
+        lines = 0;
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[initialCapacity];
+        }
+    }
+
+    public byte[] array() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Number of complete lines (= data points) in the buffer. */
+    public int lines() {
+        return lines;
+    }
+
+    /** Starts a new line, the line separator is only written between lines. */
+    void startLine() {
+        if (size > 0) {
+            write('\n');
+        }
+    }
+
+    void endLine() {
+        lines++;
+    }
+
+    /** Discards everything written after the given position, used to roll back a partially written line. */
+    void truncate(final int position) {
+        size = position;
+    }
+
+    void write(final int b) {
+        ensureCapacity(size + 1);
+        buffer[size++] = (byte) b;
+    }
+
+    void write(final byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    void write(final byte[] bytes, final int offset, final int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            write(LONG_MIN_VALUE);
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        final int digits = digits(value);
+        ensureCapacity(size + digits);
+        int pos = size + digits;
+        do {
+            buffer[--pos] = DIGITS[(int) (value % 10)];
+            value /= 10;
+        } while (value != 0);
+        size += digits;
+    }
+
+    /**
+     * Writes the given code point as UTF-8. We do our own encoding since {@link String#getBytes} would allocate a new
+     * array for every string.
+     */
+    void writeCodePoint(final int c) {
+        if (c < 0x80) {
+            write(c);
+        } else if (c < 0x800) {
+            ensureCapacity(size + 2);
+            buffer[size++] = (byte) (0xc0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (c < 0x10000) {
+            ensureCapacity(size + 3);
+            buffer[size++] = (byte) (0xe0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        } else {
+            ensureCapacity(size + 4);
+            buffer[size++] = (byte) (0xf0 | (c >> 18));
+            buffer[size++] = (byte) (0x80 | ((c >> 12) & 0x3f));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    public void writeTo(final OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /** Returns a copy of everything written after the given position. */
+    byte[] copyOfRange(final int from) {
+        return Arrays.copyOfRange(buffer, from, size);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /** Needed for the client apis which only accept Strings. */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(final int minCapacity) {
+        if (minCapacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(minCapacity, buffer.length * 2));
+        }
+    }
+
+    private static int digits(final long value) {
+        long limit = 10;
+        for (int digits = 1; digits < 19; digits++) {
+            if (value < limit) {
+                return digits;
+            }
+            limit *= 10;
+        }
+        return 19;
+    }
+}
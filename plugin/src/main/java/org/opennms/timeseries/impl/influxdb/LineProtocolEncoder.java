@@ -0,0 +1,413 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+
+/**
+ * Encodes samples into InfluxDB line protocol without creating {@link com.influxdb.client.write.Point}s or
+ * intermediate Strings. The output is the same as Point.toLineProtocol() would produce, except for the formatting of
+ * the values, see {@link #appendDouble(double, LineProtocolBuffer)}:
+ * - the _measurement is the metrics name (with '=' replaced, see {@link TransformUtil#metricKeyToInflux})
+ * - tag keys are prefixed with the tag type and sorted
+ * - the sample is stored in the field 'value' with millisecond precision
+ * - the meta and external tags which the {@link TagStoragePolicy} doesn't store as tags follow as string fields, or
+ *   are left out
+ * <p>
+ * Each thread encodes into its own reusable buffer. The buffer returned by {@link #encode(List)} is only valid until
+ * the same thread calls {@link #encode(List)} again.
+ */
+public class LineProtocolEncoder {
+
+    private static final int INITIAL_BUFFER_CAPACITY = 64 * 1024;
+    private static final int MAX_FRACTION_DIGITS = 9;
+    private static final long[] POWERS_OF_TEN = new long[MAX_FRACTION_DIGITS + 1];
+    private static final long MAX_EXACT_LONG = 1L << 53;
+
+    private static final byte[] FIELD_VALUE = " value=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] TAG_PREFIXES = new byte[Metric.TagType.values().length][];
+    /** Tag keys are sorted, hence we need to write the tag types in alphabetical order of their prefix. */
+    private static final Metric.TagType[] TAG_TYPES_IN_KEY_ORDER = Metric.TagType.values().clone();
+    private static final Comparator<Tag> BY_KEY = Comparator.comparing(Tag::getKey);
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (Metric.TagType tagType : Metric.TagType.values()) {
+            TAG_PREFIXES[tagType.ordinal()] = toClassifiedTagPrefix(tagType).getBytes(StandardCharsets.US_ASCII);
+        }
+        Arrays.sort(TAG_TYPES_IN_KEY_ORDER, Comparator.comparing(Metric.TagType::name));
+    }
+
+    private final SeriesKeyCache seriesKeyCache;
+    private final TagStoragePolicy tagStoragePolicy;
+    private final ThreadLocal<LineProtocolBuffer> buffers = ThreadLocal.withInitial(() -> new LineProtocolBuffer(INITIAL_BUFFER_CAPACITY));
+    private final ThreadLocal<Tag[]> sortBuffers = ThreadLocal.withInitial(() -> new Tag[16]);
+
+    public LineProtocolEncoder() {
+        this(null);
+    }
+
+    /**
+     * @param seriesKeyCache null disables caching of the encoded series keys
+     */
+    public LineProtocolEncoder(final SeriesKeyCache seriesKeyCache) {
+        this(seriesKeyCache, TagStoragePolicy.ALL_TAGS);
+    }
+
+    /**
+     * @param seriesKeyCache null disables caching of the encoded series keys
+     * @param tagStoragePolicy decides which tags are stored as tags, fields or not at all
+     */
+    public LineProtocolEncoder(final SeriesKeyCache seriesKeyCache, final TagStoragePolicy tagStoragePolicy) {
+        this.seriesKeyCache = seriesKeyCache;
+        this.tagStoragePolicy = tagStoragePolicy;
+    }
+
+    static String toClassifiedTagPrefix(final Metric.TagType tagType) {
+        return tagType.name() + "_";
+    }
+
+    /**
+     * Encodes all samples into the buffer of the current thread. Samples without a finite value are skipped, the same
+     * way Point ignores undefined fields.
+     */
+    public LineProtocolBuffer encode(final List<Sample> samples) {
+        final LineProtocolBuffer buffer = buffers.get();
+        buffer.reset();
+        for (int i = 0; i < samples.size(); i++) {
+            encode(samples.get(i), buffer);
+        }
+        return buffer;
+    }
+
+    /** Encodes into a String, needed for the client write apis. Returns an empty String if there is nothing to write. */
+    public String encodeToString(final List<Sample> samples) {
+        return encode(samples).toString();
+    }
+
+    /**
+     * Appends a single sample as a new line.
+     *
+     * @return false if the sample was skipped since it has no finite value
+     */
+    public boolean encode(final Sample sample, final LineProtocolBuffer out) {
+        if (!isEncodable(sample)) {
+            return false;
+        }
+        out.startLine();
+        appendSeriesKey(sample.getMetric(), out);
+        out.write(FIELD_VALUE);
+        appendDouble(sample.getValue(), out);
+        if (tagStoragePolicy.hasFields()) {
+            appendFields(Metric.TagType.meta, sample.getMetric().getMetaTags(), out);
+            appendFields(Metric.TagType.external, sample.getMetric().getExternalTags(), out);
+        }
+        out.write(' ');
+        out.writeLong(sample.getTime().toEpochMilli());
+        out.endLine();
+        return true;
+    }
+
+    public static boolean isEncodable(final Sample sample) {
+        final Double value = sample.getValue();
+        return value != null && Double.isFinite(value);
+    }
+
+    /** Returns true if at least one of the samples would result in a line. */
+    public static boolean isAnyEncodable(final List<Sample> samples) {
+        for (int i = 0; i < samples.size(); i++) {
+            if (isEncodable(samples.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The estimated encoded size of all samples, see {@link #estimateSize(Sample)}. */
+    public static long estimateSize(final List<Sample> samples) {
+        long size = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            size += estimateSize(samples.get(i));
+        }
+        return size;
+    }
+
+    /**
+     * A cheap estimate of the encoded size of the sample which doesn't need to encode it. It ignores escaping and
+     * assumes all characters to be ASCII.
+     */
+    public static int estimateSize(final Sample sample) {
+        final Metric metric = sample.getMetric();
+        // ' value=' + value + ' ' + timestamp + '\n'
+        int size = 40;
+        final Tag name = metric.getFirstTagByKey(IntrinsicTagNames.name);
+        if (name != null) {
+            size += name.getValue().length();
+        }
+        for (Metric.TagType tagType : TAG_TYPES_IN_KEY_ORDER) {
+            final Collection<Tag> tags = getTags(metric, tagType);
+            if (tags.isEmpty()) {
+                continue;
+            }
+            final int prefixLength = TAG_PREFIXES[tagType.ordinal()].length;
+            for (Tag tag : tags) {
+                // ',' + prefix + key + '=' + value
+                size += 2 + prefixLength + tag.getKey().length() + tag.getValue().length();
+            }
+        }
+        return size;
+    }
+
+    /** Writes the measurement followed by the sorted and escaped tag set. */
+    void appendSeriesKey(final Metric metric, final LineProtocolBuffer out) {
+        if (seriesKeyCache == null) {
+            encodeSeriesKey(metric, out);
+            return;
+        }
+        final byte[] cached = seriesKeyCache.get(metric);
+        if (cached != null) {
+            out.write(cached);
+            return;
+        }
+        final int start = out.size();
+        encodeSeriesKey(metric, out);
+        seriesKeyCache.put(metric, out.copyOfRange(start));
+    }
+
+    private void encodeSeriesKey(final Metric metric, final LineProtocolBuffer out) {
+        appendMeasurement(metric.getFirstTagByKey(IntrinsicTagNames.name).getValue(), out);
+        for (Metric.TagType tagType : TAG_TYPES_IN_KEY_ORDER) {
+            appendTags(tagType, getTags(metric, tagType), out);
+        }
+    }
+
+    private static Collection<Tag> getTags(final Metric metric, final Metric.TagType tagType) {
+        switch (tagType) {
+            case intrinsic:
+                return metric.getIntrinsicTags();
+            case meta:
+                return metric.getMetaTags();
+            case external:
+                return metric.getExternalTags();
+            default:
+                throw new IllegalArgumentException("Unknown Metric.TagType " + tagType.name());
+        }
+    }
+
+    private void appendTags(final Metric.TagType tagType, final Collection<Tag> tags, final LineProtocolBuffer out) {
+        final int count = tags.size();
+        if (count == 0) {
+            return;
+        }
+        Tag[] sorted = sortBuffers.get();
+        if (sorted.length < count) {
+            sorted = new Tag[Math.max(count, sorted.length * 2)];
+            sortBuffers.set(sorted);
+        }
+        int i = 0;
+        for (Tag tag : tags) {
+            sorted[i++] = tag;
+        }
+        Arrays.sort(sorted, 0, count, BY_KEY);
+        final byte[] prefix = TAG_PREFIXES[tagType.ordinal()];
+        for (i = 0; i < count; i++) {
+            final Tag tag = sorted[i];
+            // Point keeps its tags in a map: the last tag with the same key wins
+            if (i + 1 < count && sorted[i + 1].getKey().equals(tag.getKey())) {
+                continue;
+            }
+            if (isEmpty(tag.getKey()) || isEmpty(tag.getValue()) || !tagStoragePolicy.isStoredAsTag(tagType, tag.getKey())) {
+                continue;
+            }
+            out.write(',');
+            out.write(prefix);
+            appendEscaped(tag.getKey(), out);
+            out.write('=');
+            appendEscaped(tag.getValue(), out);
+        }
+        // don't hold on to the tags of the last sample
+        Arrays.fill(sorted, 0, count, null);
+    }
+
+    /** Writes the tags the policy stores as fields as string fields, in the order of the Metric. */
+    private void appendFields(final Metric.TagType tagType, final Collection<Tag> tags, final LineProtocolBuffer out) {
+        if (tags.isEmpty()) {
+            return;
+        }
+        final byte[] prefix = TAG_PREFIXES[tagType.ordinal()];
+        for (Tag tag : tags) {
+            if (isEmpty(tag.getKey()) || isEmpty(tag.getValue())
+                    || tagStoragePolicy.getStorage(tagType, tag.getKey()) != TagStoragePolicy.Storage.field) {
+                continue;
+            }
+            out.write(',');
+            out.write(prefix);
+            appendEscaped(tag.getKey(), out);
+            out.write('=');
+            out.write('"');
+            appendStringFieldValue(tag.getValue(), out);
+            out.write('"');
+        }
+    }
+
+    /** Escapes the same characters as Point does in string fields, only '"' and '\'. */
+    private static void appendStringFieldValue(final String value, final LineProtocolBuffer out) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                out.writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.writeCodePoint(c);
+            }
+        }
+    }
+
+    private static boolean isEmpty(final String value) {
+        return value == null || value.isEmpty();
+    }
+
+    static void appendMeasurement(final String measurement, final LineProtocolBuffer out) {
+        appendEscaped(measurement, false, out);
+    }
+
+    static void appendEscaped(final String value, final LineProtocolBuffer out) {
+        appendEscaped(value, true, out);
+    }
+
+    /**
+     * Escapes the same characters as Point does. In a measurement '=' doesn't need escaping, we replace it with '-'
+     * instead to stay compatible with the data written by previous versions.
+     */
+    private static void appendEscaped(final String value, final boolean isKeyOrValue, final LineProtocolBuffer out) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\n':
+                    out.write('\\');
+                    out.write('n');
+                    break;
+                case '\r':
+                    out.write('\\');
+                    out.write('r');
+                    break;
+                case '\t':
+                    out.write('\\');
+                    out.write('t');
+                    break;
+                case ' ':
+                case ',':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                case '=':
+                    if (isKeyOrValue) {
+                        out.write('\\');
+                        out.write(c);
+                    } else {
+                        out.write('-');
+                    }
+                    break;
+                default:
+                    if (c < 0x80) {
+                        out.write(c);
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        out.writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+                    } else if (Character.isSurrogate(c)) {
+                        out.write('?'); // unpaired surrogate, same replacement as String.getBytes(UTF_8)
+                    } else {
+                        out.writeCodePoint(c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Writes the value in plain decimal notation if it can be represented exactly with a few fraction digits, which is
+     * the case for most collected values. Everything else falls back to the shortest decimal representation of the
+     * double, in plain notation as well. Point writes the same digits, but always with a fraction, e.g. '42.0' where
+     * we write '42'. Both are parsed as the same float by InfluxDB.
+     */
+    static void appendDouble(final double value, final LineProtocolBuffer out) {
+        if (value == (long) value && Math.abs(value) < MAX_EXACT_LONG) {
+            out.writeLong((long) value);
+            return;
+        }
+        for (int fractionDigits = 1; fractionDigits <= MAX_FRACTION_DIGITS; fractionDigits++) {
+            final double scaled = value * POWERS_OF_TEN[fractionDigits];
+            if (Math.abs(scaled) >= MAX_EXACT_LONG) {
+                break;
+            }
+            final long unscaled = Math.round(scaled);
+            if (unscaled / (double) POWERS_OF_TEN[fractionDigits] == value) {
+                appendDecimal(unscaled, fractionDigits, out);
+                return;
+            }
+        }
+        final String asString = BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+        for (int i = 0; i < asString.length(); i++) {
+            out.write(asString.charAt(i));
+        }
+    }
+
+    private static void appendDecimal(final long unscaled, final int fractionDigits, final LineProtocolBuffer out) {
+        if (unscaled < 0) {
+            out.write('-');
+        }
+        final long abs = Math.abs(unscaled);
+        out.writeLong(abs / POWERS_OF_TEN[fractionDigits]);
+        out.write('.');
+        long fraction = abs % POWERS_OF_TEN[fractionDigits];
+        for (int digit = fractionDigits - 1; digit >= 0; digit--) {
+            out.write('0' + (int) (fraction / POWERS_OF_TEN[digit]));
+            fraction %= POWERS_OF_TEN[digit];
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.Deflater;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Encodes the samples when OkHttp writes the request and compresses them straight into the sink. Like this the only
+ * copy of the payload is the reused buffer of the encoder, no String or byte array is created per request.
+ * The body can be written more than once since it is encoded from the samples every time.
+ */
+public class LineProtocolRequestBody extends RequestBody {
+
+    static final MediaType CONTENT_TYPE = MediaType.get("text/plain; charset=utf-8");
+
+    private static final byte[] GZIP_HEADER = new byte[]{
+            0x1f, (byte) 0x8b, // magic
+            Deflater.DEFLATED, // compression method
+            0, // flags
+            0, 0, 0, 0, // modification time
+            0, // extra flags
+            (byte) 0xff // operating system: unknown
+    };
+
+    private final List<Sample> samples;
+    private final LineProtocolEncoder encoder;
+    private final byte[] encoded;
+    private final DeflaterPool deflaters;
+    private volatile int lines;
+    private volatile long uncompressedBytes;
+    private volatile long writtenBytes;
+
+    /**
+     * @param deflaters null if the body should not be compressed
+     */
+    public LineProtocolRequestBody(final List<Sample> samples, final LineProtocolEncoder encoder, final DeflaterPool deflaters) {
+        this.samples = Objects.requireNonNull(samples);
+        this.encoder = Objects.requireNonNull(encoder);
+        this.encoded = null;
+        this.deflaters = deflaters;
+    }
+
+    /**
+     * Creates a body for line protocol which was already encoded, e.g. a batch from the {@link WriteSpool}.
+     *
+     * @param deflaters null if the body should not be compressed
+     */
+    public LineProtocolRequestBody(final byte[] encoded, final int lines, final DeflaterPool deflaters) {
+        this.samples = null;
+        this.encoder = null;
+        this.encoded = Objects.requireNonNull(encoded);
+        this.deflaters = deflaters;
+        this.lines = lines;
+        this.uncompressedBytes = encoded.length;
+    }
+
+    public boolean isCompressed() {
+        return deflaters != null;
+    }
+
+    /** Number of lines written by the last call to {@link #writeTo(BufferedSink)}. */
+    public int getLines() {
+        return lines;
+    }
+
+    /** Size of the line protocol before compression, as of the last call to {@link #writeTo(BufferedSink)}. */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /** Size of the body as sent, after compression, as of the last call to {@link #writeTo(BufferedSink)}. */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void writeTo(final BufferedSink sink) throws IOException {
+        if (encoded != null) {
+            write(encoded, encoded.length, sink);
+            return;
+        }
+        final LineProtocolBuffer buffer = encoder.encode(samples);
+        lines = buffer.lines();
+        uncompressedBytes = buffer.size();
+        write(buffer.array(), buffer.size(), sink);
+    }
+
+    private void write(final byte[] content, final int length, final BufferedSink sink) throws IOException {
+        if (deflaters == null) {
+            sink.write(content, 0, length);
+            writtenBytes = length;
+        } else {
+            writtenBytes = writeCompressed(content, length, sink);
+        }
+    }
+
+    /** Returns the number of bytes written. */
+    private long writeCompressed(final byte[] content, final int length, final BufferedSink sink) throws IOException {
+        final DeflaterPool.PooledDeflater pooled = deflaters.borrow();
+        try {
+            long written = GZIP_HEADER.length + 8;
+            final Deflater deflater = pooled.deflater;
+            pooled.crc.update(content, 0, length);
+            deflater.setInput(content, 0, length);
+            deflater.finish();
+            sink.write(GZIP_HEADER);
+            while (!deflater.finished()) {
+                final int deflated = deflater.deflate(pooled.chunk);
+                sink.write(pooled.chunk, 0, deflated);
+                written += deflated;
+            }
+            sink.writeIntLe((int) pooled.crc.getValue());
+            sink.writeIntLe(length);
+            return written;
+        } finally {
+            deflaters.release(pooled);
+        }
+    }
+}
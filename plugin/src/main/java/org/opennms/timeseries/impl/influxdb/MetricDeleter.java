@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Queues the metrics to delete and deletes them per resource. OpenNMS deletes the metrics of a resource one by one,
+ * the deletes arriving within lingerInMs are grouped by their resource and handed over together, at most parallelism
+ * resources are deleted at the same time.
+ */
+public class MetricDeleter {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricDeleter.class);
+
+    @FunctionalInterface
+    public interface ResourceDeleter {
+        /** Deletes the given metrics, all of them belong to the resource. */
+        void delete(String resourceId, List<Metric> metrics) throws Exception;
+    }
+
+    private final ResourceDeleter resourceDeleter;
+    private final ScheduledExecutorService dispatcher;
+    private final ExecutorService executor;
+    private final Map<String, PendingResource> pending = new LinkedHashMap<>();
+    /** The resources handed over to the executor and not done yet. */
+    private final Set<PendingResource> inProgress = ConcurrentHashMap.newKeySet();
+    private int pendingMetrics;
+    private boolean closed;
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Meter metricsDeleted = metrics.meter("metricsDeleted");
+    private final Meter deletesFailed = metrics.meter("deletesFailed");
+    private final Timer deleteDuration = metrics.timer("deleteDuration");
+
+    public MetricDeleter(final long lingerInMs, final int parallelism, final ResourceDeleter resourceDeleter) {
+        if (lingerInMs < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("lingerInMs and parallelism must be positive.");
+        }
+        this.resourceDeleter = Objects.requireNonNull(resourceDeleter);
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-delete-dispatcher-%d")
+                .setDaemon(true)
+                .build());
+        this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-delete-%d")
+                .setDaemon(true)
+                .build());
+        dispatcher.scheduleWithFixedDelay(this::flush, lingerInMs, lingerInMs, TimeUnit.MILLISECONDS);
+        metrics.register("pendingDeletes", (Gauge<Integer>) this::getPendingMetrics);
+    }
+
+    /** Queues the metric, the returned future completes once it was deleted. It fails right away once we are closed. */
+    public CompletableFuture<Void> delete(final Metric metric) {
+        final Tag resourceId = metric.getFirstTagByKey(IntrinsicTagNames.resourceId);
+        if (resourceId == null) {
+            throw new IllegalArgumentException("The metric has no resourceId: " + metric);
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (pending) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("The deleter is closed."));
+                return future;
+            }
+            final PendingResource resource = pending.computeIfAbsent(resourceId.getValue(), PendingResource::new);
+            resource.metrics.add(metric);
+            resource.futures.add(future);
+            pendingMetrics++;
+        }
+        return future;
+    }
+
+    /** Hands over all queued deletes. The returned future completes once they are done. */
+    public CompletableFuture<Void> flush() {
+        final List<PendingResource> resources;
+        synchronized (pending) {
+            resources = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (PendingResource resource : resources) {
+            futures.addAll(resource.futures);
+            inProgress.add(resource);
+            try {
+                executor.execute(() -> deleteResource(resource));
+            } catch (RejectedExecutionException e) {
+                // a scheduled flush racing with close()
+                complete(resource, new IllegalStateException("The deleter is closed."));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    private void deleteResource(final PendingResource resource) {
+        Throwable failure = null;
+        try (Timer.Context ignored = deleteDuration.time()) {
+            resourceDeleter.delete(resource.resourceId, resource.metrics);
+            metricsDeleted.mark(resource.metrics.size());
+        } catch (Exception e) {
+            deletesFailed.mark(resource.metrics.size());
+            LOG.warn("Could not delete {} metrics of the resource {}.", resource.metrics.size(), resource.resourceId, e);
+            failure = e;
+        }
+        complete(resource, failure);
+    }
+
+    /** Completes the futures of the resource, only the first call for a resource counts. */
+    private void complete(final PendingResource resource, final Throwable failure) {
+        if (!inProgress.remove(resource)) {
+            return;
+        }
+        synchronized (pending) {
+            pendingMetrics -= resource.metrics.size();
+        }
+        for (CompletableFuture<Void> future : resource.futures) {
+            if (failure == null) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /** The number of metrics queued or being deleted. */
+    public int getPendingMetrics() {
+        synchronized (pending) {
+            return pendingMetrics;
+        }
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Deletes the queued metrics, waits at most timeoutInMs for them. The deletes still running then fail, just as the
+     * deletes queued after the close.
+     */
+    public void close(final long timeoutInMs) {
+        synchronized (pending) {
+            closed = true;
+        }
+        dispatcher.shutdownNow();
+        flush();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutInMs, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Gave up waiting for {} metrics to be deleted.", getPendingMetrics());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+        for (PendingResource resource : inProgress) {
+            complete(resource, new IllegalStateException("The deleter was closed before the metrics were deleted."));
+        }
+    }
+
+    private static final class PendingResource {
+        private final String resourceId;
+        private final List<Metric> metrics = new ArrayList<>();
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        private PendingResource(final String resourceId) {
+            this.resourceId = resourceId;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Restores Metrics from the tag columns we get out of InfluxDB. Our tag columns carry the tag type as prefix, all
+ * other columns are InfluxDB specific and ignored. The same series come back with every query, the Metrics are hence
+ * interned: a cache maps the tag columns to the Metric built from them the first time.
+ */
+public class MetricFactory {
+
+    private static final String INTRINSIC_PREFIX = LineProtocolEncoder.toClassifiedTagPrefix(Metric.TagType.intrinsic);
+    private static final String META_PREFIX = LineProtocolEncoder.toClassifiedTagPrefix(Metric.TagType.meta);
+    private static final String EXTERNAL_PREFIX = LineProtocolEncoder.toClassifiedTagPrefix(Metric.TagType.external);
+
+    private final Cache<TagColumns, Metric> cache;
+    private final MetricRegistry metrics = new MetricRegistry();
+
+    /** @param maxSize the maximum number of interned Metrics, 0 disables the cache */
+    public MetricFactory(final long maxSize) {
+        if (maxSize > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumSize(maxSize)
+                    .recordStats()
+                    .build();
+            metrics.register("metricCacheSize", (Gauge<Long>) cache::size);
+            metrics.register("metricCacheHits", (Gauge<Long>) () -> cache.stats().hitCount());
+            metrics.register("metricCacheMisses", (Gauge<Long>) () -> cache.stats().missCount());
+            metrics.register("metricCacheHitRatio", (Gauge<Double>) () -> cache.stats().hitRate());
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /** Returns the interned Metric of the columns. */
+    public Metric createMetric(final Map<String, ?> columns) {
+        final TagColumns tagColumns = TagColumns.of(columns);
+        if (cache == null) {
+            return tagColumns.toMetric();
+        }
+        Metric metric = cache.getIfPresent(tagColumns);
+        if (metric == null) {
+            metric = tagColumns.toMetric();
+            cache.put(tagColumns, metric);
+        }
+        return metric;
+    }
+
+    /** Builds the Metric without interning it, for series which are unlikely to be queried again soon. */
+    public Metric buildMetric(final Map<String, ?> columns) {
+        return TagColumns.of(columns).toMetric();
+    }
+
+    /** Returns the type of a tag column, or null if the column is no tag of ours. */
+    static Metric.TagType classify(final String column) {
+        if (column.isEmpty()) {
+            return null;
+        }
+        // a single character decides which prefix we need to check
+        switch (column.charAt(0)) {
+            case 'i':
+                return column.startsWith(INTRINSIC_PREFIX) ? Metric.TagType.intrinsic : null;
+            case 'm':
+                return column.startsWith(META_PREFIX) ? Metric.TagType.meta : null;
+            case 'e':
+                return column.startsWith(EXTERNAL_PREFIX) ? Metric.TagType.external : null;
+            default:
+                return null;
+        }
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /** The tag columns and values of a series, sorted by column so that the column order of a query doesn't matter. */
+    private static class TagColumns {
+        private final String[] columnsAndValues;
+        private final Metric.TagType[] types;
+        private final int hashCode;
+
+        private TagColumns(final String[] columnsAndValues, final Metric.TagType[] types) {
+            this.columnsAndValues = columnsAndValues;
+            this.types = types;
+            this.hashCode = Arrays.hashCode(columnsAndValues);
+        }
+
+        private static TagColumns of(final Map<String, ?> columns) {
+            String[] columnsAndValues = new String[2 * columns.size()];
+            Metric.TagType[] types = new Metric.TagType[columns.size()];
+            int size = 0;
+            for (Map.Entry<String, ?> entry : columns.entrySet()) {
+                final Metric.TagType type = entry.getValue() != null ? classify(entry.getKey()) : null;
+                if (type == null) {
+                    continue;
+                }
+                // insertion sort, series have a handful of tags
+                final String column = entry.getKey();
+                int i = size;
+                while (i > 0 && columnsAndValues[2 * (i - 1)].compareTo(column) > 0) {
+                    columnsAndValues[2 * i] = columnsAndValues[2 * (i - 1)];
+                    columnsAndValues[2 * i + 1] = columnsAndValues[2 * (i - 1) + 1];
+                    types[i] = types[i - 1];
+                    i--;
+                }
+                columnsAndValues[2 * i] = column;
+                columnsAndValues[2 * i + 1] = entry.getValue().toString();
+                types[i] = type;
+                size++;
+            }
+            if (size < types.length) {
+                columnsAndValues = Arrays.copyOf(columnsAndValues, 2 * size);
+                types = Arrays.copyOf(types, size);
+            }
+            return new TagColumns(columnsAndValues, types);
+        }
+
+        private Metric toMetric() {
+            final ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
+            for (int i = 0; i < types.length; i++) {
+                final String column = columnsAndValues[2 * i];
+                final String value = columnsAndValues[2 * i + 1];
+                switch (types[i]) {
+                    case intrinsic:
+                        metric.intrinsicTag(column.substring(INTRINSIC_PREFIX.length()), value);
+                        break;
+                    case meta:
+                        metric.metaTag(column.substring(META_PREFIX.length()), value);
+                        break;
+                    case external:
+                        metric.externalTag(column.substring(EXTERNAL_PREFIX.length()), value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return metric.build();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TagColumns)) {
+                return false;
+            }
+            final TagColumns that = (TagColumns) o;
+            return hashCode == that.hashCode && Arrays.equals(columnsAndValues, that.columnsAndValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Routes the queries of a node across its mirrored replicas. Each query goes to the replica selected by the
+ * {@link InfluxdbConfig.ReadBalancingStrategy}. If it didn't answer after the hedge delay, the readHedgePercentile of
+ * the recent query latencies, the query is sent to a second replica as well: the first answer wins, the other
+ * attempt is cancelled. A failed attempt is retried on a replica that wasn't tried yet.
+ * <p>
+ * A replica that wasn't used for a while is probed again, a penalty for a failure doesn't stick forever.
+ */
+public class ReadReplicas<A> {
+
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final long PROBE_INTERVAL_IN_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long HEDGE_DELAY_REFRESH_IN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** We don't hedge before we have an idea of the usual latency. */
+    private static final long MIN_SAMPLES_FOR_HEDGING = 20;
+
+    @FunctionalInterface
+    public interface Query<A, T> {
+        /**
+         * Starts the query and completes the attempt with its result. The attempt is cancelled if another replica
+         * answered first, the query should then stop reading the response.
+         */
+        void start(A api, CompletableFuture<T> attempt);
+    }
+
+    private final List<Replica<A>> replicas;
+    private final InfluxdbConfig.ReadBalancingStrategy strategy;
+    private final double hedgePercentile;
+    private final long hedgeMinDelayInNanos;
+    private final long failurePenaltyInNanos;
+    private final ScheduledExecutorService hedgeScheduler;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Histogram latency = metrics.histogram("latency");
+    private final Meter hedges = metrics.meter("hedges");
+    private final Meter hedgesWon = metrics.meter("hedgesWon");
+    private final Meter failovers = metrics.meter("failovers");
+    private volatile long hedgeDelayInNanos = -1;
+    private volatile long hedgeDelayUpdatedAt = System.nanoTime() - HEDGE_DELAY_REFRESH_IN_NANOS;
+
+    /**
+     * @param hedgeScheduler schedules the hedged attempts, null disables hedging
+     */
+    public ReadReplicas(final List<String> names, final List<A> apis, final InfluxdbConfig.ReadBalancingStrategy strategy,
+                        final double hedgePercentile, final long hedgeMinDelayInMs, final long failurePenaltyInMs,
+                        final ScheduledExecutorService hedgeScheduler) {
+        if (apis.isEmpty() || names.size() != apis.size()) {
+            throw new IllegalArgumentException("At least one replica with a name is required.");
+        }
+        final List<Replica<A>> replicas = new ArrayList<>(apis.size());
+        for (int i = 0; i < apis.size(); i++) {
+            final Replica<A> replica = new Replica<>(apis.get(i), metrics.timer("latency." + names.get(i)));
+            metrics.register("outstanding." + names.get(i), (Gauge<Integer>) replica.outstanding::get);
+            replicas.add(replica);
+        }
+        this.replicas = Collections.unmodifiableList(replicas);
+        this.strategy = Objects.requireNonNull(strategy);
+        this.hedgePercentile = hedgePercentile;
+        this.hedgeMinDelayInNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayInMs);
+        this.failurePenaltyInNanos = TimeUnit.MILLISECONDS.toNanos(failurePenaltyInMs);
+        this.hedgeScheduler = replicas.size() > 1 && hedgePercentile > 0 ? hedgeScheduler : null;
+    }
+
+    /** The api of the first replica, for the requests which must not go to a replica. */
+    public A getPrimary() {
+        return replicas.get(0).api;
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /** Runs the query and waits for the first answer. */
+    public <T> T query(final Query<A, T> query) throws StorageException {
+        try {
+            return queryAsync(query).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof StorageException ? (StorageException) e.getCause() : new StorageException(e.getCause());
+        }
+    }
+
+    public <T> CompletableFuture<T> queryAsync(final Query<A, T> query) {
+        final Execution<T> execution = new Execution<>(query);
+        execution.startAttempt(false);
+        if (hedgeScheduler != null) {
+            final long delay = getHedgeDelayInNanos();
+            if (delay > 0) {
+                final ScheduledFuture<?> hedge = hedgeScheduler.schedule(() -> execution.startAttempt(true), delay, TimeUnit.NANOSECONDS);
+                execution.result.whenComplete((r, ex) -> hedge.cancel(false));
+            }
+        }
+        return execution.result;
+    }
+
+    private long getHedgeDelayInNanos() {
+        final long now = System.nanoTime();
+        if (hedgeDelayInNanos < 0 || now - hedgeDelayUpdatedAt > HEDGE_DELAY_REFRESH_IN_NANOS) {
+            // taking a snapshot sorts the reservoir, we don't do that for every query
+            hedgeDelayUpdatedAt = now;
+            hedgeDelayInNanos = latency.getCount() < MIN_SAMPLES_FOR_HEDGING ? -1
+                    : Math.max(hedgeMinDelayInNanos, (long) latency.getSnapshot().getValue(hedgePercentile));
+        }
+        return hedgeDelayInNanos;
+    }
+
+    /** Selects the best replica which isn't excluded, null if all of them are. */
+    private Replica<A> select(final List<Replica<A>> excluded) {
+        final long now = System.nanoTime();
+        // the ties are broken round robin
+        final int offset = Math.floorMod(next.getAndIncrement(), replicas.size());
+        Replica<A> best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < replicas.size(); i++) {
+            final Replica<A> replica = replicas.get((offset + i) % replicas.size());
+            if (excluded.contains(replica)) {
+                continue;
+            }
+            final double score = strategy == InfluxdbConfig.ReadBalancingStrategy.leastOutstanding
+                    ? replica.outstanding.get()
+                    : replica.getEwmaScore(now);
+            if (best == null || score < bestScore) {
+                best = replica;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private final class Execution<T> {
+        private final Query<A, T> query;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final List<Replica<A>> tried = new ArrayList<>(2);
+        private final List<CompletableFuture<T>> attempts = new ArrayList<>(2);
+        private int running;
+
+        private Execution(final Query<A, T> query) {
+            this.query = query;
+        }
+
+        /** Starts an attempt on a replica which wasn't tried yet, returns false if there is none left. */
+        private synchronized boolean startAttempt(final boolean hedge) {
+            if (result.isDone()) {
+                return false;
+            }
+            final Replica<A> replica = select(tried);
+            if (replica == null) {
+                return false;
+            }
+            tried.add(replica);
+            running++;
+            if (hedge) {
+                hedges.mark();
+            }
+            final CompletableFuture<T> attempt = new CompletableFuture<>();
+            attempts.add(attempt);
+            replica.outstanding.incrementAndGet();
+            final long start = System.nanoTime();
+            attempt.whenComplete((value, ex) -> onAttemptDone(replica, hedge, System.nanoTime() - start, value, ex));
+            try {
+                query.start(replica.api, attempt);
+            } catch (RuntimeException e) {
+                attempt.completeExceptionally(e);
+            }
+            return true;
+        }
+
+        private void onAttemptDone(final Replica<A> replica, final boolean hedge, final long durationInNanos, final T value, final Throwable ex) {
+            replica.outstanding.decrementAndGet();
+            if (ex instanceof CancellationException) {
+                // lost the race, the duration says nothing about the replica
+                return;
+            }
+            if (ex == null) {
+                replica.update(durationInNanos);
+                latency.update(durationInNanos);
+                if (result.complete(value)) {
+                    if (hedge) {
+                        hedgesWon.mark();
+                    }
+                    cancelAttempts();
+                }
+                return;
+            }
+            replica.update(Math.max(durationInNanos, failurePenaltyInNanos));
+            synchronized (this) {
+                running--;
+                if (startAttempt(false)) {
+                    failovers.mark();
+                } else if (running == 0) {
+                    result.completeExceptionally(ex);
+                }
+            }
+        }
+
+        private void cancelAttempts() {
+            final List<CompletableFuture<T>> toCancel;
+            synchronized (this) {
+                toCancel = new ArrayList<>(attempts);
+            }
+            toCancel.forEach(attempt -> attempt.cancel(true));
+        }
+    }
+
+    private static final class Replica<A> {
+        private final A api;
+        private final Timer timer;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private double ewmaInNanos;
+        private long updatedAt = System.nanoTime();
+
+        private Replica(final A api, final Timer timer) {
+            this.api = api;
+            this.timer = timer;
+        }
+
+        private synchronized void update(final long durationInNanos) {
+            timer.update(durationInNanos, TimeUnit.NANOSECONDS);
+            ewmaInNanos = ewmaInNanos <= 0 ? durationInNanos : ewmaInNanos + (durationInNanos - ewmaInNanos) * EWMA_WEIGHT;
+            updatedAt = System.nanoTime();
+        }
+
+        private synchronized double getEwmaScore(final long now) {
+            if (now - updatedAt > PROBE_INTERVAL_IN_NANOS) {
+                // not used for a while, probe it
+                return 0;
+            }
+            return ewmaInNanos * (outstanding.get() + 1);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed writes are worth retrying and how long to wait before the next attempt. The delay grows
+ * exponentially with the number of retries and is jittered, so that writers which failed at the same time don't retry
+ * at the same time. A Retry-After sent by InfluxDB takes precedence if it asks us to wait longer.
+ */
+public class RetryPolicy {
+
+    private final int maxRetries;
+    private final long initialBackoffInMs;
+    private final long maxBackoffInMs;
+
+    public RetryPolicy(final int maxRetries, final long initialBackoffInMs, final long maxBackoffInMs) {
+        if (initialBackoffInMs < 1 || maxBackoffInMs < initialBackoffInMs) {
+            throw new IllegalArgumentException("Backoff must be positive and the max backoff must not be smaller than the initial backoff.");
+        }
+        this.maxRetries = maxRetries;
+        this.initialBackoffInMs = initialBackoffInMs;
+        this.maxBackoffInMs = maxBackoffInMs;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Network errors and 5xx, 408 and 429 responses are retryable. Everything else, e.g. a 400 for a malformed line
+     * protocol or a full bulkhead, would just fail again.
+     */
+    public boolean isRetryable(final Throwable cause) {
+        if (cause instanceof InfluxdbHttpException) {
+            return !((InfluxdbHttpException) cause).isPermanent();
+        }
+        return cause instanceof IOException;
+    }
+
+    /** Returns true if another attempt should be made after the given number of retries failed. */
+    public boolean shouldRetry(final int retries, final Throwable cause) {
+        return retries < maxRetries && isRetryable(cause);
+    }
+
+    /**
+     * The delay before the given retry (starting at 1): half of the exponential backoff plus a random part of up to the
+     * other half.
+     */
+    public long getDelayInMs(final int retry, final Throwable cause) {
+        final long backoff = getBackoffInMs(retry);
+        final long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        if (cause instanceof InfluxdbHttpException) {
+            return Math.max(jittered, ((InfluxdbHttpException) cause).getRetryAfterInMs());
+        }
+        return jittered;
+    }
+
+    long getBackoffInMs(final int retry) {
+        final int exponent = Math.max(0, Math.min(retry - 1, 62));
+        final long backoff = initialBackoffInMs << exponent;
+        // detect the overflow of the shift
+        if (backoff <= 0 || (backoff >> exponent) != initialBackoffInMs) {
+            return maxBackoffInMs;
+        }
+        return Math.min(backoff, maxBackoffInMs);
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+
+/**
+ * Turns the records of a query for the tags of the series into Metrics. If the tag storage policy stores tags as
+ * fields, each field of a series is a table of its own. The query then has to return the fields with their values,
+ * the records of a series are merged and the fields become tags again. Otherwise every record is a Metric of its own,
+ * the columns which aren't tags are ignored.
+ */
+class SeriesCollector {
+
+    private static final String TAG_RESOURCE_ID = Metric.TagType.intrinsic.name() + "_" + IntrinsicTagNames.resourceId;
+
+    private final boolean mergeFields;
+    private final Function<Map<String, ?>, Metric> metricFactory;
+    private final Consumer<Metric> sink;
+    private final Map<Map<String, Object>, Map<String, Object>> columnsBySeries = new LinkedHashMap<>();
+
+    /**
+     * @param mergeFields true if the records carry the tags stored as fields in their _field and _value columns
+     * @param sink        receives the Metrics, a Metric may be passed more than once
+     */
+    SeriesCollector(final boolean mergeFields, final Function<Map<String, ?>, Metric> metricFactory, final Consumer<Metric> sink) {
+        this.mergeFields = mergeFields;
+        this.metricFactory = Objects.requireNonNull(metricFactory);
+        this.sink = Objects.requireNonNull(sink);
+    }
+
+    void add(final Map<String, Object> values) {
+        if (!values.containsKey(TAG_RESOURCE_ID)) { // not one of "ours"
+            return;
+        }
+        if (mergeFields) {
+            addColumns(values);
+        } else {
+            sink.accept(metricFactory.apply(values));
+        }
+    }
+
+    /** Passes the merged series to the sink, must be called after the last record. */
+    void finish() {
+        columnsBySeries.values().forEach(columns -> sink.accept(metricFactory.apply(columns)));
+        columnsBySeries.clear();
+    }
+
+    /** Collects the tag columns of the series and adds the tags stored as fields to them, as if they were tag columns. */
+    private void addColumns(final Map<String, Object> values) {
+        final Map<String, Object> tags = new HashMap<>();
+        values.forEach((column, value) -> {
+            if (value != null && MetricFactory.classify(column) != null) {
+                tags.put(column, value);
+            }
+        });
+        final Map<String, Object> columns = columnsBySeries.computeIfAbsent(tags, HashMap::new);
+        final Object field = values.get("_field");
+        final Object value = values.get("_value");
+        if (field != null && value != null && MetricFactory.classify(field.toString()) != null) {
+            columns.put(field.toString(), value);
+        }
+    }
+}
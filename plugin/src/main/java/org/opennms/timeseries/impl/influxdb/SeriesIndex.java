@@ -0,0 +1,634 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+package org.opennms.timeseries.impl.influxdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+/**
+ * An inverted index of the stored series which answers findMetrics() without querying InfluxDB. The distinct tags are
+ * kept once in a dictionary, a series is just the sorted array of the ids of its tags. Every series gets a sequential
+ * id, the intrinsic and meta tags point to the sorted ids of the series carrying them. Since ids are handed out in
+ * ascending order the posting lists stay sorted without any extra work. The lookups by tag and by series use open
+ * addressing tables of primitive ints, the Metrics are only built for the results of find().
+ * <p>
+ * The semantics match the query we send to InfluxDB: a matcher matches if the intrinsic or the meta tag with the
+ * given key matches. Negative matchers are joined with "and" instead, they only match if both the intrinsic and the
+ * meta tag with the key differ from the value, a tag the series doesn't carry is left out. A series needs to carry the
+ * key either way. Regular expressions match if they are found anywhere in the value. External
+ * tags are not searchable. The index is only used once it is ready, i.e. after it was loaded from a file or rebuilt
+ * from InfluxDB.
+ */
+public class SeriesIndex {
+
+    private static final int MAGIC = 0x1f1d5e01;
+    private static final Metric.TagType[] TAG_TYPES = Metric.TagType.values();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** The distinct tags by tag id. */
+    private final List<TagEntry> tags = new ArrayList<>();
+    private final IdTable tagIds = new IdTable();
+    /** The tag ids of the intrinsic and the meta tags by key, regular expressions are evaluated once per value. */
+    private final Map<String, IntList> intrinsicKeys = new HashMap<>();
+    private final Map<String, IntList> metaKeys = new HashMap<>();
+    /** The sorted tag ids of the series by series id, null for removed series. */
+    private int[][] series = new int[16][];
+    private int nextSeriesId;
+    private final IdTable seriesIds = new IdTable();
+    private volatile int size;
+    private volatile boolean ready;
+    private volatile boolean dirty;
+
+    /** Adds the series of the samples, the known series are looked up under the shared lock only. */
+    public void addAll(final List<Sample> samples) {
+        List<Metric> missing = null;
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < samples.size(); i++) {
+                final Metric metric = samples.get(i).getMetric();
+                if (lookup(metric) < 0) {
+                    if (missing == null) {
+                        missing = new ArrayList<>();
+                    }
+                    missing.add(metric);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (missing != null) {
+            missing.forEach(this::add);
+        }
+    }
+
+    public void add(final Metric metric) {
+        lock.writeLock().lock();
+        try {
+            if (lookup(metric) >= 0) {
+                return;
+            }
+            final int[] seriesTags = toTagIds(metric, true);
+            final int id = nextSeriesId++;
+            if (id == series.length) {
+                series = Arrays.copyOf(series, id + (id >> 1));
+            }
+            series[id] = seriesTags;
+            seriesIds.add(Arrays.hashCode(seriesTags), id);
+            for (int tagId : seriesTags) {
+                final IntList postings = tags.get(tagId).postings;
+                if (postings != null) {
+                    postings.add(id);
+                }
+            }
+            size++;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(final Metric metric) {
+        lock.readLock().lock();
+        try {
+            return lookup(metric) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** The id of a removed series stays in the posting lists, it is dropped when the index is loaded next time. */
+    public void remove(final Metric metric) {
+        lock.writeLock().lock();
+        try {
+            final int id = lookup(metric);
+            if (id >= 0) {
+                seriesIds.remove(Arrays.hashCode(series[id]), id);
+                series[id] = null;
+                size--;
+                dirty = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            ready = false;
+            tags.clear();
+            tagIds.clear();
+            intrinsicKeys.clear();
+            metaKeys.clear();
+            series = new int[16][];
+            nextSeriesId = 0;
+            seriesIds.clear();
+            size = 0;
+            dirty = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Returns the series id of the metric or -1. Must be called with the lock held. */
+    private int lookup(final Metric metric) {
+        final int[] seriesTags = toTagIds(metric, false);
+        if (seriesTags == null) {
+            return -1;
+        }
+        return seriesIds.find(Arrays.hashCode(seriesTags), id -> Arrays.equals(series[id], seriesTags));
+    }
+
+    /** Returns the sorted tag ids of the metric, or null if a tag is unknown and create is false. */
+    private int[] toTagIds(final Metric metric, final boolean create) {
+        final int[] ids = new int[metric.getIntrinsicTags().size() + metric.getMetaTags().size() + metric.getExternalTags().size()];
+        int i = 0;
+        for (Metric.TagType tagType : TAG_TYPES) {
+            for (Tag tag : getTags(metric, tagType)) {
+                final int id = create ? getOrCreateTagId(tagType, tag) : getTagId(tagType, tag.getKey(), tag.getValue());
+                if (id < 0) {
+                    return null;
+                }
+                ids[i++] = id;
+            }
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private int getTagId(final Metric.TagType tagType, final String key, final String value) {
+        return tagIds.find(TagEntry.hash(tagType, key, value), id -> tags.get(id).is(tagType, key, value));
+    }
+
+    private int getOrCreateTagId(final Metric.TagType tagType, final Tag tag) {
+        int id = getTagId(tagType, tag.getKey(), tag.getValue());
+        if (id >= 0) {
+            return id;
+        }
+        id = tags.size();
+        final TagEntry entry = new TagEntry(tagType, tag.getKey(), tag.getValue());
+        tags.add(entry);
+        tagIds.add(entry.hash, id);
+        final Map<String, IntList> keys = getKeys(tagType);
+        if (keys != null) {
+            keys.computeIfAbsent(tag.getKey(), k -> new IntList()).add(id);
+        }
+        return id;
+    }
+
+    /** The tag ids by key of the searchable tag types, null for external tags. */
+    private Map<String, IntList> getKeys(final Metric.TagType tagType) {
+        switch (tagType) {
+            case intrinsic:
+                return intrinsicKeys;
+            case meta:
+                return metaKeys;
+            default:
+                return null;
+        }
+    }
+
+    private static Collection<Tag> getTags(final Metric metric, final Metric.TagType tagType) {
+        switch (tagType) {
+            case intrinsic:
+                return metric.getIntrinsicTags();
+            case meta:
+                return metric.getMetaTags();
+            default:
+                return metric.getExternalTags();
+        }
+    }
+
+    public List<Metric> find(final Collection<TagMatcher> matchers) {
+        if (matchers.isEmpty()) {
+            throw new IllegalArgumentException("Collection<TagMatcher> can not be empty");
+        }
+        lock.readLock().lock();
+        try {
+            int[] result = null;
+            for (TagMatcher matcher : matchers) {
+                final int[] matching = find(matcher);
+                result = result == null ? matching : intersect(result, matching);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            final List<Metric> metrics = new ArrayList<>(result.length);
+            for (int id : result) {
+                if (series[id] != null) {
+                    metrics.add(toMetric(series[id]));
+                }
+            }
+            return metrics;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns the sorted ids of the series matching the matcher. */
+    private int[] find(final TagMatcher matcher) {
+        final IntList matching = new IntList();
+        if (TagMatcher.Type.EQUALS == matcher.getType()) {
+            for (Metric.TagType tagType : new Metric.TagType[]{Metric.TagType.intrinsic, Metric.TagType.meta}) {
+                final int tagId = getTagId(tagType, matcher.getKey(), matcher.getValue());
+                if (tagId >= 0) {
+                    matching.addAll(tags.get(tagId).postings);
+                }
+            }
+            return matching.toSortedSet();
+        }
+        final boolean negative = TagMatcher.Type.NOT_EQUALS == matcher.getType() || TagMatcher.Type.NOT_EQUALS_REGEX == matcher.getType();
+        // the series with a value the negative matcher rejects, the other tag type must not let them in again
+        final IntList rejected = new IntList();
+        final Predicate<String> predicate = toPredicate(matcher);
+        for (Map<String, IntList> keys : Arrays.asList(intrinsicKeys, metaKeys)) {
+            final IntList tagIdsOfKey = keys.get(matcher.getKey());
+            if (tagIdsOfKey == null) {
+                continue;
+            }
+            // the predicate is evaluated once per distinct value, not once per series
+            for (int i = 0; i < tagIdsOfKey.size(); i++) {
+                final TagEntry tag = tags.get(tagIdsOfKey.get(i));
+                if (predicate.test(tag.value)) {
+                    matching.addAll(tag.postings);
+                } else if (negative) {
+                    rejected.addAll(tag.postings);
+                }
+            }
+        }
+        return negative ? subtract(matching.toSortedSet(), rejected.toSortedSet()) : matching.toSortedSet();
+    }
+
+    private Metric toMetric(final int[] seriesTags) {
+        final ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
+        for (int tagId : seriesTags) {
+            final TagEntry tag = tags.get(tagId);
+            switch (tag.type) {
+                case intrinsic:
+                    metric.intrinsicTag(tag.key, tag.value);
+                    break;
+                case meta:
+                    metric.metaTag(tag.key, tag.value);
+                    break;
+                default:
+                    metric.externalTag(tag.key, tag.value);
+            }
+        }
+        return metric.build();
+    }
+
+    private static Predicate<String> toPredicate(final TagMatcher matcher) {
+        final String value = matcher.getValue();
+        switch (matcher.getType()) {
+            case EQUALS:
+                return value::equals;
+            case NOT_EQUALS:
+                return v -> !value.equals(v);
+            case EQUALS_REGEX:
+                final Pattern pattern = Pattern.compile(value);
+                return v -> pattern.matcher(v).find();
+            case NOT_EQUALS_REGEX:
+                final Pattern notPattern = Pattern.compile(value);
+                return v -> !notPattern.matcher(v).find();
+            default:
+                throw new IllegalArgumentException("Unknown TagMatcher.Type " + matcher.getType().name());
+        }
+    }
+
+    static int[] intersect(final int[] a, final int[] b) {
+        final int[] result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /** Returns the values of a which are not in b, both sorted. */
+    static int[] subtract(final int[] a, final int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        final int[] result = new int[a.length];
+        int size = 0;
+        for (int i = 0, j = 0; i < a.length; ) {
+            if (j == b.length || a[i] < b[j]) {
+                result[size++] = a[i++];
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void setReady(final boolean ready) {
+        this.ready = ready;
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Writes the series to the given file. The file is replaced atomically, a crash never leaves a partial index behind. */
+    public void save(final Path file) throws IOException {
+        final List<int[]> snapshot;
+        final TagEntry[] dictionary;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(size);
+            for (int id = 0; id < nextSeriesId; id++) {
+                if (series[id] != null) {
+                    snapshot.add(series[id]);
+                }
+            }
+            dictionary = tags.toArray(new TagEntry[0]);
+            dirty = false;
+        } finally {
+            lock.readLock().unlock();
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.size());
+            for (int[] seriesTags : snapshot) {
+                for (Metric.TagType tagType : TAG_TYPES) {
+                    writeTags(out, tagType, seriesTags, dictionary);
+                }
+            }
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTags(final DataOutputStream out, final Metric.TagType tagType, final int[] seriesTags, final TagEntry[] dictionary) throws IOException {
+        int count = 0;
+        for (int tagId : seriesTags) {
+            if (dictionary[tagId].type == tagType) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (int tagId : seriesTags) {
+            final TagEntry tag = dictionary[tagId];
+            if (tag.type == tagType) {
+                out.writeUTF(tag.key);
+                out.writeUTF(tag.value);
+            }
+        }
+    }
+
+    /** Adds the series of the given file to the index and marks it as ready. */
+    public void load(final Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a series index: " + file);
+            }
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                final ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
+                for (int n = in.readInt(); n > 0; n--) {
+                    metric.intrinsicTag(in.readUTF(), in.readUTF());
+                }
+                for (int n = in.readInt(); n > 0; n--) {
+                    metric.metaTag(in.readUTF(), in.readUTF());
+                }
+                for (int n = in.readInt(); n > 0; n--) {
+                    metric.externalTag(in.readUTF(), in.readUTF());
+                }
+                add(metric.build());
+            }
+        }
+        dirty = false;
+        ready = true;
+    }
+
+    /** A distinct tag, the intrinsic and meta tags know the series carrying them. */
+    private static final class TagEntry {
+        private final Metric.TagType type;
+        private final String key;
+        private final String value;
+        private final int hash;
+        /** The ids of the series carrying the tag, null for external tags. */
+        private final IntList postings;
+
+        private TagEntry(final Metric.TagType type, final String key, final String value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.hash = hash(type, key, value);
+            this.postings = type == Metric.TagType.external ? null : new IntList();
+        }
+
+        private static int hash(final Metric.TagType type, final String key, final String value) {
+            return 31 * (31 * type.ordinal() + key.hashCode()) + value.hashCode();
+        }
+
+        private boolean is(final Metric.TagType type, final String key, final String value) {
+            return this.type == type && this.key.equals(key) && this.value.equals(value);
+        }
+    }
+
+    /**
+     * Maps hashes to ids with open addressing and linear probing. The entries themselves live elsewhere, the caller
+     * tells whether an id is the one looked for.
+     */
+    static final class IdTable {
+        private static final int EMPTY = -1;
+        private static final int REMOVED = -2;
+
+        private int[] ids;
+        private int[] hashes;
+        /** The slots which are not empty, removed ones included. */
+        private int used;
+
+        IdTable() {
+            clear();
+        }
+
+        /** Returns the id with the given hash which satisfies the predicate, or -1. */
+        int find(final int hash, final IntPredicate matches) {
+            final int mask = ids.length - 1;
+            for (int i = spread(hash) & mask; ids[i] != EMPTY; i = (i + 1) & mask) {
+                if (ids[i] >= 0 && hashes[i] == hash && matches.test(ids[i])) {
+                    return ids[i];
+                }
+            }
+            return -1;
+        }
+
+        /** Adds an id which must not be in the table yet. */
+        void add(final int hash, final int id) {
+            if (2 * (used + 1) > ids.length) {
+                rehash();
+            }
+            final int mask = ids.length - 1;
+            int i = spread(hash) & mask;
+            while (ids[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            ids[i] = id;
+            hashes[i] = hash;
+            used++;
+        }
+
+        void remove(final int hash, final int id) {
+            final int mask = ids.length - 1;
+            for (int i = spread(hash) & mask; ids[i] != EMPTY; i = (i + 1) & mask) {
+                if (ids[i] == id) {
+                    // the slot stays occupied, probes for other ids must go on past it
+                    ids[i] = REMOVED;
+                    return;
+                }
+            }
+        }
+
+        /** Resizes the table for the live ids and drops the removed ones. */
+        private void rehash() {
+            final int[] oldIds = ids;
+            final int[] oldHashes = hashes;
+            int live = 0;
+            for (int id : oldIds) {
+                if (id >= 0) {
+                    live++;
+                }
+            }
+            final int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, live) * 4));
+            ids = new int[capacity];
+            hashes = new int[capacity];
+            Arrays.fill(ids, EMPTY);
+            used = 0;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldIds[i] >= 0) {
+                    add(oldHashes[i], oldIds[i]);
+                }
+            }
+        }
+
+        void clear() {
+            ids = new int[16];
+            hashes = new int[16];
+            Arrays.fill(ids, EMPTY);
+            used = 0;
+        }
+
+        /** Scrambles the bits, the hashes of similar tags and series are close to each other and would form long runs. */
+        private static int spread(final int hash) {
+            final int h = hash * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /** A growable list of primitive ints, most tag values are carried by a single series only. */
+    static class IntList {
+        private int[] values = new int[1];
+        private int size;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size + Math.max(1, size >> 1));
+            }
+            values[size++] = value;
+        }
+
+        void addAll(final IntList other) {
+            if (size + other.size > values.length) {
+                values = Arrays.copyOf(values, Math.max(size + other.size, size + (size >> 1)));
+            }
+            System.arraycopy(other.values, 0, values, size, other.size);
+            size += other.size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(final int index) {
+            return values[index];
+        }
+
+        /** Returns the distinct values in ascending order. */
+        int[] toSortedSet() {
+            final int[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int distinct = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[distinct++] = sorted[i];
+                }
+            }
+            return distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct);
+        }
+    }
+}
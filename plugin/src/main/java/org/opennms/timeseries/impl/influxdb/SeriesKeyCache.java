@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.Objects;
+import java.util.Set;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the encoded series key (measurement and tag set) of a Metric. The same metrics are stored in every
+ * collection cycle, with the cache only the value and the timestamp need to be encoded for them.
+ */
+public class SeriesKeyCache {
+
+    private final Cache<Metric, SeriesKey> cache;
+    private final MetricRegistry metrics = new MetricRegistry();
+
+    public SeriesKeyCache(final long maxSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        metrics.register("seriesKeyCacheSize", (Gauge<Long>) cache::size);
+        metrics.register("seriesKeyCacheHits", (Gauge<Long>) () -> cache.stats().hitCount());
+        metrics.register("seriesKeyCacheMisses", (Gauge<Long>) () -> cache.stats().missCount());
+        metrics.register("seriesKeyCacheEvictions", (Gauge<Long>) () -> cache.stats().evictionCount());
+        metrics.register("seriesKeyCacheHitRatio", (Gauge<Double>) () -> cache.stats().hitRate());
+    }
+
+    /** Returns the encoded series key or null if it is not cached. */
+    public byte[] get(final Metric metric) {
+        final SeriesKey seriesKey = cache.getIfPresent(metric);
+        return seriesKey != null && seriesKey.matches(metric) ? seriesKey.encoded : null;
+    }
+
+    public void put(final Metric metric, final byte[] encoded) {
+        cache.put(metric, new SeriesKey(metric.getExternalTags(), encoded));
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    private static class SeriesKey {
+        private final Set<Tag> externalTags;
+        private final byte[] encoded;
+
+        private SeriesKey(final Set<Tag> externalTags, final byte[] encoded) {
+            this.externalTags = externalTags;
+            this.encoded = encoded;
+        }
+
+        /** Metric.equals() doesn't necessarily consider the external tags, but they are part of the series key. */
+        private boolean matches(final Metric metric) {
+            return Objects.equals(externalTags, metric.getExternalTags());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+/** The samples of one series kept in primitive arrays. The times are epoch millis in ascending order. */
+public class SeriesSamples {
+
+    private final Metric metric;
+    private long[] times;
+    private double[] values;
+    private int size;
+
+    public SeriesSamples(final Metric metric) {
+        this(metric, 64);
+    }
+
+    public SeriesSamples(final Metric metric, final int initialCapacity) {
+        this.metric = metric;
+        this.times = new long[Math.max(1, initialCapacity)];
+        this.values = new double[times.length];
+    }
+
+    public void add(final long time, final double value) {
+        if (size == times.length) {
+            final int capacity = size + (size >> 1) + 1;
+            times = Arrays.copyOf(times, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTime(final int index) {
+        return times[index];
+    }
+
+    public double getValue(final int index) {
+        return values[index];
+    }
+
+    /** The memory held by the arrays, roughly. */
+    public long getSizeInBytes() {
+        return 16L * times.length + 48;
+    }
+
+    /** Releases the spare capacity, for samples that are kept around. */
+    public void trimToSize() {
+        if (size < times.length) {
+            times = Arrays.copyOf(times, size);
+            values = Arrays.copyOf(values, size);
+        }
+    }
+
+    public void addTo(final List<Sample> samples) {
+        if (samples instanceof ArrayList) {
+            ((ArrayList<Sample>) samples).ensureCapacity(samples.size() + size);
+        }
+        for (int i = 0; i < size; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.ofEpochMilli(times[i]))
+                    .value(values[i])
+                    .build());
+        }
+    }
+}
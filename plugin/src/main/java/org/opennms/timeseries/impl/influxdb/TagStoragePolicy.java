@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+
+/**
+ * Decides how the meta and external tags are written to InfluxDB. Every InfluxDB tag is part of the series key and
+ * ends up in the index of the server, a tag which is never searched, e.g. the external tags, only costs memory there.
+ * Such tags can be stored as string fields of the sample instead, or be dropped. Intrinsic tags identify the series and
+ * are always stored as tags.
+ * <p>
+ * The policy is a comma separated list of {@code <selector>=<storage>}. The selector is a tag type, 'meta' or
+ * 'external', or a tag key prefixed by its type, e.g. 'meta_ifAlias'. A tag key overrides the type, e.g.
+ * {@code external=field,external_owner=tag}.
+ * <p>
+ * The tags which are not stored as tags are not searchable by findMetrics() unless the series index is enabled.
+ * They are restored from the requested Metric by getTimeseries(), findMetrics() restores the tags stored as fields
+ * with the metadata strategy.
+ */
+public class TagStoragePolicy {
+
+    public enum Storage {
+        tag, field, drop;
+    }
+
+    public static final TagStoragePolicy ALL_TAGS = new TagStoragePolicy(Collections.emptyMap(), Collections.emptyMap());
+
+    private final Storage[] byType = new Storage[Metric.TagType.values().length];
+    private final Map<Metric.TagType, Map<String, Storage>> byKey;
+    private final boolean allTags;
+    private final boolean anyField;
+
+    private TagStoragePolicy(final Map<Metric.TagType, Storage> byType, final Map<Metric.TagType, Map<String, Storage>> byKey) {
+        Arrays.fill(this.byType, Storage.tag);
+        byType.forEach((tagType, storage) -> this.byType[tagType.ordinal()] = storage);
+        this.byKey = byKey;
+        this.allTags = Arrays.stream(this.byType).allMatch(Storage.tag::equals)
+                && byKey.values().stream().flatMap(storages -> storages.values().stream()).allMatch(Storage.tag::equals);
+        this.anyField = Arrays.stream(this.byType).anyMatch(Storage.field::equals)
+                || byKey.values().stream().flatMap(storages -> storages.values().stream()).anyMatch(Storage.field::equals);
+    }
+
+    /** Parses the policy, an empty policy stores all tags as tags. */
+    public static TagStoragePolicy parse(final String policy) {
+        if (policy == null || policy.trim().isEmpty()) {
+            return ALL_TAGS;
+        }
+        final Map<Metric.TagType, Storage> byType = new EnumMap<>(Metric.TagType.class);
+        final Map<Metric.TagType, Map<String, Storage>> byKey = new EnumMap<>(Metric.TagType.class);
+        for (String entry : policy.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final int separator = entry.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid tag storage policy '" + entry.trim() + "', expected <selector>=<tag|field|drop>.");
+            }
+            final String selector = entry.substring(0, separator).trim();
+            final Storage storage = Storage.valueOf(entry.substring(separator + 1).trim());
+            final Metric.TagType tagType = MetricFactory.classify(selector);
+            if (tagType != null && selector.length() > LineProtocolEncoder.toClassifiedTagPrefix(tagType).length()) {
+                checkNotIntrinsic(tagType, selector);
+                byKey.computeIfAbsent(tagType, t -> new HashMap<>())
+                        .put(selector.substring(LineProtocolEncoder.toClassifiedTagPrefix(tagType).length()), storage);
+            } else {
+                final Metric.TagType type = Metric.TagType.valueOf(selector);
+                checkNotIntrinsic(type, selector);
+                byType.put(type, storage);
+            }
+        }
+        return new TagStoragePolicy(byType, byKey);
+    }
+
+    private static void checkNotIntrinsic(final Metric.TagType tagType, final String selector) {
+        if (tagType == Metric.TagType.intrinsic) {
+            throw new IllegalArgumentException("Intrinsic tags are always stored as tags: " + selector);
+        }
+    }
+
+    public Storage getStorage(final Metric.TagType tagType, final String key) {
+        if (allTags) {
+            return Storage.tag;
+        }
+        final Map<String, Storage> storages = byKey.get(tagType);
+        if (storages != null) {
+            final Storage storage = storages.get(key);
+            if (storage != null) {
+                return storage;
+            }
+        }
+        return byType[tagType.ordinal()];
+    }
+
+    public boolean isStoredAsTag(final Metric.TagType tagType, final String key) {
+        return getStorage(tagType, key) == Storage.tag;
+    }
+
+    /** True if all tags are stored as tags, i.e. the policy changes nothing. */
+    public boolean isAllTags() {
+        return allTags;
+    }
+
+    /** True if any tag may be stored as a field. */
+    public boolean hasFields() {
+        return anyField;
+    }
+}
@@ -0,0 +1,381 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+
+/**
+ * Caches the results of getTimeseries() in time aligned chunks. A chunk holds the samples of the series with the
+ * requested resourceId and name in primitive arrays, a chunk is only cached once it is older than the settle time
+ * and hence won't change anymore. A repeated request reads the cached chunks and only fetches the missing ones,
+ * usually the new ones at the end, plus the samples younger than the last complete chunk.
+ * <p>
+ * Downsampled results are cached separately per step and aggregation, the chunk duration is then a multiple of the
+ * step so that the windows of InfluxDB's aggregateWindow() never cross a chunk boundary. The memory held by the
+ * chunks is bounded, the least recently used series are evicted first.
+ * <p>
+ * Samples may still arrive after the settle time: replayed from the spool, retried or backfilled. A series is dropped
+ * when we store such a sample for it. The samples written by others, or read again before they reached InfluxDB, show
+ * up once the series expired after timeToLiveInMs.
+ */
+public class TimeseriesCache {
+
+    /** Fetches the samples of the series of the request in the given range, the stop is exclusive. */
+    @FunctionalInterface
+    public interface Fetcher {
+        List<SeriesSamples> fetch(Instant start, Instant stop) throws StorageException;
+    }
+
+    private final long chunkDurationInMs;
+    private final long settleTimeInMs;
+    private final long timeToLiveInMs;
+    private final LongSupplier clock;
+    private final Cache<Key, Entry> cache;
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * @param timeToLiveInMs how long the chunks of a series are kept before they are fetched again, 0 keeps them until
+     *                       the series is evicted
+     */
+    public TimeseriesCache(final long maxSizeInBytes, final long chunkDurationInMs, final long settleTimeInMs, final long timeToLiveInMs) {
+        this(maxSizeInBytes, chunkDurationInMs, settleTimeInMs, timeToLiveInMs, System::currentTimeMillis);
+    }
+
+    TimeseriesCache(final long maxSizeInBytes, final long chunkDurationInMs, final long settleTimeInMs, final long timeToLiveInMs,
+                    final LongSupplier clock) {
+        if (chunkDurationInMs <= 0) {
+            throw new IllegalArgumentException("The chunk duration must be positive: " + chunkDurationInMs);
+        }
+        this.chunkDurationInMs = chunkDurationInMs;
+        this.settleTimeInMs = settleTimeInMs;
+        this.timeToLiveInMs = timeToLiveInMs;
+        this.clock = Objects.requireNonNull(clock);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeInBytes)
+                .<Key, Entry>weigher((key, entry) -> (int) Math.min(Integer.MAX_VALUE, entry.sizeInBytes))
+                .removalListener(notification -> {
+                    if (RemovalCause.REPLACED != notification.getCause()) {
+                        notification.getValue().evict();
+                    }
+                })
+                .recordStats()
+                .build();
+        this.hits = metrics.counter("readCacheHits");
+        this.misses = metrics.counter("readCacheMisses");
+        metrics.register("readCacheHitRatio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount(), hits.getCount() + misses.getCount());
+            }
+        });
+        metrics.register("readCacheSizeInBytes", (Gauge<Long>) sizeInBytes::get);
+        metrics.register("readCacheSeries", (Gauge<Long>) cache::size);
+        metrics.register("readCacheEvictions", (Gauge<Long>) () -> cache.stats().evictionCount());
+    }
+
+    /**
+     * Returns the samples of the request, from the cache as far as possible.
+     *
+     * @param stepInMs the step the series is downsampled to on the server, 0 for the raw samples
+     */
+    public List<Sample> get(final TimeSeriesFetchRequest request, final long stepInMs, final Fetcher fetcher) throws StorageException {
+        final long start = request.getStart().toEpochMilli();
+        final long end = request.getEnd().toEpochMilli();
+        final Key key = new Key(request.getMetric());
+        final View view = new View(request.getAggregation(), stepInMs);
+        final long width = stepInMs > 0 ? Math.max(1, (chunkDurationInMs + stepInMs - 1) / stepInMs) * stepInMs : chunkDurationInMs;
+        final long first = Math.floorDiv(start, width) * width;
+        final long stable = Math.floorDiv(clock.getAsLong() - settleTimeInMs, width) * width;
+        final long cachedEnd = Math.max(first, Math.min(stable, ceil(end, width)));
+
+        final Map<Metric, List<Sample>> samples = new LinkedHashMap<>();
+        if (first < cachedEnd) {
+            final Entry entry = getEntry(key);
+            synchronized (entry) {
+                final TreeMap<Long, SeriesSamples[]> chunks = entry.views.computeIfAbsent(view, v -> new TreeMap<>());
+                fetchMissingChunks(entry, chunks, first, cachedEnd, width, stepInMs, fetcher);
+                for (SeriesSamples[] chunk : chunks.subMap(first, cachedEnd).values()) {
+                    for (SeriesSamples series : chunk) {
+                        addTo(samples, series, start, end, stepInMs);
+                    }
+                }
+            }
+            // the weight of an entry is only updated when it is put. This must happen outside of the monitor, the put
+            // may evict other entries. An entry which was evicted in the meantime isn't mapped anymore and stays out.
+            cache.asMap().replace(key, entry, entry);
+        }
+        if (cachedEnd < end) {
+            // the most recent samples may still change, they are always fetched
+            for (SeriesSamples series : fetcher.fetch(Instant.ofEpochMilli(cachedEnd), request.getEnd())) {
+                addTo(samples, series, start, end, stepInMs);
+            }
+        }
+        final List<Sample> result = new ArrayList<>();
+        samples.values().forEach(result::addAll);
+        return result;
+    }
+
+    private Entry getEntry(final Key key) {
+        // Cache.get(key, loader) would block other readers of the same series while we fetch, we lock the entry instead
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && timeToLiveInMs > 0 && clock.getAsLong() - entry.createdAt >= timeToLiveInMs) {
+            // expireAfterWrite() doesn't fit, each get() puts the entry again to update its weight
+            cache.asMap().remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            entry = cache.asMap().computeIfAbsent(key, k -> new Entry(clock.getAsLong()));
+        }
+        return entry;
+    }
+
+    /** Fetches each run of missing chunks with a single query. */
+    private void fetchMissingChunks(final Entry entry, final TreeMap<Long, SeriesSamples[]> chunks, final long first, final long cachedEnd,
+                                    final long width, final long stepInMs, final Fetcher fetcher) throws StorageException {
+        long runStart = -1;
+        for (long chunk = first; chunk <= cachedEnd; chunk += width) {
+            final boolean missing = chunk < cachedEnd && !chunks.containsKey(chunk);
+            if (missing) {
+                misses.inc();
+                if (runStart < 0) {
+                    runStart = chunk;
+                }
+            } else {
+                if (chunk < cachedEnd) {
+                    hits.inc();
+                }
+                if (runStart >= 0) {
+                    fetchChunks(entry, chunks, runStart, chunk, width, stepInMs, fetcher);
+                    runStart = -1;
+                }
+            }
+        }
+    }
+
+    private void fetchChunks(final Entry entry, final TreeMap<Long, SeriesSamples[]> cached, final long from, final long to,
+                             final long width, final long stepInMs, final Fetcher fetcher) throws StorageException {
+        final Map<Long, List<SeriesSamples>> chunks = new TreeMap<>();
+        for (long chunk = from; chunk < to; chunk += width) {
+            chunks.put(chunk, new ArrayList<>()); // empty chunks are cached too
+        }
+        for (SeriesSamples series : fetcher.fetch(Instant.ofEpochMilli(from), Instant.ofEpochMilli(to))) {
+            SeriesSamples current = null;
+            long currentChunk = Long.MIN_VALUE;
+            for (int i = 0; i < series.size(); i++) {
+                final long time = series.getTime(i);
+                // downsampled samples are stamped with the end of their window, they belong to the chunk of its start
+                final long chunk = Math.floorDiv(stepInMs > 0 ? time - 1 : time, width) * width;
+                if (chunk != currentChunk || current == null) {
+                    final List<SeriesSamples> target = chunks.get(chunk);
+                    if (target == null) {
+                        current = null;
+                        continue;
+                    }
+                    current = new SeriesSamples(series.getMetric(), 16);
+                    currentChunk = chunk;
+                    target.add(current);
+                }
+                current.add(time, series.getValue(i));
+            }
+        }
+        long added = 0;
+        for (Map.Entry<Long, List<SeriesSamples>> chunk : chunks.entrySet()) {
+            final SeriesSamples[] series = chunk.getValue().toArray(new SeriesSamples[0]);
+            long bytes = 64;
+            for (SeriesSamples s : series) {
+                s.trimToSize();
+                bytes += s.getSizeInBytes();
+            }
+            cached.put(chunk.getKey(), series);
+            added += bytes;
+        }
+        entry.sizeInBytes += added;
+        if (!entry.evicted.get()) {
+            sizeInBytes.addAndGet(added);
+        }
+    }
+
+    private static void addTo(final Map<Metric, List<Sample>> samples, final SeriesSamples series,
+                              final long start, final long end, final long stepInMs) {
+        List<Sample> target = null;
+        for (int i = 0; i < series.size(); i++) {
+            final long time = series.getTime(i);
+            // the raw samples are in [start, end), the downsampled ones are stamped with the end of their window
+            final boolean inRange = stepInMs > 0 ? time > start && time <= end : time >= start && time < end;
+            if (inRange) {
+                if (target == null) {
+                    target = samples.computeIfAbsent(series.getMetric(), m -> new ArrayList<>());
+                }
+                target.add(ImmutableSample.builder()
+                        .metric(series.getMetric())
+                        .time(Instant.ofEpochMilli(time))
+                        .value(series.getValue(i))
+                        .build());
+            }
+        }
+    }
+
+    private static long ceil(final long value, final long width) {
+        return -Math.floorDiv(-value, width) * width;
+    }
+
+    /** Drops the cached samples of the series, for all aggregations. */
+    public void invalidate(final Metric metric) {
+        cache.invalidate(new Key(metric));
+    }
+
+    /** Drops the series which get samples older than the settle time, their cached chunks may miss them. */
+    public void invalidateLateSamples(final List<Sample> samples) {
+        final long settled = clock.getAsLong() - settleTimeInMs;
+        for (int i = 0; i < samples.size(); i++) {
+            final Sample sample = samples.get(i);
+            if (sample.getTime().toEpochMilli() < settled) {
+                invalidate(sample.getMetric());
+            }
+        }
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    private class Entry {
+        /** The chunks of the raw samples and of each step and aggregation they were downsampled with. */
+        private final Map<View, TreeMap<Long, SeriesSamples[]>> views = new HashMap<>();
+        private final long createdAt;
+        /** Only written under the monitor of the entry, read by the weigher and evict() without it. */
+        private volatile long sizeInBytes = 64;
+        private final AtomicBoolean evicted = new AtomicBoolean();
+
+        private Entry(final long createdAt) {
+            this.createdAt = createdAt;
+            TimeseriesCache.this.sizeInBytes.addAndGet(sizeInBytes);
+        }
+
+        /**
+         * Called by the removal listener, possibly on a thread holding the monitor of another entry, hence it doesn't
+         * lock. Samples added concurrently are either subtracted here or not counted at all.
+         */
+        private void evict() {
+            if (evicted.compareAndSet(false, true)) {
+                TimeseriesCache.this.sizeInBytes.addAndGet(-sizeInBytes);
+            }
+        }
+    }
+
+    /** Identifies a series, the cached results of all aggregations of a series are dropped together. */
+    private static class Key {
+        private final String resourceId;
+        private final String name;
+
+        private Key(final Metric metric) {
+            this.resourceId = valueOf(metric.getFirstTagByKey(IntrinsicTagNames.resourceId));
+            this.name = valueOf(metric.getFirstTagByKey(IntrinsicTagNames.name));
+        }
+
+        private static String valueOf(final Tag tag) {
+            return tag == null ? null : tag.getValue();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return Objects.equals(resourceId, key.resourceId) && Objects.equals(name, key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resourceId, name);
+        }
+    }
+
+    private static class View {
+        private final Aggregation aggregation;
+        private final long stepInMs;
+
+        private View(final Aggregation aggregation, final long stepInMs) {
+            // the aggregation doesn't matter for the raw samples
+            this.aggregation = stepInMs > 0 ? aggregation : Aggregation.NONE;
+            this.stepInMs = stepInMs;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final View view = (View) o;
+            return stepInMs == view.stepInMs && aggregation == view.aggregation;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(aggregation, stepInMs);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+import com.influxdb.Cancellable;
+import com.influxdb.client.domain.Dialect;
+
+/**
+ * Parses the CSV response of a Flux query line by line while it is streamed from InfluxDB. Only _time and _value
+ * are parsed for every row, straight from the line into primitive arrays. The tag columns are read once per table
+ * to create its Metric. Each finished table is handed to the consumer.
+ * <p>
+ * The response must be requested with the {@link #DIALECT}: a header row per table schema and no annotations.
+ */
+public class TimeseriesCsvParser implements BiConsumer<Cancellable, String> {
+
+    public static final Dialect DIALECT = new Dialect()
+            .header(true)
+            .delimiter(",")
+            .commentPrefix("#")
+            .annotations(new ArrayList<>())
+            .dateTimeFormat(Dialect.DateTimeFormatEnum.RFC3339);
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Function<Map<String, Object>, Metric> metricFactory;
+    private final Consumer<SeriesSamples> consumer;
+
+    /** The columns of the current table schema, null if the next line is a header. */
+    private String[] columns;
+    private int timeIndex;
+    private int valueIndex;
+    private int tableIndex;
+    private int errorIndex;
+    /** Start and end of each field of the current row, reused for all rows. */
+    private int[] bounds;
+    private boolean[] quoted;
+
+    private String table;
+    private SeriesSamples series;
+    private String error;
+
+    public TimeseriesCsvParser(final Function<Map<String, Object>, Metric> metricFactory, final Consumer<SeriesSamples> consumer) {
+        this.metricFactory = metricFactory;
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void accept(final Cancellable cancellable, final String line) {
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') {
+            end--;
+        }
+        if (end == 0) {
+            // tables with a different schema are separated by an empty line and start with a new header
+            columns = null;
+            return;
+        }
+        if (line.charAt(0) == '#') {
+            return;
+        }
+        if (columns == null) {
+            parseHeader(line.substring(0, end));
+            return;
+        }
+        if (!split(line, end)) {
+            throw new IllegalArgumentException("Malformed CSV row: " + line);
+        }
+        if (errorIndex >= 0) {
+            error = field(line, errorIndex);
+            cancellable.cancel();
+            return;
+        }
+        if (timeIndex < 0 || valueIndex < 0 || bounds[2 * valueIndex] == bounds[2 * valueIndex + 1]) {
+            return; // no value, nothing to parse
+        }
+        if (series == null || !isCurrentTable(line)) {
+            startTable(line);
+        }
+        series.add(parseTime(line, bounds[2 * timeIndex], bounds[2 * timeIndex + 1]),
+                parseDouble(line, bounds[2 * valueIndex], bounds[2 * valueIndex + 1]));
+    }
+
+    /** Hands over the last table. Throws if InfluxDB reported an error within the response. */
+    public void finish() throws StorageException {
+        flush();
+        if (error != null) {
+            throw new StorageException("InfluxDB query failed: " + error);
+        }
+    }
+
+    private void parseHeader(final String line) {
+        columns = line.split(",", -1);
+        bounds = new int[2 * columns.length];
+        quoted = new boolean[columns.length];
+        timeIndex = -1;
+        valueIndex = -1;
+        tableIndex = -1;
+        errorIndex = -1;
+        for (int i = 0; i < columns.length; i++) {
+            switch (columns[i]) {
+                case "_time":
+                    timeIndex = i;
+                    break;
+                case "_value":
+                    valueIndex = i;
+                    break;
+                case "table":
+                    tableIndex = i;
+                    break;
+                case "error":
+                    errorIndex = i;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private boolean isCurrentTable(final String line) {
+        if (tableIndex < 0) {
+            return true;
+        }
+        final int start = bounds[2 * tableIndex];
+        final int length = bounds[2 * tableIndex + 1] - start;
+        return length == table.length() && line.regionMatches(start, table, 0, length);
+    }
+
+    private void startTable(final String line) {
+        flush();
+        table = tableIndex < 0 ? "" : field(line, tableIndex);
+        final Map<String, Object> tags = new HashMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            if (MetricFactory.classify(columns[i]) != null) {
+                final String value = field(line, i);
+                if (!value.isEmpty()) {
+                    tags.put(columns[i], value);
+                }
+            }
+        }
+        series = new SeriesSamples(metricFactory.apply(tags));
+    }
+
+    private void flush() {
+        if (series != null) {
+            consumer.accept(series);
+            series = null;
+        }
+    }
+
+    /** Finds the bounds of all fields of the row, without creating any objects. */
+    private boolean split(final String line, final int end) {
+        int i = 0;
+        for (int field = 0; field < columns.length; field++) {
+            if (i < end && line.charAt(i) == '"') {
+                final int start = ++i;
+                while (true) {
+                    if (i >= end) {
+                        return false;
+                    }
+                    if (line.charAt(i) == '"') {
+                        if (i + 1 < end && line.charAt(i + 1) == '"') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                bounds[2 * field] = start;
+                bounds[2 * field + 1] = i++;
+                quoted[field] = true;
+            } else {
+                final int start = i;
+                while (i < end && line.charAt(i) != ',') {
+                    i++;
+                }
+                bounds[2 * field] = start;
+                bounds[2 * field + 1] = i;
+                quoted[field] = false;
+            }
+            if (i < end) {
+                if (line.charAt(i) != ',') {
+                    return false;
+                }
+                i++;
+            } else if (field < columns.length - 1) {
+                return false;
+            }
+        }
+        return i >= end;
+    }
+
+    private String field(final String line, final int index) {
+        final String value = line.substring(bounds[2 * index], bounds[2 * index + 1]);
+        return quoted[index] ? value.replace("\"\"", "\"") : value;
+    }
+
+    /** Parses RFC3339 timestamps in UTC, e.g. 2021-01-01T12:00:00.123456Z, to epoch millis. */
+    static long parseTime(final String s, final int from, final int to) {
+        if (to - from < 20 || s.charAt(from + 4) != '-' || s.charAt(from + 7) != '-' || s.charAt(from + 10) != 'T'
+                || s.charAt(from + 13) != ':' || s.charAt(from + 16) != ':' || s.charAt(to - 1) != 'Z') {
+            return OffsetDateTime.parse(s.substring(from, to)).toInstant().toEpochMilli();
+        }
+        final int year = digits(s, from, 4);
+        final int month = digits(s, from + 5, 2);
+        final int day = digits(s, from + 8, 2);
+        final long seconds = digits(s, from + 11, 2) * 3600L + digits(s, from + 14, 2) * 60L + digits(s, from + 17, 2);
+        int millis = 0;
+        if (s.charAt(from + 19) == '.') {
+            int i = from + 20;
+            for (int n = 0; n < 3; n++) {
+                millis *= 10;
+                if (i < to - 1) {
+                    millis += digit(s, i++);
+                }
+            }
+        }
+        return (epochDay(year, month, day) * 86400L + seconds) * 1000L + millis;
+    }
+
+    /** Days since 1970-01-01 of a date in the proleptic Gregorian calendar. */
+    private static long epochDay(final int year, final int month, final int day) {
+        final int y = month <= 2 ? year - 1 : year;
+        final int era = Math.floorDiv(y, 400);
+        final int yearOfEra = y - era * 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int digits(final String s, final int from, final int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            value = value * 10 + digit(s, i);
+        }
+        return value;
+    }
+
+    private static int digit(final String s, final int index) {
+        final char c = s.charAt(index);
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not a digit: " + c + " in " + s);
+        }
+        return c - '0';
+    }
+
+    /**
+     * Parses plain decimals with up to 15 significant digits without creating a String. Both the digits and the power
+     * of ten are exact doubles then, their quotient is correctly rounded. Everything else goes to Double.parseDouble().
+     */
+    static double parseDouble(final String s, final int from, final int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        boolean anyDigit = false;
+        for (; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    if (++significantDigits > 15) {
+                        return Double.parseDouble(s.substring(from, to));
+                    }
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction) {
+                    scale++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                return Double.parseDouble(s.substring(from, to));
+            }
+        }
+        if (!anyDigit || scale >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(s.substring(from, to));
+        }
+        final double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+}
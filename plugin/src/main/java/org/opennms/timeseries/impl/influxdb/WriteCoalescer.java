@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Merges the many small sample lists OpenNMS hands us into larger batches. A batch is handed over once it reaches
+ * maxSamples or maxBytes (estimated) or once its oldest sample waited for lingerInMs.
+ * <p>
+ * To keep the contention low for the many collector threads, the batches are striped: each thread appends to the
+ * stripe selected by its thread id, only the threads sharing a stripe compete for its lock. The handover happens
+ * outside the lock.
+ * <p>
+ * Each batch is handed over together with the {@link WriteCompletion}s of the writes that contributed samples to it.
+ * <p>
+ * Once closed, adds are rejected. An add racing with close() hands over its samples right away, none are left behind.
+ */
+public class WriteCoalescer {
+
+    private final int maxSamples;
+    private final long maxBytes;
+    private final long lingerInNanos;
+    private final BiConsumer<List<Sample>, List<WriteCompletion>> batchConsumer;
+    private final Stripe[] stripes;
+    private final ScheduledExecutorService lingerExecutor;
+    private volatile boolean closed;
+
+    public WriteCoalescer(final int maxSamples, final long maxBytes, final long lingerInMs, final int stripeCount, final BiConsumer<List<Sample>, List<WriteCompletion>> batchConsumer) {
+        if (maxSamples < 1 || maxBytes < 1 || lingerInMs < 1 || stripeCount < 1) {
+            throw new IllegalArgumentException("maxSamples, maxBytes, lingerInMs and stripeCount must be positive.");
+        }
+        this.maxSamples = maxSamples;
+        this.maxBytes = maxBytes;
+        this.lingerInNanos = TimeUnit.MILLISECONDS.toNanos(lingerInMs);
+        this.batchConsumer = Objects.requireNonNull(batchConsumer);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.lingerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-write-linger-%d")
+                .setDaemon(true)
+                .build());
+        final long checkIntervalInMs = Math.max(1, lingerInMs / 2);
+        lingerExecutor.scheduleWithFixedDelay(this::flushLingering, checkIntervalInMs, checkIntervalInMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(final List<Sample> samples) {
+        add(samples, null);
+    }
+
+    /**
+     * Adds the samples to the batch of the current thread. Full batches are handed over in the calling thread.
+     *
+     * @param completion is retained by every batch the samples are added to, may be null
+     * @throws IllegalStateException if the coalescer is closed
+     */
+    public void add(final List<Sample> samples, final WriteCompletion completion) {
+        if (closed) {
+            throw new IllegalStateException("The coalescer is closed.");
+        }
+        final Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        for (int i = 0; i < samples.size(); i++) {
+            final Sample sample = samples.get(i);
+            final Batch full = stripe.add(sample, LineProtocolEncoder.estimateSize(sample), completion);
+            if (full != null) {
+                full.handOver();
+            }
+        }
+    }
+
+    /** Hands over all batches, regardless of their size or age. */
+    public void flush() {
+        for (Stripe stripe : stripes) {
+            final Batch batch = stripe.takeIfOlderThan(-1);
+            if (batch != null) {
+                batch.handOver();
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        lingerExecutor.shutdownNow();
+        // takes the lock of every stripe, the adds which missed the flag are done with it afterwards
+        flush();
+    }
+
+    private void flushLingering() {
+        for (Stripe stripe : stripes) {
+            final Batch batch = stripe.takeIfOlderThan(lingerInNanos);
+            if (batch != null) {
+                batch.handOver();
+            }
+        }
+    }
+
+    private final class Stripe {
+        private List<Sample> batch;
+        private List<WriteCompletion> completions;
+        private long bytes;
+        private long createdAt;
+
+        /** Returns the batch if it is full, it is then replaced by a new one. */
+        private synchronized Batch add(final Sample sample, final int size, final WriteCompletion completion) {
+            if (batch == null) {
+                batch = new ArrayList<>(Math.min(maxSamples, 1024));
+                completions = null;
+                createdAt = System.nanoTime();
+                bytes = 0;
+            }
+            batch.add(sample);
+            bytes += size;
+            // the samples of a write are added one after another, it is enough to compare with the last completion
+            if (completion != null && (completions == null || completions.get(completions.size() - 1) != completion)) {
+                if (completions == null) {
+                    completions = new ArrayList<>(4);
+                }
+                completion.retain();
+                completions.add(completion);
+            }
+            if (batch.size() >= maxSamples || bytes >= maxBytes || closed) {
+                return take();
+            }
+            return null;
+        }
+
+        private synchronized Batch takeIfOlderThan(final long ageInNanos) {
+            if (batch != null && System.nanoTime() - createdAt >= ageInNanos) {
+                return take();
+            }
+            return null;
+        }
+
+        private Batch take() {
+            final Batch full = new Batch(batch, completions != null ? completions : Collections.emptyList());
+            batch = null;
+            completions = null;
+            return full;
+        }
+    }
+
+    private final class Batch {
+        private final List<Sample> samples;
+        private final List<WriteCompletion> completions;
+
+        private Batch(final List<Sample> samples, final List<WriteCompletion> completions) {
+            this.samples = samples;
+            this.completions = completions;
+        }
+
+        private void handOver() {
+            batchConsumer.accept(samples, completions);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the outcome of one asynchronous write. The samples of a write may end up in several batches, the write is
+ * complete once all of them are. The write holds a reference itself until all samples were handed to a batch, a batch
+ * which completes early can't complete the write prematurely.
+ */
+public class WriteCompletion {
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile Throwable failure;
+
+    /** Called for each batch the samples are added to. */
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /** Called once for each batch, with the failure if its samples were lost, and once by the write itself. */
+    void release(final Throwable failure) {
+        if (failure != null) {
+            this.failure = failure;
+        }
+        if (references.decrementAndGet() == 0) {
+            if (this.failure != null) {
+                future.completeExceptionally(this.failure);
+            } else {
+                future.complete(null);
+            }
+        }
+    }
+
+    public CompletionStage<Void> getCompletionStage() {
+        return future;
+    }
+}
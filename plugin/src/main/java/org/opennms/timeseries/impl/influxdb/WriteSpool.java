@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A write ahead spool for batches that couldn't be written to InfluxDB. The batches are stored as line protocol in
+ * append only, memory mapped segment files of a fixed size:
+ * <pre>
+ * segment: magic (int) | read position (int) | record | record | ... | 0
+ * record:  length (int) | lines (int) | spooled at (long, epoch millis) | line protocol (length bytes)
+ * </pre>
+ * The length of a record is written last, a record which was only partially written when the JVM died is hence
+ * treated as end of the segment. The read position is updated when a record was replayed successfully, already
+ * replayed records are skipped after a restart. Fully replayed segments are deleted.
+ * <p>
+ * The disk usage is bounded by maxSizeInBytes, when the limit is reached either the oldest segment is evicted or new
+ * batches are rejected, depending on the {@link InfluxdbConfig.SpoolEvictionPolicy}.
+ */
+public class WriteSpool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int MAGIC = 0x1f1d5b01;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int READ_POSITION_OFFSET = 4;
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final InfluxdbConfig.SpoolEvictionPolicy evictionPolicy;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSequence = 0;
+    private long pendingBatches = 0;
+    private long pendingSamples = 0;
+    private long evictedSamples = 0;
+
+    public WriteSpool(final Path directory, final int segmentSize, final long maxSizeInBytes, final InfluxdbConfig.SpoolEvictionPolicy evictionPolicy) throws IOException {
+        this.directory = Objects.requireNonNull(directory);
+        this.evictionPolicy = Objects.requireNonNull(evictionPolicy);
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSizeInBytes / segmentSize));
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /** Picks up the segments of a previous run. */
+    private void recover() throws IOException {
+        final List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unknown file {} in spool directory.", file);
+                }
+            }
+        }
+        sequences.sort(Long::compare);
+        for (long sequence : sequences) {
+            final Path file = segmentFile(sequence);
+            if (Files.size(file) != segmentSize) {
+                LOG.warn("Spool segment {} doesn't match the configured segment size of {} bytes, it will be deleted.", file, segmentSize);
+                Files.delete(file);
+                continue;
+            }
+            final Segment segment = new Segment(sequence, file, map(file));
+            if (segment.buffer.getInt(0) != MAGIC) {
+                LOG.warn("Spool segment {} is corrupt, it will be deleted.", file);
+                segment.delete();
+                continue;
+            }
+            segment.recover();
+            segments.addLast(segment);
+            pendingBatches += segment.countRecords();
+            pendingSamples += segment.countLines();
+            nextSequence = sequence + 1;
+        }
+        if (pendingBatches > 0) {
+            LOG.info("Found {} spooled batches with {} samples in {}.", pendingBatches, pendingSamples, directory);
+        }
+    }
+
+    /**
+     * Appends the content of the buffer as one record.
+     *
+     * @return false if the batch could not be spooled, the samples are lost.
+     */
+    public synchronized boolean append(final LineProtocolBuffer content) {
+        if (content.isEmpty()) {
+            return true;
+        }
+        final int recordSize = RECORD_HEADER_SIZE + content.size();
+        if (SEGMENT_HEADER_SIZE + recordSize >= segmentSize) {
+            LOG.warn("Batch of {} bytes exceeds the spool segment size of {} bytes and can't be spooled.", content.size(), segmentSize);
+            return false;
+        }
+        try {
+            Segment tail = segments.peekLast();
+            if (tail == null || !tail.hasRoomFor(recordSize)) {
+                if (tail != null) {
+                    tail.buffer.force();
+                }
+                if (segments.size() >= maxSegments) {
+                    if (evictionPolicy == InfluxdbConfig.SpoolEvictionPolicy.dropNewest) {
+                        return false;
+                    }
+                    evictOldest();
+                }
+                tail = createSegment();
+            }
+            tail.append(content, System.currentTimeMillis());
+            pendingBatches++;
+            pendingSamples += content.lines();
+            return true;
+        } catch (IOException e) {
+            LOG.error("Could not write to spool in {}.", directory, e);
+            return false;
+        }
+    }
+
+    /** Returns the oldest batch which wasn't replayed yet or null if the spool is empty. */
+    public synchronized SpooledBatch peek() {
+        for (Segment head = segments.peekFirst(); head != null; head = segments.peekFirst()) {
+            if (head.hasUnreadRecords()) {
+                return head.readRecord();
+            }
+            if (head == segments.peekLast()) {
+                // we keep on appending to the tail
+                return null;
+            }
+            removeHead();
+        }
+        return null;
+    }
+
+    /** Marks the batch as done, it will not be replayed again. */
+    public synchronized void commit(final SpooledBatch batch) {
+        final Segment head = segments.peekFirst();
+        if (head == null || head.sequence != batch.segment || head.readPosition != batch.position) {
+            // the segment was evicted in the meantime
+            return;
+        }
+        head.readPosition = batch.nextPosition;
+        head.buffer.putInt(READ_POSITION_OFFSET, head.readPosition);
+        pendingBatches--;
+        pendingSamples -= batch.lines;
+        if (!head.hasUnreadRecords() && head != segments.peekLast()) {
+            removeHead();
+        }
+    }
+
+    public synchronized long getPendingBatches() {
+        return pendingBatches;
+    }
+
+    public synchronized long getPendingSamples() {
+        return pendingSamples;
+    }
+
+    /** Number of samples dropped since they didn't fit into the spool anymore. */
+    public synchronized long getEvictedSamples() {
+        return evictedSamples;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments.clear();
+    }
+
+    private void evictOldest() throws IOException {
+        final Segment oldest = segments.peekFirst();
+        final long lines = oldest.countLines();
+        LOG.warn("Spool is full, evicting segment {} with {} samples.", oldest.file, lines);
+        evictedSamples += lines;
+        removeHead();
+    }
+
+    private void removeHead() {
+        final Segment head = segments.removeFirst();
+        pendingBatches -= head.countRecords();
+        pendingSamples -= head.countLines();
+        try {
+            head.delete();
+        } catch (IOException e) {
+            LOG.warn("Could not delete spool segment {}.", head.file, e);
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        final long sequence = nextSequence++;
+        final Path file = segmentFile(sequence);
+        final Segment segment = new Segment(sequence, file, map(file));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(READ_POSITION_OFFSET, SEGMENT_HEADER_SIZE);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private Path segmentFile(final long sequence) {
+        return directory.resolve(String.format("%019d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer map(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private final class Segment {
+        private final long sequence;
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private int readPosition = SEGMENT_HEADER_SIZE;
+        private int writePosition = SEGMENT_HEADER_SIZE;
+
+        private Segment(final long sequence, final Path file, final MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /** Restores the read and write position from the content of the file. */
+        private void recover() {
+            final int storedReadPosition = buffer.getInt(READ_POSITION_OFFSET);
+            int position = SEGMENT_HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= segmentSize) {
+                final int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > segmentSize) {
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            writePosition = position;
+            readPosition = Math.max(SEGMENT_HEADER_SIZE, Math.min(storedReadPosition, writePosition));
+        }
+
+        private boolean hasRoomFor(final int recordSize) {
+            // leave room for the terminating 0 length
+            return writePosition + recordSize + Integer.BYTES <= segmentSize;
+        }
+
+        private boolean hasUnreadRecords() {
+            return readPosition < writePosition;
+        }
+
+        private void append(final LineProtocolBuffer content, final long spooledAt) {
+            final int position = writePosition;
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.put(content.array(), 0, content.size());
+            buffer.putInt(position + 4, content.lines());
+            buffer.putLong(position + 8, spooledAt);
+            // written last, this commits the record
+            buffer.putInt(position, content.size());
+            writePosition = position + RECORD_HEADER_SIZE + content.size();
+        }
+
+        private SpooledBatch readRecord() {
+            final int position = readPosition;
+            final int length = buffer.getInt(position);
+            final byte[] content = new byte[length];
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.get(content);
+            return new SpooledBatch(sequence, position, position + RECORD_HEADER_SIZE + length,
+                    content, buffer.getInt(position + 4), buffer.getLong(position + 8));
+        }
+
+        private long countRecords() {
+            long count = 0;
+            for (int position = readPosition; position < writePosition; position += RECORD_HEADER_SIZE + buffer.getInt(position)) {
+                count++;
+            }
+            return count;
+        }
+
+        private long countLines() {
+            long count = 0;
+            for (int position = readPosition; position < writePosition; position += RECORD_HEADER_SIZE + buffer.getInt(position)) {
+                count += buffer.getInt(position + 4);
+            }
+            return count;
+        }
+
+        private void delete() throws IOException {
+            // the mapping itself is released once the buffer is garbage collected
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public static class SpooledBatch {
+        private final long segment;
+        private final int position;
+        private final int nextPosition;
+        private final byte[] content;
+        private final int lines;
+        private final long spooledAt;
+
+        private SpooledBatch(final long segment, final int position, final int nextPosition, final byte[] content, final int lines, final long spooledAt) {
+            this.segment = segment;
+            this.position = position;
+            this.nextPosition = nextPosition;
+            this.content = content;
+            this.lines = lines;
+            this.spooledAt = spooledAt;
+        }
+
+        /** The line protocol of the batch. */
+        public byte[] getContent() {
+            return content;
+        }
+
+        public int getLines() {
+            return lines;
+        }
+
+        public long getSpooledAt() {
+            return spooledAt;
+        }
+    }
+}
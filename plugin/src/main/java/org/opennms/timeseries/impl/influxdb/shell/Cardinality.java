@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.shell;
+
+import java.util.List;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.timeseries.impl.influxdb.CardinalityGuard;
+import org.opennms.timeseries.impl.influxdb.InfluxdbStorage;
+
+@Command(scope = "opennms-influxdb", name = "cardinality", description = "Shows the estimated number of series per measurement and values per tag key of the stored samples.")
+@Service
+public class Cardinality implements Action {
+
+    @Reference
+    private TimeSeriesStorage timeSeriesStorage;
+
+    @Option(name = "-n", aliases = {"--top"}, description = "The number of measurements and tag keys to show.")
+    private int top = 20;
+
+    @Option(name = "-r", aliases = {"--reset"}, description = "Forgets the estimates after showing them, e.g. after a collector creating too many series was fixed.")
+    private boolean reset = false;
+
+    @Override
+    public Object execute() {
+        if (!(timeSeriesStorage instanceof InfluxdbStorage)) {
+            System.out.println("The InfluxDB time series storage is not active.");
+            return null;
+        }
+        final CardinalityGuard guard = ((InfluxdbStorage) timeSeriesStorage).getCardinalityGuard();
+        if (guard == null) {
+            System.out.println("The cardinality isn't tracked, see cardinalityMaxSeriesPerMeasurement, cardinalityMaxValuesPerTagKey and cardinalityPrecision.");
+            return null;
+        }
+        System.out.printf("Series: ~%d%n", guard.getSeriesEstimate());
+        print("Measurement", "series", guard.getMeasurementEstimates());
+        print("Tag key", "values", guard.getTagKeyEstimates());
+        if (reset) {
+            guard.reset();
+            System.out.println("The estimates were reset.");
+        }
+        return null;
+    }
+
+    private void print(final String title, final String unit, final List<CardinalityGuard.Estimate> estimates) {
+        System.out.printf("%n%-60s %12s %12s%n", title, unit, "limit");
+        for (CardinalityGuard.Estimate estimate : estimates.subList(0, Math.min(top, estimates.size()))) {
+            System.out.printf("%-60s %12d %12s%s%n", estimate.getName(), estimate.getCardinality(),
+                    estimate.getLimit() > 0 ? Long.toString(estimate.getLimit()) : "-",
+                    estimate.getLimit() > 0 && estimate.getCardinality() > estimate.getLimit() ? "  exceeded" : "");
+        }
+        if (estimates.size() > top) {
+            System.out.printf("... %d more%n", estimates.size() - top);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb.shell;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.timeseries.impl.influxdb.InfluxdbStorage;
+
+@Command(scope = "opennms-influxdb", name = "rebuild-index", description = "Rebuild the series index from InfluxDB.")
+@Service
+public class RebuildSeriesIndex implements Action {
+
+    @Reference
+    private TimeSeriesStorage timeSeriesStorage;
+
+    @Override
+    public Object execute() throws Exception {
+        if (!(timeSeriesStorage instanceof InfluxdbStorage)) {
+            System.out.println("The InfluxDB time series storage is not active.");
+            return null;
+        }
+        System.out.println("Rebuilding the series index, this may take a while...");
+        final int series = ((InfluxdbStorage) timeSeriesStorage).rebuildSeriesIndex().get();
+        System.out.printf("Indexed %d series.%n", series);
+        return null;
+    }
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.shell;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.regex.Pattern;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.timeseries.impl.influxdb.InfluxdbStorage;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+@Command(scope = "opennms-influxdb", name = "stats", description = "Shows the statistics of the InfluxDB time series storage, they are exported via JMX as well.")
+@Service
+public class Stats implements Action {
+
+    private static final double NANOS_PER_MS = 1_000_000d;
+
+    @Reference
+    private TimeSeriesStorage timeSeriesStorage;
+
+    @Option(name = "-f", aliases = {"--filter"}, description = "Shows only the statistics whose name matches the regular expression, e.g. 'write|bulkhead'.")
+    private String filter;
+
+    @Override
+    public Object execute() {
+        if (!(timeSeriesStorage instanceof InfluxdbStorage)) {
+            System.out.println("The InfluxDB time series storage is not active.");
+            return null;
+        }
+        final MetricRegistry registry = ((InfluxdbStorage) timeSeriesStorage).getMetrics();
+        final Pattern pattern = filter != null ? Pattern.compile(filter) : null;
+        final MetricFilter metricFilter = (name, metric) -> pattern == null || pattern.matcher(name).find();
+
+        printGauges(registry.getGauges(metricFilter));
+        printCounters(registry.getCounters(metricFilter));
+        printMeters(registry.getMeters(metricFilter));
+        printHistograms(registry.getHistograms(metricFilter));
+        printTimers(registry.getTimers(metricFilter));
+        return null;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void printGauges(final SortedMap<String, Gauge> gauges) {
+        if (gauges.isEmpty()) {
+            return;
+        }
+        System.out.println("Gauges:");
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            System.out.printf("  %-60s %s%n", entry.getKey(), entry.getValue().getValue());
+        }
+    }
+
+    private static void printCounters(final SortedMap<String, Counter> counters) {
+        if (counters.isEmpty()) {
+            return;
+        }
+        System.out.println("Counters:");
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            System.out.printf("  %-60s %d%n", entry.getKey(), entry.getValue().getCount());
+        }
+    }
+
+    private static void printMeters(final SortedMap<String, Meter> meters) {
+        if (meters.isEmpty()) {
+            return;
+        }
+        System.out.printf("Meters:%56s %14s %10s %10s%n", "", "count", "1m/s", "15m/s");
+        for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+            final Meter meter = entry.getValue();
+            System.out.printf("  %-60s %14d %10.2f %10.2f%n", entry.getKey(), meter.getCount(),
+                    meter.getOneMinuteRate(), meter.getFifteenMinuteRate());
+        }
+    }
+
+    private static void printHistograms(final SortedMap<String, Histogram> histograms) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+        System.out.printf("Histograms:%52s %14s %10s %10s %10s %10s%n", "", "count", "mean", "p50", "p99", "max");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            final Snapshot snapshot = entry.getValue().getSnapshot();
+            System.out.printf("  %-60s %14d %10.1f %10.1f %10.1f %10d%n", entry.getKey(), entry.getValue().getCount(),
+                    snapshot.getMean(), snapshot.getMedian(), snapshot.get99thPercentile(), snapshot.getMax());
+        }
+    }
+
+    private static void printTimers(final SortedMap<String, Timer> timers) {
+        if (timers.isEmpty()) {
+            return;
+        }
+        System.out.printf("Timers (ms):%51s %14s %10s %10s %10s %10s %10s%n", "", "count", "1m/s", "mean", "p50", "p99", "max");
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            final Timer timer = entry.getValue();
+            final Snapshot snapshot = timer.getSnapshot();
+            System.out.printf("  %-60s %14d %10.2f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), timer.getCount(),
+                    timer.getOneMinuteRate(), snapshot.getMean() / NANOS_PER_MS, snapshot.getMedian() / NANOS_PER_MS,
+                    snapshot.get99thPercentile() / NANOS_PER_MS, snapshot.getMax() / NANOS_PER_MS);
+        }
+    }
+}
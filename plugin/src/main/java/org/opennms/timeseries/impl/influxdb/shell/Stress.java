@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb.shell;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.timeseries.impl.influxdb.InfluxdbStorage;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Writes generated samples to the registered storage, like the collectors of OpenNMS would, and reports the
+ * throughput, the latency of store() and the samples lost while it runs. The samples end up in the bucket, the series
+ * belong to resources starting with 'snmp:stress:'.
+ */
+@Command(scope = "opennms-influxdb", name = "stress", description = "Writes generated samples to check the write capacity. The samples are stored in the bucket.")
+@Service
+public class Stress implements Action {
+
+    private static final int SERIES_PER_RESOURCE = 10;
+    private static final double NANOS_PER_MS = 1_000_000d;
+
+    @Reference
+    private TimeSeriesStorage timeSeriesStorage;
+
+    @Option(name = "-s", aliases = {"--series"}, description = "Number of series the samples are spread across, default: 10000.")
+    private int series = 10000;
+
+    @Option(name = "-t", aliases = {"--tags"}, description = "Number of meta tags per series, default: 4.")
+    private int tags = 4;
+
+    @Option(name = "-b", aliases = {"--batch-size"}, description = "Number of samples per call to store(), default: 100.")
+    private int batchSize = 100;
+
+    @Option(name = "-r", aliases = {"--rate"}, description = "Samples per second of all threads together, 0 is as fast as possible, default: 10000.")
+    private int rate = 10000;
+
+    @Option(name = "-d", aliases = {"--duration"}, description = "Duration in seconds, default: 60.")
+    private int duration = 60;
+
+    @Option(name = "-w", aliases = {"--threads"}, description = "Number of threads calling store(), default: 4.")
+    private int threads = 4;
+
+    @Option(name = "-i", aliases = {"--interval"}, description = "Seconds between the reports, default: 5.")
+    private int interval = 5;
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Histogram totalLatency = new Histogram(new UniformReservoir());
+    private Histogram intervalLatency;
+
+    @Override
+    public Object execute() throws InterruptedException {
+        if (series < 1 || batchSize < 1 || threads < 1 || duration < 1 || interval < 1 || rate < 0 || tags < 0) {
+            System.out.println("series, batch-size, threads, duration and interval must be positive.");
+            return null;
+        }
+        intervalLatency = new Histogram(new SlidingTimeWindowArrayReservoir(interval, TimeUnit.SECONDS));
+        final Metric[] metrics = createMetrics();
+        final RateLimiter rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+        System.out.printf("Storing samples of %d series with %d tags in batches of %d, %s, for %ds with %d threads. Press Ctrl-C to stop.%n",
+                series, tags, batchSize, rate > 0 ? rate + " samples/s" : "as fast as possible", duration, threads);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("influxdb-stress-%d")
+                .setDaemon(true)
+                .build());
+        for (int i = 0; i < threads; i++) {
+            final int offset = i * (series / threads);
+            executor.execute(() -> generate(metrics, offset, rateLimiter));
+        }
+
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(duration);
+        long lastReportAt = start;
+        long lastStored = 0;
+        long lastWritten = getSamplesWritten();
+        final long lostAtStart = getSamplesLost();
+        try {
+            while (System.nanoTime() < deadline) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(TimeUnit.SECONDS.toNanos(interval), deadline - System.nanoTime()));
+                final long now = System.nanoTime();
+                final long stored = this.stored.get();
+                final long written = getSamplesWritten();
+                final double seconds = (now - lastReportAt) / 1e9;
+                report(now - start, (stored - lastStored) / seconds, (written - lastWritten) / seconds, getSamplesLost() - lostAtStart,
+                        intervalLatency.getSnapshot());
+                lastReportAt = now;
+                lastStored = stored;
+                lastWritten = written;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted.");
+        } finally {
+            running.set(false);
+            executor.shutdown();
+        }
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final Snapshot snapshot = totalLatency.getSnapshot();
+        System.out.printf("Stored %d samples in %.1fs, %.0f samples/s. store() p50 %.2fms, p99 %.2fms, max %.2fms. %d store() calls failed, %s samples lost.%n",
+                stored.get(), seconds, stored.get() / seconds, snapshot.getMedian() / NANOS_PER_MS, snapshot.get99thPercentile() / NANOS_PER_MS,
+                snapshot.getMax() / NANOS_PER_MS, errors.get(), timeSeriesStorage instanceof InfluxdbStorage ? getSamplesLost() - lostAtStart : "unknown");
+        return null;
+    }
+
+    private void generate(final Metric[] metrics, final int offset, final RateLimiter rateLimiter) {
+        int next = offset;
+        while (running.get()) {
+            if (rateLimiter != null) {
+                rateLimiter.acquire(batchSize);
+            }
+            final Instant now = Instant.now();
+            final List<Sample> samples = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                samples.add(ImmutableSample.builder()
+                        .metric(metrics[next])
+                        .time(now)
+                        .value(ThreadLocalRandom.current().nextDouble(1000))
+                        .build());
+                next = (next + 1) % metrics.length;
+            }
+            final long startedAt = System.nanoTime();
+            try {
+                timeSeriesStorage.store(samples);
+                stored.addAndGet(samples.size());
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+            final long latency = System.nanoTime() - startedAt;
+            totalLatency.update(latency);
+            intervalLatency.update(latency);
+        }
+    }
+
+    private Metric[] createMetrics() {
+        final Metric[] metrics = new Metric[series];
+        for (int i = 0; i < series; i++) {
+            final ImmutableMetric.MetricBuilder builder = ImmutableMetric.builder()
+                    .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:stress:" + (i / SERIES_PER_RESOURCE))
+                    .intrinsicTag(IntrinsicTagNames.name, "stress" + (i % SERIES_PER_RESOURCE))
+                    .metaTag("mtype", "gauge");
+            for (int t = 0; t < tags; t++) {
+                builder.metaTag("tag" + t, "value" + (i % (t + 2)));
+            }
+            metrics[i] = builder.build();
+        }
+        return metrics;
+    }
+
+    private void report(final long elapsedInNanos, final double storedPerSecond, final double writtenPerSecond, final long lost, final Snapshot latency) {
+        final String writtenColumn = timeSeriesStorage instanceof InfluxdbStorage
+                ? String.format("  written %8.0f/s", writtenPerSecond)
+                : "";
+        System.out.printf("%5ds  stored %8.0f/s%s  store() p50 %7.2fms p99 %7.2fms  errors %d  lost %d%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedInNanos), storedPerSecond, writtenColumn,
+                latency.getMedian() / NANOS_PER_MS, latency.get99thPercentile() / NANOS_PER_MS, errors.get(), lost);
+    }
+
+    /** Samples written by the opennms write strategy, the other strategies don't count them. */
+    private long getSamplesWritten() {
+        return sumMeters("samplesWritten");
+    }
+
+    private long getSamplesLost() {
+        return sumMeters("samplesLost");
+    }
+
+    /** Sums the meters of all nodes. */
+    private long sumMeters(final String name) {
+        if (!(timeSeriesStorage instanceof InfluxdbStorage)) {
+            return 0;
+        }
+        final MetricRegistry registry = ((InfluxdbStorage) timeSeriesStorage).getMetrics();
+        long sum = 0;
+        for (Meter meter : registry.getMeters((n, m) -> n.equals(name) || n.endsWith("." + name)).values()) {
+            sum += meter.getCount();
+        }
+        return sum;
+    }
+}
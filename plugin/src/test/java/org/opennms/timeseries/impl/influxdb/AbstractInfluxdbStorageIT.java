@@ -33,10 +33,7 @@ import java.time.Duration;
 
 import org.junit.After;
 import org.junit.Before;
-import org.junit.Ignore;
-import org.junit.Test;
 import org.opennms.integration.api.v1.timeseries.AbstractStorageIntegrationTest;
-import org.opennms.integration.api.v1.timeseries.StorageException;
 import org.opennms.integration.api.v1.timeseries.TimeSeriesStorage;
 import org.opennms.timeseries.impl.influxdb.shell.InitInfluxdb;
 import org.testcontainers.containers.DockerComposeContainer;
@@ -92,9 +89,4 @@ public abstract class AbstractInfluxdbStorageIT extends AbstractStorageIntegrati
             // do nothing
         }
     }
-
-    @Test
-    @Override
-    @Ignore // delete doesn't seem to work, see https://github.com/influxdata/influxdb/issues/20399
-    public void shouldDeleteMetrics() throws StorageException {}
 }
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void shouldGrowToMaxWithStableLatency() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 5, 100);
+        for (int i = 0; i < 1000; i++) {
+            limit.onSample(RTT, limit.getLimit(), false);
+        }
+        assertThat(limit.getLimit(), is(100));
+    }
+
+    @Test
+    public void shouldNotGrowWhenIdle() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 5, 100);
+        for (int i = 0; i < 1000; i++) {
+            limit.onSample(RTT, 1, false);
+        }
+        assertThat(limit.getLimit(), is(10));
+    }
+
+    @Test
+    public void shouldShrinkWhenLatencyRises() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 5, 100);
+        for (int i = 0; i < 200; i++) {
+            limit.onSample(RTT, limit.getLimit(), false);
+        }
+        final int before = limit.getLimit();
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(RTT * 5, limit.getLimit(), false);
+        }
+        assertThat(limit.getLimit(), lessThan(before));
+        assertThat(limit.getLimit(), greaterThanOrEqualTo(5));
+    }
+
+    @Test
+    public void shouldBackOffOnOverloadDownToMin() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 5, 100);
+        limit.onSample(RTT, 50, true);
+        assertThat(limit.getLimit(), is(45));
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(RTT, limit.getLimit(), true);
+        }
+        assertThat(limit.getLimit(), is(5));
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+public class CardinalityGuardTest {
+
+    @Test
+    public void shouldKeepSamplesWithinLimits() {
+        final CardinalityGuard guard = new CardinalityGuard(12, 1000, 1000, InfluxdbConfig.CardinalityLimitAction.dropTag, TagStoragePolicy.ALL_TAGS, null);
+        final List<Sample> samples = createSamples(0, 500);
+        assertThat(guard.apply(samples), sameInstance(samples));
+        assertThat(guard.getMeasurementEstimates().get(0).getName(), is("ifInOctets"));
+        assertThat((double) guard.getSeriesEstimate(), closeTo(500, 25));
+    }
+
+    @Test
+    public void shouldDropTagBeyondLimit() {
+        final CardinalityGuard guard = new CardinalityGuard(12, 0, 100, InfluxdbConfig.CardinalityLimitAction.dropTag, TagStoragePolicy.ALL_TAGS, null);
+        final List<Sample> stored = guard.apply(createSamples(0, 1000));
+        assertThat(stored, hasSize(1000));
+        // the first samples are within the limit, the last ones lost the runaway tag
+        assertThat(stored.get(0).getMetric().getFirstTagByKey("session").getValue(), is("0"));
+        final Metric last = stored.get(999).getMetric();
+        assertThat(last.getFirstTagByKey("session"), nullValue());
+        assertThat(last.getFirstTagByKey("ifAlias").getValue(), is("uplink"));
+        assertThat(last.getFirstTagByKey(IntrinsicTagNames.resourceId).getValue(), is("snmp:1:999"));
+        assertThat(guard.getMetrics().meter("cardinalityTagsDropped").getCount() > 0, is(true));
+    }
+
+    @Test
+    public void shouldRejectOnlyNewSeriesBeyondLimit() {
+        final Set<Metric> known = new HashSet<>();
+        final CardinalityGuard guard = new CardinalityGuard(12, 100, 0, InfluxdbConfig.CardinalityLimitAction.rejectSeries, TagStoragePolicy.ALL_TAGS, known::contains);
+        final List<Sample> first = guard.apply(createSamples(0, 50));
+        first.forEach(s -> known.add(s.getMetric()));
+        assertThat(first, hasSize(50));
+
+        final List<Sample> stored = guard.apply(createSamples(50, 1000));
+        assertThat(stored.size() < 1000 - 50 - 50, is(true));
+        assertThat(guard.getMetrics().meter("cardinalitySamplesRejected").getCount(), is((long) 1000 - 50 - stored.size()));
+
+        // the known series are still stored
+        assertThat(guard.apply(createSamples(0, 50)), hasSize(50));
+    }
+
+    @Test
+    public void shouldForgetEstimatesOnReset() {
+        final CardinalityGuard guard = new CardinalityGuard(10, 0, 0, InfluxdbConfig.CardinalityLimitAction.warn, TagStoragePolicy.ALL_TAGS, null);
+        guard.apply(createSamples(0, 100));
+        assertThat(guard.getTagKeyEstimates().get(0).getName(), is("meta_session"));
+        guard.reset();
+        assertThat(guard.getMeasurementEstimates(), hasSize(0));
+        assertThat(guard.getSeriesEstimate(), is(0L));
+    }
+
+    private static List<Sample> createSamples(final int from, final int to) {
+        final List<Sample> samples = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            final Metric metric = ImmutableMetric.builder()
+                    .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:" + i)
+                    .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+                    .metaTag("ifAlias", "uplink")
+                    .metaTag("session", Integer.toString(i))
+                    .build();
+            samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(i)).value(1d).build());
+        }
+        return samples;
+    }
+}
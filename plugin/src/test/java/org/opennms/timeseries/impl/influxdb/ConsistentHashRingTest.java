@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    private static final int SERIES = 30000;
+
+    @Test
+    public void shouldSpreadSeriesEvenly() {
+        List<String> urls = Arrays.asList("http://a:8086", "http://b:8086", "http://c:8086");
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(urls, urls, 128);
+        int[] counts = new int[urls.size()];
+        for (int i = 0; i < SERIES; i++) {
+            counts[ring.getIndex("snmp:1:eth" + i, "ifHCInOctets")]++;
+        }
+        for (int count : counts) {
+            assertThat(count, allOf(greaterThan(SERIES / 3 * 8 / 10), lessThan(SERIES / 3 * 12 / 10)));
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveTheSeriesOfTheAddedNode() {
+        List<String> three = Arrays.asList("http://a:8086", "http://b:8086", "http://c:8086");
+        List<String> four = Arrays.asList("http://a:8086", "http://b:8086", "http://c:8086", "http://d:8086");
+        ConsistentHashRing<String> before = new ConsistentHashRing<>(three, three, 128);
+        ConsistentHashRing<String> after = new ConsistentHashRing<>(four, four, 128);
+        int moved = 0;
+        for (int i = 0; i < SERIES; i++) {
+            String owner = after.get("snmp:1:eth" + i, "ifHCInOctets");
+            if (!owner.equals(before.get("snmp:1:eth" + i, "ifHCInOctets"))) {
+                assertThat(owner, is("http://d:8086"));
+                moved++;
+            }
+        }
+        assertThat(moved, allOf(greaterThan(SERIES / 4 * 8 / 10), lessThan(SERIES / 4 * 12 / 10)));
+    }
+
+    @Test
+    public void shouldNotDependOnTheOrderOfTheNodes() {
+        List<String> urls = Arrays.asList("http://a:8086", "http://b:8086");
+        List<String> reversed = Arrays.asList("http://b:8086", "http://a:8086");
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(urls, urls, 16);
+        ConsistentHashRing<String> other = new ConsistentHashRing<>(reversed, reversed, 16);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(other.get("node:" + i, "load"), is(ring.get("node:" + i, "load")));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class FetchBatcherTest {
+
+    private static final Instant START = Instant.ofEpochMilli(1_000_000);
+    private static final Instant END = Instant.ofEpochMilli(2_000_000);
+
+    private final FetchBatcher batcher = new FetchBatcher(20, metric -> 0);
+
+    @Test
+    public void shouldKeepTheOrderOfTheRequests() {
+        List<TimeSeriesFetchRequest> requests = Arrays.asList(
+                request("a", "cpu"),
+                request("b", "cpu"),
+                request("a", "mem"));
+        List<List<Integer>> queries = batcher.batch(requests);
+        assertThat(queries, contains(Arrays.asList(0, 2), Collections.singletonList(1)));
+
+        List<List<Sample>> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        FetchBatcher.distribute(requests, queries.get(0), Arrays.asList(series("a", "mem", 3), series("a", "cpu", 2)), results);
+        assertThat(results.get(0), hasSize(2));
+        assertThat(results.get(0).get(0).getMetric(), equalTo(metric("a", "cpu")));
+        assertThat(results.get(2), hasSize(3));
+        assertThat(results.get(2).get(0).getMetric(), equalTo(metric("a", "mem")));
+    }
+
+    @Test
+    public void shouldGiveDuplicateNamesTheirOwnLists() {
+        List<TimeSeriesFetchRequest> requests = Arrays.asList(
+                request("a", "cpu"),
+                request("a", "cpu"),
+                request("a", "mem"),
+                request("a", "mem"));
+        List<List<Integer>> queries = batcher.batch(requests);
+        assertThat(queries, contains(Arrays.asList(0, 1, 2, 3)));
+        assertThat(FetchBatcher.getMetricsByName(requests, queries.get(0)).keySet(), contains("cpu", "mem"));
+
+        List<List<Sample>> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        // no samples for mem
+        FetchBatcher.distribute(requests, queries.get(0), Collections.singletonList(series("a", "cpu", 2)), results);
+        assertThat(results.get(0), hasSize(2));
+        assertThat(results.get(1), equalTo(results.get(0)));
+        assertThat(results.get(1), not(sameInstance(results.get(0))));
+        assertThat(results.get(2), empty());
+        assertThat(results.get(3), empty());
+        assertThat(results.get(3), not(sameInstance(results.get(2))));
+    }
+
+    @Test
+    public void shouldSplitBatchesAtMaxSeries() {
+        FetchBatcher batcher = new FetchBatcher(2, metric -> 0);
+        List<TimeSeriesFetchRequest> requests = Arrays.asList(
+                request("a", "n1"),
+                request("a", "n2"),
+                request("a", "n3"),
+                request("a", "n1"),
+                request("a", "n4"),
+                request("a", "n5"));
+        // a name requested twice counts once and stays in the query of its first request
+        assertThat(batcher.batch(requests), contains(Arrays.asList(0, 3, 1), Arrays.asList(2, 4), Collections.singletonList(5)));
+    }
+
+    @Test
+    public void shouldSeparateShardsStepsAndAggregations() {
+        FetchBatcher batcher = new FetchBatcher(20, metric -> metric.getFirstTagByKey(IntrinsicTagNames.name).getValue().startsWith("x") ? 1 : 0);
+        List<TimeSeriesFetchRequest> requests = Arrays.asList(
+                request("a", "cpu", Duration.ofMinutes(5), Aggregation.AVERAGE),
+                request("a", "xcpu", Duration.ofMinutes(5), Aggregation.AVERAGE),
+                request("a", "mem", Duration.ofMinutes(1), Aggregation.AVERAGE),
+                request("a", "disk", Duration.ofMinutes(5), Aggregation.MAX),
+                request("a", "load", Duration.ofMinutes(5), Aggregation.AVERAGE),
+                // the raw samples are fetched for both, the step doesn't matter then
+                request("a", "raw1", Duration.ofMinutes(5), Aggregation.NONE),
+                request("a", "raw2", Duration.ZERO, Aggregation.MAX));
+        assertThat(batcher.batch(requests), contains(
+                Arrays.asList(0, 4),
+                Collections.singletonList(1),
+                Collections.singletonList(2),
+                Collections.singletonList(3),
+                Arrays.asList(5, 6)));
+    }
+
+    private static SeriesSamples series(String resourceId, String name, int count) {
+        SeriesSamples series = new SeriesSamples(metric(resourceId, name));
+        for (int i = 0; i < count; i++) {
+            series.add(START.toEpochMilli() + i * 1000L, i);
+        }
+        return series;
+    }
+
+    private static Metric metric(String resourceId, String name) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .build();
+    }
+
+    private static TimeSeriesFetchRequest request(String resourceId, String name) {
+        return request(resourceId, name, Duration.ofMinutes(5), Aggregation.AVERAGE);
+    }
+
+    private static TimeSeriesFetchRequest request(String resourceId, String name, Duration step, Aggregation aggregation) {
+        return new TimeSeriesFetchRequest() {
+            @Override
+            public Metric getMetric() {
+                return metric(resourceId, name);
+            }
+
+            @Override
+            public Instant getStart() {
+                return START;
+            }
+
+            @Override
+            public Instant getEnd() {
+                return END;
+            }
+
+            @Override
+            public Duration getStep() {
+                return step;
+            }
+
+            @Override
+            public Aggregation getAggregation() {
+                return aggregation;
+            }
+        };
+    }
+}
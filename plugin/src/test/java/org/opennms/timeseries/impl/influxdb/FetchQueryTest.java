@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class FetchQueryTest {
+
+    private static final Instant START = Instant.parse("2020-05-01T10:00:00.123Z");
+    private static final Instant STOP = Instant.parse("2020-05-01T12:00:00Z");
+
+    @Test
+    public void shouldMapTheAggregationToTheWindowFunction() {
+        assertThat(FetchQuery.toAggregateWindow(request(Duration.ofMinutes(5), Aggregation.AVERAGE)),
+                equalTo(" |> aggregateWindow(every: 300000ms, fn: mean, createEmpty: false)\n"));
+        assertThat(FetchQuery.toAggregateWindow(request(Duration.ofMinutes(5), Aggregation.MIN)),
+                equalTo(" |> aggregateWindow(every: 300000ms, fn: min, createEmpty: false)\n"));
+        assertThat(FetchQuery.toAggregateWindow(request(Duration.ofSeconds(30), Aggregation.MAX)),
+                equalTo(" |> aggregateWindow(every: 30000ms, fn: max, createEmpty: false)\n"));
+    }
+
+    @Test
+    public void shouldFetchTheRawSamplesWithoutAggregationOrStep() {
+        assertThat(FetchQuery.toAggregateWindow(request(Duration.ofMinutes(5), Aggregation.NONE)), equalTo(""));
+        assertThat(FetchQuery.toAggregateWindow(request(Duration.ofMinutes(5), null)), equalTo(""));
+        assertThat(FetchQuery.toAggregateWindow(request(null, Aggregation.AVERAGE)), equalTo(""));
+        assertThat(FetchQuery.toAggregateWindow(request(Duration.ZERO, Aggregation.AVERAGE)), equalTo(""));
+        assertThat(FetchQuery.toDownsamplingStepInMs(request(Duration.ofMinutes(5), Aggregation.NONE)), equalTo(0L));
+        assertThat(FetchQuery.toDownsamplingStepInMs(request(Duration.ofMinutes(5), Aggregation.MAX)), equalTo(300000L));
+    }
+
+    @Test
+    public void shouldCreateTheQueryForASingleName() {
+        String query = FetchQuery.create("opennms", request(Duration.ofMinutes(5), Aggregation.AVERAGE),
+                Collections.singletonList("cpu"), START, STOP);
+        assertThat(query, equalTo("from(bucket:\"opennms\")\n" +
+                " |> range(start:2020-05-01T10:00:00.123Z, stop:2020-05-01T12:00:00.000Z)\n" +
+                " |> filter(fn:(r) => r[\"intrinsic_name\"]==\"cpu\" and\n " +
+                "                     r[\"intrinsic_resourceId\"]==\"snmp:1:eth0\" and\n " +
+                "                     r._field == \"value\")\n" +
+                " |> aggregateWindow(every: 300000ms, fn: mean, createEmpty: false)\n" +
+                " |> drop(columns: [\"_start\", \"_stop\", \"_field\", \"_measurement\"])"));
+    }
+
+    @Test
+    public void shouldGroupSeveralNames() {
+        String query = FetchQuery.create("opennms", request(Duration.ofMinutes(5), Aggregation.NONE),
+                Arrays.asList("cpu", "mem", "disk"), START, STOP);
+        assertThat(query, containsString(" |> filter(fn:(r) => (r[\"intrinsic_name\"]==\"cpu\" or r[\"intrinsic_name\"]==\"mem\""
+                + " or r[\"intrinsic_name\"]==\"disk\") and\n"));
+        assertThat(query, not(containsString("aggregateWindow")));
+    }
+
+    private static TimeSeriesFetchRequest request(Duration step, Aggregation aggregation) {
+        final Metric metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:eth0")
+                .intrinsicTag(IntrinsicTagNames.name, "cpu")
+                .build();
+        return new TimeSeriesFetchRequest() {
+            @Override
+            public Metric getMetric() {
+                return metric;
+            }
+
+            @Override
+            public Instant getStart() {
+                return START;
+            }
+
+            @Override
+            public Instant getEnd() {
+                return STOP;
+            }
+
+            @Override
+            public Duration getStep() {
+                return step;
+            }
+
+            @Override
+            public Aggregation getAggregation() {
+                return aggregation;
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void shouldEstimateCardinality() {
+        for (int n : new int[]{10, 1_000, 100_000, 1_000_000}) {
+            final HyperLogLog hll = new HyperLogLog(14);
+            for (int i = 0; i < n; i++) {
+                hll.offer(HyperLogLog.mix(("series" + i).hashCode()));
+            }
+            // the standard error of precision 14 is 0.8%
+            assertThat((double) hll.cardinality(), closeTo(n, n * 0.03 + 1));
+        }
+    }
+
+    @Test
+    public void shouldIgnoreDuplicates() {
+        final HyperLogLog hll = new HyperLogLog(12);
+        for (int i = 0; i < 100_000; i++) {
+            hll.offer(HyperLogLog.mix(i % 100));
+        }
+        assertThat((double) hll.cardinality(), closeTo(100, 3));
+        assertThat(hll.offer(HyperLogLog.mix(42)), is(false));
+    }
+
+    @Test
+    public void shouldMerge() {
+        final HyperLogLog a = new HyperLogLog(12);
+        final HyperLogLog b = new HyperLogLog(12);
+        for (int i = 0; i < 60_000; i++) {
+            a.offer(HyperLogLog.mix(i));
+            b.offer(HyperLogLog.mix(i + 40_000));
+        }
+        a.merge(b);
+        assertThat((double) a.cardinality(), closeTo(100_000, 100_000 * 0.06));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidPrecision() {
+        new HyperLogLog(HyperLogLog.MAX_PRECISION + 1);
+    }
+}
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import com.codahale.metrics.Gauge;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class InfluxdbWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** The writes are answered once this is counted down, until then InfluxDB seems to be slow. */
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger writeRequests = new AtomicInteger();
+    /** The number of writes answered with 503, before the writes are blocked. */
+    private final AtomicInteger failures = new AtomicInteger();
+    private ExecutorService serverExecutor;
+    private HttpServer server;
+    private InfluxdbWriter writer;
+
+    @Before
+    public void setUp() throws IOException {
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (writer != null) {
+            writer.close();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void shouldRejectAsyncWritesBeyondMaxPendingSamples() throws Exception {
+        writer = new InfluxdbWriter(config().maxPendingSamples(10).build(), new LineProtocolEncoder());
+        CompletableFuture<Void> accepted = writer.writeAsync(createSamples(10)).toCompletableFuture();
+        assertThat(writer.getAvailableCapacity(), is(0L));
+
+        CompletableFuture<Void> capacity = writer.whenCapacityAvailable().toCompletableFuture();
+        CompletableFuture<Void> rejected = writer.writeAsync(createSamples(1)).toCompletableFuture();
+        try {
+            rejected.join();
+            fail("The write should have been rejected.");
+        } catch (CompletionException e) {
+            assertThat(e.getCause(), instanceOf(BackpressureException.class));
+        }
+        assertThat(capacity.isDone(), is(false));
+
+        release.countDown();
+        accepted.get(10, TimeUnit.SECONDS);
+        capacity.get(10, TimeUnit.SECONDS);
+        assertThat(writer.getAvailableCapacity(), is(10L));
+        assertThat(writeRequests.get(), is(1));
+    }
+
+    @Test
+    public void shouldCompleteRightAwayIfCapacityIsAvailable() {
+        writer = new InfluxdbWriter(config().maxPendingSamples(10).build(), new LineProtocolEncoder());
+        writer.writeAsync(createSamples(5));
+        assertThat(writer.getAvailableCapacity(), is(5L));
+        assertThat(writer.whenCapacityAvailable().toCompletableFuture().isDone(), is(true));
+    }
+
+    @Test
+    public void shouldBlockWritesUntilCapacityIsAvailable() throws Exception {
+        writer = new InfluxdbWriter(config().maxPendingSamples(10).build(), new LineProtocolEncoder());
+        writer.write(createSamples(10));
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                writer.write(createSamples(5));
+            } catch (BackpressureException e) {
+                throw new CompletionException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertThat(blocked.isDone(), is(false));
+
+        release.countDown();
+        blocked.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldRejectBlockingWritesAfterMaxPendingWaitWithoutSpool() throws BackpressureException {
+        writer = new InfluxdbWriter(config().maxPendingSamples(10).maxPendingWaitInMs(100).build(), new LineProtocolEncoder());
+        writer.write(createSamples(10));
+        long start = System.nanoTime();
+        try {
+            writer.write(createSamples(1));
+            fail("The write should have been rejected.");
+        } catch (BackpressureException e) {
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(100L));
+        }
+    }
+
+    @Test
+    public void shouldSpoolBlockingWritesAfterMaxPendingWait() throws BackpressureException {
+        writer = new InfluxdbWriter(config().maxPendingSamples(10).maxPendingWaitInMs(100)
+                .spoolDirectory(folder.getRoot().getAbsolutePath())
+                .spoolReplayIntervalInMs(TimeUnit.HOURS.toMillis(1))
+                .build(), new LineProtocolEncoder());
+        writer.write(createSamples(10));
+        writer.write(createSamples(5));
+        assertThat(writer.getMetrics().meter("samplesSpooled").getCount(), is(5L));
+        assertThat(writer.getAvailableCapacity(), is(0L));
+    }
+
+    @Test
+    public void shouldDrainThePendingSamplesOnClose() throws BackpressureException {
+        writer = new InfluxdbWriter(config().build(), new LineProtocolEncoder());
+        writer.write(createSamples(10));
+        CompletableFuture.runAsync(release::countDown, CompletableFuture.delayedExecutor(200, TimeUnit.MILLISECONDS));
+        writer.close();
+        assertThat(writer.getMetrics().meter("samplesWritten").getCount(), is(10L));
+        assertThat(writer.getMetrics().meter("samplesLost").getCount(), is(0L));
+    }
+
+    @Test
+    public void shouldSpoolThePendingSamplesOnCloseForTheNextWriter() throws Exception {
+        InfluxdbConfig config = config().closeDrainTimeoutInMs(100)
+                .spoolDirectory(folder.getRoot().getAbsolutePath())
+                .spoolReplayIntervalInMs(50)
+                .build();
+        writer = new InfluxdbWriter(config, new LineProtocolEncoder());
+        writer.write(createSamples(10));
+        writer.close();
+        assertThat(writer.getMetrics().meter("samplesSpooled").getCount(), is(10L));
+        assertThat(writer.getMetrics().meter("samplesLost").getCount(), is(0L));
+
+        release.countDown();
+        writer = new InfluxdbWriter(config, new LineProtocolEncoder());
+        long timeout = System.currentTimeMillis() + 10000;
+        while (writer.getMetrics().meter("samplesReplayed").getCount() < 10 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertThat(writer.getMetrics().meter("samplesReplayed").getCount(), is(10L));
+    }
+
+    @Test
+    public void shouldRetryRightAwayOnCloseWithoutSpool() throws BackpressureException {
+        release.countDown();
+        failures.set(1);
+        writer = new InfluxdbWriter(config().closeDrainTimeoutInMs(100)
+                .retryInitialBackoffInMs(TimeUnit.MINUTES.toMillis(1))
+                .retryMaxBackoffInMs(TimeUnit.MINUTES.toMillis(1))
+                .build(), new LineProtocolEncoder());
+        writer.write(createSamples(10));
+        writer.close();
+        assertThat(writer.getMetrics().meter("samplesWritten").getCount(), is(10L));
+        assertThat(writer.getMetrics().meter("samplesLost").getCount(), is(0L));
+        assertThat(writeRequests.get(), is(2));
+    }
+
+    @Test
+    public void shouldCountTheSamplesLostOnCloseWithoutSpool() throws BackpressureException {
+        writer = new InfluxdbWriter(config().closeDrainTimeoutInMs(100)
+                .readTimeoutInMs(200)
+                .retryMaxRetries(0)
+                .build(), new LineProtocolEncoder());
+        writer.write(createSamples(10));
+        writer.close();
+        assertThat(writer.getMetrics().meter("samplesWritten").getCount(), is(0L));
+        assertThat(writer.getMetrics().meter("samplesLost").getCount(), is(10L));
+        assertThat(writer.getAvailableCapacity(), is(writer.config.getMaxPendingSamples()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldOpenTheConnectionsBeforeTheFirstWrite() {
+        writer = new InfluxdbWriter(config().connectionPoolWarmupCount(2).build(), new LineProtocolEncoder());
+        Gauge<Integer> connections = (Gauge<Integer>) writer.getMetrics().getGauges().get("connectionCount");
+        assertThat(connections.getValue(), is(2));
+    }
+
+    private InfluxdbConfig.Builder config() {
+        return InfluxdbConfig.builder()
+                .url("http://127.0.0.1:" + server.getAddress().getPort())
+                .token("token")
+                // every write is sent on its own, the tests know how many samples are pending
+                .batchLingerInMs(0)
+                .readTimeoutInMs(TimeUnit.MINUTES.toMillis(1))
+                .connectionPoolWarmupCount(0)
+                .closeDrainTimeoutInMs(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getRequestBody().readAllBytes();
+            if (exchange.getRequestURI().getPath().endsWith("/api/v2/write")) {
+                writeRequests.incrementAndGet();
+                if (failures.getAndUpdate(f -> Math.max(0, f - 1)) > 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                release.await();
+            }
+            exchange.sendResponseHeaders(204, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<Sample> createSamples(int count) {
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(ImmutableMetric.builder()
+                            .intrinsicTag(IntrinsicTagNames.name, "metric")
+                            .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:eth" + i)
+                            .build())
+                    .time(Instant.now())
+                    .value(1.0)
+                    .build());
+        }
+        return Collections.unmodifiableList(samples);
+    }
+}
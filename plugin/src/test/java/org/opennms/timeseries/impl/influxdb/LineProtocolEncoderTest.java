@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+
+public class LineProtocolEncoderTest {
+
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+    @Test
+    public void shouldEncodeSameAsPoint() {
+        Metric metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "ifHCInOctets=x")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:eth0 ,=\t\n\r")
+                .metaTag("mtype", "counter")
+                .metaTag("ümlaut", "😀 unicode")
+                .externalTag("ext", "value")
+                .build();
+        for (double value : new double[]{0, -0.0, 1, -1, 42, 0.5, -12.25, 99.99, 1.0E-5, 123456789.123, 1.0E20, Math.PI, Double.MAX_VALUE, Double.MIN_VALUE}) {
+            Sample sample = createSample(metric, value);
+            String encoded = encoder.encodeToString(Collections.singletonList(sample));
+            assertThat(Double.parseDouble(fieldValue(encoded)), equalTo(value == 0 ? 0 : value));
+            assertThat(withoutFieldValue(encoded), equalTo(withoutFieldValue(toPoint(sample).toLineProtocol())));
+        }
+    }
+
+    @Test
+    public void shouldEncodeDoublesInPlainNotationIfPossible() {
+        assertThat(encodeValue(42.0), equalTo("42"));
+        assertThat(encodeValue(-0.5), equalTo("-0.5"));
+        assertThat(encodeValue(10.01), equalTo("10.01"));
+        assertThat(encodeValue(0.000001), equalTo("0.000001"));
+        assertThat(encodeValue(1.0E-12), equalTo("0.000000000001"));
+        assertThat(encodeValue(1.0E20), equalTo("100000000000000000000"));
+    }
+
+    @Test
+    public void shouldEncodeVerySmallAndLargeValuesLikePoint() {
+        Metric metric = createMetric("a");
+        for (double value : new double[]{1.0E-10, -2.5E-17, 1.2345678901234E-7, 1.0E19, -3.0E25, 1.7976931348623157E308, Double.MIN_VALUE}) {
+            Sample sample = createSample(metric, value);
+            String encoded = fieldValue(encoder.encodeToString(Collections.singletonList(sample)));
+            String byPoint = fieldValue(toPoint(sample).toLineProtocol());
+            assertThat(encoded.contains("E"), is(false));
+            assertThat(new BigDecimal(encoded).compareTo(new BigDecimal(byPoint)), is(0));
+        }
+    }
+
+    @Test
+    public void shouldSkipUndefinedValues() {
+        Metric metric = createMetric("a");
+        LineProtocolBuffer buffer = encoder.encode(Arrays.asList(
+                createSample(metric, Double.NaN),
+                createSample(metric, 1),
+                createSample(metric, Double.POSITIVE_INFINITY),
+                createSample(metric, 2)));
+        assertThat(buffer.lines(), is(2));
+        assertThat(buffer.toString(), equalTo("a,intrinsic_name=a,intrinsic_resourceId=r value=1 1000\n"
+                + "a,intrinsic_name=a,intrinsic_resourceId=r value=2 1000"));
+    }
+
+    @Test
+    public void shouldReuseBuffer() {
+        Metric metric = createMetric("a");
+        LineProtocolBuffer first = encoder.encode(Collections.singletonList(createSample(metric, 1)));
+        LineProtocolBuffer second = encoder.encode(Collections.singletonList(createSample(metric, 2)));
+        assertThat(first == second, is(true));
+        assertThat(second.lines(), is(1));
+    }
+
+    @Test
+    public void shouldEncodeSameWithSeriesKeyCache() {
+        SeriesKeyCache cache = new SeriesKeyCache(10);
+        LineProtocolEncoder cachingEncoder = new LineProtocolEncoder(cache);
+        Metric metric = createMetric("a");
+        Metric sameMetricWithExternalTag = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "a")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "r")
+                .externalTag("ext", "1")
+                .build();
+        for (Metric m : Arrays.asList(metric, metric, sameMetricWithExternalTag, sameMetricWithExternalTag, metric)) {
+            List<Sample> samples = Collections.singletonList(createSample(m, 3.5));
+            assertThat(cachingEncoder.encodeToString(samples), equalTo(encoder.encodeToString(samples)));
+        }
+        // depending on Metric.equals() the metric with the external tag is a hit with a mismatch or a miss
+        assertThat((Long) cache.getMetrics().getGauges().get("seriesKeyCacheHits").getValue(), greaterThanOrEqualTo(3L));
+    }
+
+    @Test
+    public void shouldStoreTagsAsFieldsByPolicy() {
+        LineProtocolEncoder policyEncoder = new LineProtocolEncoder(null, TagStoragePolicy.parse("external=field,external_secret=drop,meta_ifAlias=field"));
+        Metric metric = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, "a")
+                .intrinsicTag(IntrinsicTagNames.resourceId, "r")
+                .metaTag("mtype", "gauge")
+                .metaTag("ifAlias", "uplink \"1\", c:\\")
+                .externalTag("owner", "ops")
+                .externalTag("secret", "s3cr3t")
+                .build();
+        assertThat(policyEncoder.encodeToString(Collections.singletonList(createSample(metric, 1))),
+                equalTo("a,intrinsic_name=a,intrinsic_resourceId=r,meta_mtype=gauge value=1,meta_ifAlias=\"uplink \\\"1\\\", c:\\\\\",external_owner=\"ops\" 1000"));
+    }
+
+    private String encodeValue(double value) {
+        return fieldValue(encoder.encodeToString(Collections.singletonList(createSample(createMetric("a"), value))));
+    }
+
+    private static String fieldValue(String line) {
+        String afterField = line.substring(line.indexOf(" value=") + " value=".length());
+        return afterField.substring(0, afterField.indexOf(' '));
+    }
+
+    /** Point formats doubles differently, the value is compared numerically. */
+    private static String withoutFieldValue(String line) {
+        return line.replace(" value=" + fieldValue(line), " value=");
+    }
+
+    private static Metric createMetric(String name) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .intrinsicTag(IntrinsicTagNames.resourceId, "r")
+                .build();
+    }
+
+    private static Sample createSample(Metric metric, double value) {
+        return ImmutableSample.builder()
+                .metric(metric)
+                .time(Instant.ofEpochMilli(1000))
+                .value(value)
+                .build();
+    }
+
+    private static Point toPoint(Sample sample) {
+        Point point = Point
+                .measurement(TransformUtil.metricKeyToInflux(sample.getMetric().getFirstTagByKey(IntrinsicTagNames.name).getValue()))
+                .addField("value", sample.getValue())
+                .time(sample.getTime().toEpochMilli(), WritePrecision.MS);
+        addTags(point, Metric.TagType.intrinsic, sample.getMetric().getIntrinsicTags());
+        addTags(point, Metric.TagType.meta, sample.getMetric().getMetaTags());
+        addTags(point, Metric.TagType.external, sample.getMetric().getExternalTags());
+        return point;
+    }
+
+    private static void addTags(Point point, Metric.TagType tagType, Collection<Tag> tags) {
+        point.addTags(tags.stream().collect(Collectors.toMap(t -> tagType.name() + "_" + t.getKey(), Tag::getValue)));
+    }
+}
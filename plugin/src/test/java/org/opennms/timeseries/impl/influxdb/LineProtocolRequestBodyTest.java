@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import okio.Buffer;
+
+public class LineProtocolRequestBodyTest {
+
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+
+    @Test
+    public void shouldWriteGzip() throws IOException {
+        DeflaterPool deflaters = new DeflaterPool(Deflater.BEST_SPEED, 2);
+        List<Sample> samples = createSamples(1000);
+        String expected = encoder.encodeToString(samples);
+
+        LineProtocolRequestBody body = new LineProtocolRequestBody(samples, encoder, deflaters);
+        // write twice to make sure the body can be retried and the deflater is reset properly
+        for (int i = 0; i < 2; i++) {
+            Buffer sink = new Buffer();
+            body.writeTo(sink);
+            assertThat(body.getWrittenBytes(), is(sink.size()));
+            assertThat(gunzip(sink), equalTo(expected));
+            assertThat(body.getLines(), is(1000));
+            assertThat(body.getUncompressedBytes(), is((long) expected.length()));
+        }
+        assertThat(deflaters.getPoolSize(), is(1));
+        deflaters.close();
+        assertThat(deflaters.getPoolSize(), is(0));
+    }
+
+    @Test
+    public void shouldWriteUncompressed() throws IOException {
+        List<Sample> samples = createSamples(3);
+        LineProtocolRequestBody body = new LineProtocolRequestBody(samples, encoder, null);
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+        assertThat(body.isCompressed(), is(false));
+        assertThat(body.getWrittenBytes(), is(sink.size()));
+        assertThat(sink.readUtf8(), equalTo(encoder.encodeToString(samples)));
+    }
+
+    private static String gunzip(Buffer compressed) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(compressed.inputStream())) {
+            Buffer uncompressed = new Buffer();
+            uncompressed.readFrom(in);
+            return uncompressed.readUtf8();
+        }
+    }
+
+    private static List<Sample> createSamples(int count) {
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(ImmutableMetric.builder()
+                            .intrinsicTag(IntrinsicTagNames.name, "metric" + (i % 10))
+                            .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:if" + (i % 7))
+                            .metaTag("mtype", "gauge")
+                            .build())
+                    .time(Instant.ofEpochMilli(1_600_000_000_000L + i))
+                    .value(i * 0.5)
+                    .build());
+        }
+        return samples;
+    }
+}
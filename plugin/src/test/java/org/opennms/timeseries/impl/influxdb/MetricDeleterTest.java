@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class MetricDeleterTest {
+
+    private final Map<String, List<String>> deletedByResource = new ConcurrentHashMap<>();
+
+    @Test
+    public void shouldMergeTheDeletesOfAResource() {
+        MetricDeleter deleter = new MetricDeleter(Long.MAX_VALUE, 2, (resourceId, metrics) ->
+                deletedByResource.put(resourceId, metrics.stream()
+                        .map(m -> m.getFirstTagByKey(IntrinsicTagNames.name).getValue())
+                        .collect(Collectors.toList())));
+        deleter.delete(createMetric("node:1", "ifInOctets"));
+        deleter.delete(createMetric("node:2", "load"));
+        deleter.delete(createMetric("node:1", "ifOutOctets"));
+        deleter.flush().join();
+        assertThat(deletedByResource.size(), is(2));
+        assertThat(deletedByResource.get("node:1"), containsInAnyOrder("ifInOctets", "ifOutOctets"));
+        assertThat(deletedByResource.get("node:2"), containsInAnyOrder("load"));
+        assertThat(deleter.getMetrics().meter("metricsDeleted").getCount(), is(3L));
+        assertThat(deleter.getPendingMetrics(), is(0));
+        deleter.close(1000);
+    }
+
+    @Test
+    public void shouldBoundTheConcurrentDeletes() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        MetricDeleter deleter = new MetricDeleter(Long.MAX_VALUE, 3, (resourceId, metrics) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(10);
+            running.decrementAndGet();
+        });
+        for (int i = 0; i < 20; i++) {
+            deleter.delete(createMetric("node:" + i, "load"));
+        }
+        deleter.flush().join();
+        assertThat(maxRunning.get(), lessThanOrEqualTo(3));
+        deleter.close(1000);
+    }
+
+    @Test
+    public void shouldFailTheDeletesOfAFailedResource() {
+        MetricDeleter deleter = new MetricDeleter(Long.MAX_VALUE, 1, (resourceId, metrics) -> {
+            throw new IOException("InfluxDB is down");
+        });
+        CompletableFuture<Void> first = deleter.delete(createMetric("node:1", "ifInOctets"));
+        CompletableFuture<Void> second = deleter.delete(createMetric("node:1", "ifOutOctets"));
+        deleter.flush();
+        assertThat(first.handle((r, ex) -> ex != null).join(), is(true));
+        assertThat(second.handle((r, ex) -> ex != null).join(), is(true));
+        assertThat(deleter.getMetrics().meter("deletesFailed").getCount(), is(2L));
+        deleter.close(1000);
+    }
+
+    @Test
+    public void shouldFailTheDeletesAfterClose() {
+        CountDownLatch release = new CountDownLatch(1);
+        MetricDeleter deleter = new MetricDeleter(Long.MAX_VALUE, 1, (resourceId, metrics) -> release.await());
+        CompletableFuture<Void> running = deleter.delete(createMetric("node:1", "ifInOctets"));
+        deleter.close(10);
+        // the delete still running after the timeout fails, as does every delete queued after the close
+        assertThat(running.isCompletedExceptionally(), is(true));
+        assertThat(deleter.delete(createMetric("node:2", "load")).isCompletedExceptionally(), is(true));
+        assertThat(deleter.getPendingMetrics(), is(0));
+        release.countDown();
+    }
+
+    private static Metric createMetric(final String resourceId, final String name) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .build();
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class MetricFactoryTest {
+
+    private final Metric expected = ImmutableMetric.builder()
+            .intrinsicTag("name", "cpu")
+            .intrinsicTag("resourceId", "a")
+            .metaTag("os", "linux")
+            .externalTag("ext", "1")
+            .build();
+
+    @Test
+    public void shouldRestoreTheMetric() {
+        Metric metric = new MetricFactory(0).createMetric(columns());
+        assertThat(metric, equalTo(expected));
+        assertThat(metric.getExternalTags(), equalTo(expected.getExternalTags()));
+    }
+
+    @Test
+    public void shouldInternMetrics() {
+        MetricFactory factory = new MetricFactory(100);
+        Metric metric = factory.createMetric(columns());
+
+        Map<String, Object> reversed = new LinkedHashMap<>();
+        columns().entrySet().stream()
+                .sorted(Map.Entry.<String, Object>comparingByKey().reversed())
+                .forEach(e -> reversed.put(e.getKey(), e.getValue()));
+        assertThat(factory.createMetric(reversed), sameInstance(metric));
+
+        Map<String, Object> other = columns();
+        other.put("intrinsic_resourceId", "b");
+        assertThat(factory.createMetric(other), not(equalTo(metric)));
+        assertThat(factory.getMetrics().getGauges().get("metricCacheHits").getValue(), is(1L));
+    }
+
+    @Test
+    public void shouldClassifyColumns() {
+        assertThat(MetricFactory.classify("intrinsic_name"), is(Metric.TagType.intrinsic));
+        assertThat(MetricFactory.classify("meta_os"), is(Metric.TagType.meta));
+        assertThat(MetricFactory.classify("external_x"), is(Metric.TagType.external));
+        assertThat(MetricFactory.classify("_measurement"), nullValue());
+        assertThat(MetricFactory.classify("metadata"), nullValue());
+        assertThat(MetricFactory.classify(""), nullValue());
+    }
+
+    private static Map<String, Object> columns() {
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("result", "_result");
+        columns.put("table", 0L);
+        columns.put("_time", Instant.EPOCH);
+        columns.put("_value", 42.0);
+        columns.put("_measurement", "a_cpu");
+        columns.put("intrinsic_name", "cpu");
+        columns.put("intrinsic_resourceId", "a");
+        columns.put("meta_os", "linux");
+        columns.put("external_ext", "1");
+        return columns;
+    }
+}
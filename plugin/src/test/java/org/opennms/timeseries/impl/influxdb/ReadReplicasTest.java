@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+
+public class ReadReplicasTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final Map<String, Long> delaysInMs = new HashMap<>();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldPreferTheFasterReplica() throws StorageException {
+        ReadReplicas<String> replicas = createReplicas(InfluxdbConfig.ReadBalancingStrategy.ewma, 0);
+        delaysInMs.put("a", 30L);
+        delaysInMs.put("b", 1L);
+        for (int i = 0; i < 10; i++) {
+            replicas.query(this::answer);
+        }
+        int answeredByB = 0;
+        for (int i = 0; i < 20; i++) {
+            if ("b".equals(replicas.query(this::answer))) {
+                answeredByB++;
+            }
+        }
+        assertThat(answeredByB, is(20));
+    }
+
+    @Test
+    public void shouldHedgeSlowQueries() throws StorageException {
+        ReadReplicas<String> replicas = createReplicas(InfluxdbConfig.ReadBalancingStrategy.leastOutstanding, 0.5);
+        delaysInMs.put("a", 1L);
+        delaysInMs.put("b", 1L);
+        for (int i = 0; i < 50; i++) {
+            replicas.query(this::answer);
+        }
+        // one of the queries goes to b first and is hedged to a
+        delaysInMs.put("b", 5000L);
+        final long start = System.currentTimeMillis();
+        final List<String> answers = Arrays.asList(replicas.query(this::answer), replicas.query(this::answer));
+        assertThat(answers.contains("a"), is(true));
+        assertThat(System.currentTimeMillis() - start < 5000, is(true));
+        assertThat(replicas.getMetrics().meter("hedges").getCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void shouldFailOverToAnotherReplica() throws StorageException {
+        ReadReplicas<String> replicas = createReplicas(InfluxdbConfig.ReadBalancingStrategy.leastOutstanding, 0);
+        delaysInMs.put("a", -1L);
+        delaysInMs.put("b", 1L);
+        for (int i = 0; i < 4; i++) {
+            assertThat(replicas.query(this::answer), is("b"));
+        }
+        assertThat(replicas.getMetrics().meter("failovers").getCount(), greaterThan(0L));
+    }
+
+    @Test(expected = StorageException.class)
+    public void shouldFailIfAllReplicasFail() throws StorageException {
+        ReadReplicas<String> replicas = createReplicas(InfluxdbConfig.ReadBalancingStrategy.ewma, 0);
+        delaysInMs.put("a", -1L);
+        delaysInMs.put("b", -1L);
+        replicas.query(this::answer);
+    }
+
+    private ReadReplicas<String> createReplicas(final InfluxdbConfig.ReadBalancingStrategy strategy, final double hedgePercentile) {
+        return new ReadReplicas<>(Arrays.asList("a", "b"), Arrays.asList("a", "b"), strategy, hedgePercentile, 5, 1000, scheduler);
+    }
+
+    /** Answers with the name of the replica after its delay, fails for a negative delay. */
+    private void answer(final String replica, final CompletableFuture<String> attempt) {
+        final long delay = delaysInMs.get(replica);
+        if (delay < 0) {
+            scheduler.execute(() -> attempt.completeExceptionally(new IOException("down")));
+        } else {
+            scheduler.schedule(() -> attempt.complete(replica), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
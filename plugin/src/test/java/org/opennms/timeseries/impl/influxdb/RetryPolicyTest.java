@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.time.Instant;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+
+    @Test
+    public void shouldClassifyFailures() {
+        assertThat(policy.isRetryable(new IOException("connection refused")), is(true));
+        assertThat(policy.isRetryable(new InfluxdbHttpException(503, "unavailable")), is(true));
+        assertThat(policy.isRetryable(new InfluxdbHttpException(429, "too many requests")), is(true));
+        assertThat(policy.isRetryable(new InfluxdbHttpException(400, "bad line protocol")), is(false));
+        assertThat(policy.isRetryable(new InfluxdbHttpException(401, "unauthorized")), is(false));
+        assertThat(policy.isRetryable(new IllegalStateException("bulkhead full")), is(false));
+
+        assertThat(policy.shouldRetry(2, new IOException()), is(true));
+        assertThat(policy.shouldRetry(3, new IOException()), is(false));
+    }
+
+    @Test
+    public void shouldBackoffExponentially() {
+        assertThat(policy.getBackoffInMs(1), is(100L));
+        assertThat(policy.getBackoffInMs(2), is(200L));
+        assertThat(policy.getBackoffInMs(4), is(800L));
+        assertThat(policy.getBackoffInMs(5), is(1000L));
+        assertThat(policy.getBackoffInMs(100), is(1000L));
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.getDelayInMs(2, new IOException()), allOf(greaterThanOrEqualTo(100L), lessThanOrEqualTo(200L)));
+        }
+    }
+
+    @Test
+    public void shouldHonorRetryAfter() {
+        assertThat(policy.getDelayInMs(1, new InfluxdbHttpException(429, 5000, "slow down")), is(5000L));
+        assertThat(policy.getDelayInMs(1, new InfluxdbHttpException(503, 1, "unavailable")), allOf(greaterThanOrEqualTo(50L), lessThanOrEqualTo(100L)));
+    }
+
+    @Test
+    public void shouldParseRetryAfter() {
+        Instant now = Instant.parse("2021-10-21T07:28:00Z");
+        assertThat(InfluxdbHttpException.parseRetryAfter("120", now), is(120_000L));
+        assertThat(InfluxdbHttpException.parseRetryAfter("Thu, 21 Oct 2021 07:28:30 GMT", now), is(30_000L));
+        assertThat(InfluxdbHttpException.parseRetryAfter("Thu, 21 Oct 2021 07:27:30 GMT", now), is(0L));
+        assertThat(InfluxdbHttpException.parseRetryAfter(null, now), is(-1L));
+        assertThat(InfluxdbHttpException.parseRetryAfter("soon", now), is(-1L));
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class SeriesCollectorTest {
+
+    private final MetricFactory metricFactory = new MetricFactory(0);
+
+    /** The series of the records, "os" is a meta tag stored as a field. */
+    private final Metric cpu = ImmutableMetric.builder()
+            .intrinsicTag("resourceId", "a")
+            .intrinsicTag("name", "cpu")
+            .metaTag("os", "linux")
+            .build();
+    private final Metric mem = ImmutableMetric.builder()
+            .intrinsicTag("resourceId", "a")
+            .intrinsicTag("name", "mem")
+            .metaTag("os", "linux")
+            .build();
+
+    @Test
+    public void shouldRestoreTheFieldsWithTheMetadataStrategy() {
+        // first() returns a record per field of each series with its value
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (String name : new String[]{"cpu", "mem"}) {
+            records.add(record(name, "value", 42.0));
+            records.add(record(name, "meta_os", "linux"));
+        }
+        assertThat(collect(true, records), containsInAnyOrder(cpu, mem));
+    }
+
+    @Test
+    public void shouldIgnoreTheFieldsWithTheDistinctStrategy() {
+        // distinct() replaces the value by the measurement, a field table that slipped through must not become a tag
+        List<Map<String, Object>> records = new ArrayList<>();
+        for (String name : new String[]{"cpu", "mem"}) {
+            records.add(record(name, "value", name));
+            records.add(record(name, "meta_os", name));
+        }
+        Set<Metric> metrics = collect(false, records);
+        assertThat(metrics, containsInAnyOrder(withoutFields(cpu), withoutFields(mem)));
+        for (Metric metric : metrics) {
+            assertThat(metric.getMetaTags(), empty());
+        }
+    }
+
+    @Test
+    public void shouldIgnoreForeignRecords() {
+        Map<String, Object> foreign = record("cpu", "value", 1.0);
+        foreign.remove("intrinsic_resourceId");
+        assertThat(collect(true, List.of(foreign, record("mem", "meta_os", "linux"))), containsInAnyOrder(mem));
+    }
+
+    private Set<Metric> collect(boolean mergeFields, List<Map<String, Object>> records) {
+        Set<Metric> metrics = new LinkedHashSet<>();
+        SeriesCollector collector = new SeriesCollector(mergeFields, metricFactory::createMetric, metrics::add);
+        records.forEach(collector::add);
+        collector.finish();
+        return metrics;
+    }
+
+    private static Map<String, Object> record(String name, String field, Object value) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("_measurement", name);
+        record.put("_field", field);
+        record.put("_value", value);
+        record.put("intrinsic_resourceId", "a");
+        record.put("intrinsic_name", name);
+        return record;
+    }
+
+    private static Metric withoutFields(Metric metric) {
+        ImmutableMetric.MetricBuilder builder = ImmutableMetric.builder();
+        metric.getIntrinsicTags().forEach(builder::intrinsicTag);
+        return builder.build();
+    }
+}
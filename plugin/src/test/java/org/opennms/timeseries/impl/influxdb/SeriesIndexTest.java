@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.opennms.integration.api.v1.timeseries.TagMatcher.Type.EQUALS;
+import static org.opennms.integration.api.v1.timeseries.TagMatcher.Type.EQUALS_REGEX;
+import static org.opennms.integration.api.v1.timeseries.TagMatcher.Type.NOT_EQUALS;
+import static org.opennms.integration.api.v1.timeseries.TagMatcher.Type.NOT_EQUALS_REGEX;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+public class SeriesIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Metric cpuA = createMetric("a", "cpu", "linux");
+    private final Metric memA = createMetric("a", "mem", "linux");
+    private final Metric cpuB = createMetric("b", "cpu", "windows");
+    private final Metric ifB = ImmutableMetric.builder()
+            .intrinsicTag(IntrinsicTagNames.resourceId, "b")
+            .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+            .build();
+
+    private SeriesIndex index;
+
+    @Before
+    public void setUp() {
+        index = new SeriesIndex();
+        for (Metric metric : Arrays.asList(cpuA, memA, cpuB, ifB, cpuA)) {
+            index.add(metric);
+        }
+    }
+
+    @Test
+    public void shouldMatchAllTypes() {
+        assertThat(find(matcher(EQUALS, IntrinsicTagNames.name, "cpu")), containsInAnyOrder(cpuA, cpuB));
+        assertThat(find(matcher(NOT_EQUALS, IntrinsicTagNames.name, "cpu")), containsInAnyOrder(memA, ifB));
+        assertThat(find(matcher(EQUALS_REGEX, IntrinsicTagNames.name, "^(cpu|mem)$")), containsInAnyOrder(cpuA, memA, cpuB));
+        assertThat(find(matcher(NOT_EQUALS_REGEX, IntrinsicTagNames.name, "c")), containsInAnyOrder(memA));
+        assertThat(find(matcher(EQUALS, "unknown", "cpu")), empty());
+    }
+
+    @Test
+    public void shouldMatchMetaTagsAndCombineMatchers() {
+        // "os" is a meta tag, ifB doesn't carry it at all
+        assertThat(find(matcher(NOT_EQUALS, "os", "windows")), containsInAnyOrder(cpuA, memA));
+        assertThat(find(matcher(EQUALS, IntrinsicTagNames.resourceId, "b"), matcher(EQUALS, IntrinsicTagNames.name, "cpu")), containsInAnyOrder(cpuB));
+        assertThat(find(matcher(EQUALS, IntrinsicTagNames.resourceId, "a"), matcher(EQUALS, "os", "windows")), empty());
+    }
+
+    @Test
+    public void shouldRequireAllTagsOfTheKeyForNegativeMatchers() {
+        // "os" is an intrinsic and a meta tag of the same series, as with the query both need to differ from the value
+        Metric mixed = ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "c")
+                .intrinsicTag(IntrinsicTagNames.name, "cpu")
+                .intrinsicTag("os", "linux")
+                .metaTag("os", "windows")
+                .build();
+        index.add(mixed);
+        assertThat(find(matcher(NOT_EQUALS, "os", "windows")), containsInAnyOrder(cpuA, memA));
+        assertThat(find(matcher(NOT_EQUALS, "os", "linux")), containsInAnyOrder(cpuB));
+        assertThat(find(matcher(NOT_EQUALS_REGEX, "os", "^win")), containsInAnyOrder(cpuA, memA));
+        assertThat(find(matcher(EQUALS, "os", "windows")), containsInAnyOrder(cpuB, mixed));
+        assertThat(find(matcher(EQUALS_REGEX, "os", "linux")), containsInAnyOrder(cpuA, memA, mixed));
+    }
+
+    @Test
+    public void shouldSubtractSortedSets() {
+        assertThat(SeriesIndex.subtract(new int[]{1, 3, 5, 7}, new int[]{2, 3, 4, 7, 8}), is(new int[]{1, 5}));
+        assertThat(SeriesIndex.subtract(new int[]{1}, new int[0]), is(new int[]{1}));
+    }
+
+    @Test
+    public void shouldRemoveSeries() {
+        index.remove(cpuA);
+        assertThat(find(matcher(EQUALS, IntrinsicTagNames.name, "cpu")), containsInAnyOrder(cpuB));
+        assertThat(index.size(), is(3));
+        index.add(cpuA);
+        assertThat(find(matcher(EQUALS, IntrinsicTagNames.name, "cpu")), containsInAnyOrder(cpuA, cpuB));
+    }
+
+    @Test
+    public void shouldSaveAndLoad() throws IOException {
+        index.remove(memA);
+        Path file = folder.getRoot().toPath().resolve("series.index");
+        index.save(file);
+        assertThat(index.isDirty(), is(false));
+
+        SeriesIndex loaded = new SeriesIndex();
+        assertThat(loaded.isReady(), is(false));
+        loaded.load(file);
+        assertThat(loaded.isReady(), is(true));
+        assertThat(loaded.size(), is(3));
+        assertThat(loaded.find(Collections.singletonList(matcher(EQUALS_REGEX, IntrinsicTagNames.resourceId, ".*"))),
+                containsInAnyOrder(cpuA, cpuB, ifB));
+    }
+
+    @Test
+    public void shouldIntersectSortedSets() {
+        assertThat(SeriesIndex.intersect(new int[]{1, 3, 5, 7}, new int[]{2, 3, 4, 7, 8}), is(new int[]{3, 7}));
+        assertThat(SeriesIndex.intersect(new int[]{1}, new int[0]), is(new int[0]));
+    }
+
+    private List<Metric> find(TagMatcher... matchers) {
+        return index.find(Arrays.asList(matchers));
+    }
+
+    private static Metric createMetric(String resourceId, String name, String os) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .metaTag("os", os)
+                .build();
+    }
+
+    private static TagMatcher matcher(TagMatcher.Type type, String key, String value) {
+        return new TagMatcher() {
+            @Override
+            public Type getType() {
+                return type;
+            }
+
+            @Override
+            public String getKey() {
+                return key;
+            }
+
+            @Override
+            public String getValue() {
+                return value;
+            }
+        };
+    }
+}
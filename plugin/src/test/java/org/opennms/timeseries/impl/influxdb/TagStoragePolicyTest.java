@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+
+public class TagStoragePolicyTest {
+
+    @Test
+    public void shouldStoreAllTagsAsTagsByDefault() {
+        TagStoragePolicy policy = TagStoragePolicy.parse("");
+        assertThat(policy.isAllTags(), is(true));
+        assertThat(policy.hasFields(), is(false));
+        assertThat(policy.getStorage(Metric.TagType.external, "any"), is(TagStoragePolicy.Storage.tag));
+    }
+
+    @Test
+    public void shouldPreferKeyOverType() {
+        TagStoragePolicy policy = TagStoragePolicy.parse(" external = field, external_owner=tag ,meta_ifAlias=drop");
+        assertThat(policy.isAllTags(), is(false));
+        assertThat(policy.hasFields(), is(true));
+        assertThat(policy.getStorage(Metric.TagType.external, "vendor"), is(TagStoragePolicy.Storage.field));
+        assertThat(policy.getStorage(Metric.TagType.external, "owner"), is(TagStoragePolicy.Storage.tag));
+        assertThat(policy.getStorage(Metric.TagType.meta, "ifAlias"), is(TagStoragePolicy.Storage.drop));
+        assertThat(policy.getStorage(Metric.TagType.meta, "mtype"), is(TagStoragePolicy.Storage.tag));
+        assertThat(policy.getStorage(Metric.TagType.intrinsic, "resourceId"), is(TagStoragePolicy.Storage.tag));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectIntrinsicTags() {
+        TagStoragePolicy.parse("intrinsic_resourceId=field");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownStorage() {
+        TagStoragePolicy.parse("external=index");
+    }
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+
+public class TimeseriesCacheTest {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private final AtomicLong now = new AtomicLong(100 * HOUR + 30 * MINUTE);
+    private final List<long[]> fetches = new ArrayList<>();
+
+    @Test
+    public void shouldOnlyFetchTheTail() throws StorageException {
+        TimeseriesCache cache = new TimeseriesCache(1024 * 1024, HOUR, 5 * MINUTE, 0, now::get);
+        TimeSeriesFetchRequest request = request("a", now.get() - 24 * HOUR, now.get());
+
+        assertThat(cache.get(request, 0, this::fetch), equalTo(expected(request)));
+        // one query for the 24 complete chunks, one for the most recent samples
+        assertThat(fetches, hasSize(2));
+        assertThat(fetches.get(0)[1] - fetches.get(0)[0], is(24 * HOUR));
+
+        fetches.clear();
+        assertThat(cache.get(request, 0, this::fetch), equalTo(expected(request)));
+        assertThat(fetches, hasSize(1));
+        assertThat(fetches.get(0)[0], is(100 * HOUR));
+
+        // an hour later the chunk of hour 100 is complete and fetched once
+        fetches.clear();
+        now.addAndGet(HOUR);
+        request = request("a", now.get() - 24 * HOUR, now.get());
+        assertThat(cache.get(request, 0, this::fetch), equalTo(expected(request)));
+        assertThat(fetches, hasSize(2));
+        assertThat(fetches.get(0)[0], is(100 * HOUR));
+        assertThat(fetches.get(0)[1], is(101 * HOUR));
+
+        assertThat(((Counter) cache.getMetrics().getMetrics().get("readCacheHits")).getCount(), is(47L));
+        assertThat(((Counter) cache.getMetrics().getMetrics().get("readCacheMisses")).getCount(), is(25L));
+    }
+
+    @Test
+    public void shouldAlignChunksToTheStep() throws StorageException {
+        TimeseriesCache cache = new TimeseriesCache(1024 * 1024, HOUR, 5 * MINUTE, 0, now::get);
+        long step = 7 * MINUTE;
+        TimeSeriesFetchRequest request = request("a", now.get() - 24 * HOUR, now.get());
+
+        List<Sample> samples = cache.get(request, step, (start, stop) -> {
+            // every chunk starts with a window
+            assertThat(start.toEpochMilli() % step, is(0L));
+            return Collections.singletonList(downsampled(request.getMetric(), start.toEpochMilli(), stop.toEpochMilli(), step));
+        });
+        // only the last window is cut off by the end of the range
+        for (Sample sample : samples.subList(0, samples.size() - 1)) {
+            assertThat(sample.getTime().toEpochMilli() % step, is(0L));
+        }
+        assertThat(samples.get(samples.size() - 1).getTime(), equalTo(request.getEnd()));
+        assertThat(samples.get(0).getTime().toEpochMilli(), is(request.getStart().toEpochMilli() - request.getStart().toEpochMilli() % step + step));
+    }
+
+    @Test
+    public void shouldBoundTheMemory() throws StorageException {
+        TimeseriesCache cache = new TimeseriesCache(256 * 1024, HOUR, 5 * MINUTE, 0, now::get);
+        for (int i = 0; i < 100; i++) {
+            TimeSeriesFetchRequest request = request("resource" + i, now.get() - 24 * HOUR, now.get());
+            assertThat(cache.get(request, 0, this::fetch), equalTo(expected(request)));
+        }
+        @SuppressWarnings("unchecked")
+        Gauge<Long> size = (Gauge<Long>) cache.getMetrics().getMetrics().get("readCacheSizeInBytes");
+        assertThat(size.getValue(), lessThanOrEqualTo(256 * 1024L));
+    }
+
+    @Test
+    public void shouldEvictConcurrently() throws Exception {
+        // every get evicts the series other threads are reading, the removal listener must not lock their entries
+        TimeseriesCache cache = new TimeseriesCache(64 * 1024, HOUR, 5 * MINUTE, 0, now::get);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        TimeSeriesFetchRequest request = request("resource" + (thread + i) % 10, now.get() - 24 * HOUR, now.get());
+                        assertThat(cache.get(request, 0, TimeseriesCacheTest::generate), hasSize(24 * 60));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        @SuppressWarnings("unchecked")
+        Gauge<Long> size = (Gauge<Long>) cache.getMetrics().getMetrics().get("readCacheSizeInBytes");
+        assertThat(size.getValue(), lessThanOrEqualTo(64 * 1024L));
+        assertThat(size.getValue(), greaterThanOrEqualTo(0L));
+    }
+
+    @Test
+    public void shouldExpireTheSeriesAfterTheTimeToLive() throws StorageException {
+        TimeseriesCache cache = new TimeseriesCache(1024 * 1024, HOUR, 5 * MINUTE, 10 * MINUTE, now::get);
+        TimeSeriesFetchRequest request = request("a", now.get() - 24 * HOUR, now.get() - 2 * HOUR);
+        cache.get(request, 0, this::fetch);
+        long[] first = fetches.get(0);
+
+        fetches.clear();
+        now.addAndGet(9 * MINUTE);
+        assertThat(cache.get(request, 0, this::fetch), equalTo(expected(request)));
+        assertThat(fetches, hasSize(0));
+
+        now.addAndGet(MINUTE);
+        assertThat(cache.get(request, 0, this::fetch), equalTo(expected(request)));
+        assertThat(fetches, hasSize(1));
+        assertThat(fetches.get(0), equalTo(first));
+    }
+
+    @Test
+    public void shouldDropTheSeriesWhenLateSamplesAreStored() throws StorageException {
+        TimeseriesCache cache = new TimeseriesCache(1024 * 1024, HOUR, 5 * MINUTE, 0, now::get);
+        TimeSeriesFetchRequest request = request("a", now.get() - 24 * HOUR, now.get() - 2 * HOUR);
+        cache.get(request, 0, this::fetch);
+        cache.get(request, 7 * MINUTE, (start, stop) -> Collections.emptyList());
+
+        fetches.clear();
+        cache.invalidateLateSamples(Collections.singletonList(sample("a", now.get())));
+        cache.invalidateLateSamples(Collections.singletonList(sample("b", now.get() - HOUR)));
+        cache.get(request, 0, this::fetch);
+        assertThat(fetches, hasSize(0));
+
+        cache.invalidateLateSamples(Collections.singletonList(sample("a", now.get() - HOUR)));
+        cache.get(request, 0, this::fetch);
+        assertThat(fetches, hasSize(1));
+        // the downsampled results of the series were dropped as well
+        cache.get(request, 7 * MINUTE, this::fetch);
+        assertThat(fetches, hasSize(2));
+    }
+
+    /** One raw sample per minute. */
+    private List<SeriesSamples> fetch(Instant start, Instant stop) {
+        fetches.add(new long[]{start.toEpochMilli(), stop.toEpochMilli()});
+        SeriesSamples series = new SeriesSamples(metric("a"));
+        for (long time = ceil(start.toEpochMilli(), MINUTE); time < stop.toEpochMilli(); time += MINUTE) {
+            series.add(time, time / MINUTE);
+        }
+        return Collections.singletonList(series);
+    }
+
+    /** Like fetch(), but without recording the fetch, it's called concurrently. */
+    private static List<SeriesSamples> generate(Instant start, Instant stop) {
+        SeriesSamples series = new SeriesSamples(metric("a"));
+        for (long time = ceil(start.toEpochMilli(), MINUTE); time < stop.toEpochMilli(); time += MINUTE) {
+            series.add(time, time / MINUTE);
+        }
+        return Collections.singletonList(series);
+    }
+
+    private List<Sample> expected(TimeSeriesFetchRequest request) {
+        List<Sample> samples = new ArrayList<>();
+        for (SeriesSamples series : fetch(request.getStart(), request.getEnd())) {
+            series.addTo(samples);
+        }
+        fetches.remove(fetches.size() - 1);
+        return samples;
+    }
+
+    private static SeriesSamples downsampled(Metric metric, long start, long stop, long step) {
+        SeriesSamples series = new SeriesSamples(metric);
+        for (long window = start; window < stop; window += step) {
+            series.add(Math.min(window + step, stop), window);
+        }
+        return series;
+    }
+
+    private static long ceil(long value, long unit) {
+        return (value + unit - 1) / unit * unit;
+    }
+
+    private static Sample sample(String resourceId, long time) {
+        return ImmutableSample.builder()
+                .metric(metric(resourceId))
+                .time(Instant.ofEpochMilli(time))
+                .value(1.0)
+                .build();
+    }
+
+    private static Metric metric(String resourceId) {
+        return ImmutableMetric.builder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .intrinsicTag(IntrinsicTagNames.name, "cpu")
+                .build();
+    }
+
+    private static TimeSeriesFetchRequest request(String resourceId, long start, long end) {
+        return new TimeSeriesFetchRequest() {
+            @Override
+            public Metric getMetric() {
+                return metric(resourceId);
+            }
+
+            @Override
+            public Instant getStart() {
+                return Instant.ofEpochMilli(start);
+            }
+
+            @Override
+            public Instant getEnd() {
+                return Instant.ofEpochMilli(end);
+            }
+
+            @Override
+            public Duration getStep() {
+                return Duration.ofMinutes(7);
+            }
+
+            @Override
+            public Aggregation getAggregation() {
+                return Aggregation.AVERAGE;
+            }
+        };
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+import com.influxdb.Cancellable;
+
+public class TimeseriesCsvParserTest {
+
+    @Test
+    public void shouldParseTables() throws StorageException {
+        List<SeriesSamples> result = parse(
+                ",result,table,_time,_value,intrinsic_name,intrinsic_resourceId,meta_description\r",
+                ",_result,0,2021-01-01T00:00:00Z,1,cpu,a,\"quoted, \"\"text\"\"\"\r",
+                ",_result,0,2021-01-01T00:05:00.5Z,2.5,cpu,a,\"quoted, \"\"text\"\"\"\r",
+                ",_result,0,2021-01-01T00:10:00Z,,cpu,a,\"quoted, \"\"text\"\"\"\r",
+                ",_result,1,2021-01-01T00:00:00.123456789Z,-0.001,cpu,b,\r",
+                "\r",
+                ",result,table,_time,_value,intrinsic_name,intrinsic_resourceId\r",
+                ",_result,2,1999-12-31T23:59:59Z,1e300,mem,c\r");
+
+        assertThat(result, hasSize(3));
+        SeriesSamples first = result.get(0);
+        assertThat(first.getMetric().getFirstTagByKey("resourceId").getValue(), equalTo("a"));
+        assertThat(first.getMetric().getFirstTagByKey("description").getValue(), equalTo("quoted, \"text\""));
+        assertThat(first.size(), is(2));
+        assertThat(first.getTime(1), is(Instant.parse("2021-01-01T00:05:00.500Z").toEpochMilli()));
+        assertThat(first.getValue(1), is(2.5));
+
+        SeriesSamples second = result.get(1);
+        assertThat(second.getMetric().getMetaTags(), hasSize(0));
+        assertThat(second.getTime(0), is(Instant.parse("2021-01-01T00:00:00.123Z").toEpochMilli()));
+        assertThat(second.getValue(0), is(-0.001));
+
+        SeriesSamples third = result.get(2);
+        assertThat(third.getMetric().getFirstTagByKey("name").getValue(), equalTo("mem"));
+        assertThat(third.getTime(0), is(Instant.parse("1999-12-31T23:59:59Z").toEpochMilli()));
+        assertThat(third.getValue(0), is(1e300));
+    }
+
+    @Test(expected = StorageException.class)
+    public void shouldReportErrors() throws StorageException {
+        parse(",error,reference", ",failed to execute query,");
+    }
+
+    @Test
+    public void shouldParseDoublesLikeTheJdk() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            String s = Double.toString(random.nextDouble() * Math.pow(10, random.nextInt(20) - 10));
+            if (random.nextBoolean()) {
+                s = new BigDecimal(s).toPlainString();
+            }
+            assertThat(s, TimeseriesCsvParser.parseDouble(s, 0, s.length()), is(Double.parseDouble(s)));
+            String rounded = Long.toString(random.nextInt(100000)) + "." + random.nextInt(1000);
+            assertThat(rounded, TimeseriesCsvParser.parseDouble(rounded, 0, rounded.length()), is(Double.parseDouble(rounded)));
+        }
+    }
+
+    @Test
+    public void shouldParseTimesLikeTheJdk() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            Instant instant = Instant.ofEpochMilli(random.nextLong() % 4_000_000_000_000L);
+            String s = instant.toString();
+            assertThat(s, TimeseriesCsvParser.parseTime(s, 0, s.length()), is(instant.toEpochMilli()));
+        }
+    }
+
+    private static List<SeriesSamples> parse(String... lines) throws StorageException {
+        List<SeriesSamples> result = new ArrayList<>();
+        TimeseriesCsvParser parser = new TimeseriesCsvParser(TimeseriesCsvParserTest::createMetric, result::add);
+        Cancellable cancellable = new Cancellable() {
+            private boolean cancelled;
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled;
+            }
+        };
+        for (String line : lines) {
+            parser.accept(cancellable, line);
+        }
+        parser.finish();
+        return result;
+    }
+
+    private static Metric createMetric(Map<String, Object> tags) {
+        ImmutableMetric.MetricBuilder metric = ImmutableMetric.builder();
+        tags.forEach((key, value) -> {
+            if (key.startsWith("intrinsic_")) {
+                metric.intrinsicTag(key.substring("intrinsic_".length()), value.toString());
+            } else if (key.startsWith("meta_")) {
+                metric.metaTag(key.substring("meta_".length()), value.toString());
+            }
+        });
+        return metric.build();
+    }
+}
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+public class WriteCoalescerTest {
+
+    private final List<List<Sample>> batches = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void shouldMergeIntoBatchesOfMaxSamples() {
+        WriteCoalescer coalescer = new WriteCoalescer(100, Long.MAX_VALUE, TimeUnit.HOURS.toMillis(1), 1, (batch, completions) -> batches.add(batch));
+        for (int i = 0; i < 25; i++) {
+            coalescer.add(createSamples(10));
+        }
+        assertThat(batches.size(), is(2));
+        assertThat(batches.get(0).size(), is(100));
+        coalescer.close();
+        assertThat(batches.size(), is(3));
+        assertThat(batches.get(2).size(), is(50));
+    }
+
+    @Test
+    public void shouldLimitBatchesBySize() {
+        final int sampleSize = LineProtocolEncoder.estimateSize(createSamples(1).get(0));
+        WriteCoalescer coalescer = new WriteCoalescer(1000, sampleSize * 10L, TimeUnit.HOURS.toMillis(1), 1, (batch, completions) -> batches.add(batch));
+        coalescer.add(createSamples(95));
+        coalescer.close();
+        assertThat(batches.size(), is(10));
+        assertThat(batches.stream().map(List::size).collect(Collectors.toList()), everyItem(lessThanOrEqualTo(10)));
+    }
+
+    @Test
+    public void shouldFlushAfterLinger() throws InterruptedException {
+        WriteCoalescer coalescer = new WriteCoalescer(1000, Long.MAX_VALUE, 20, 4, (batch, completions) -> batches.add(batch));
+        coalescer.add(createSamples(5));
+        long timeout = System.currentTimeMillis() + 5000;
+        while (batches.isEmpty() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertThat(batches.size(), is(1));
+        assertThat(batches.get(0).size(), is(5));
+        coalescer.close();
+    }
+
+    @Test
+    public void shouldNotLoseSamplesWithConcurrentWriters() throws InterruptedException {
+        WriteCoalescer coalescer = new WriteCoalescer(64, Long.MAX_VALUE, 5, 3, (batch, completions) -> batches.add(batch));
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    coalescer.add(createSamples(3));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        coalescer.close();
+        assertThat(batches.stream().mapToInt(List::size).sum(), is(8 * 500 * 3));
+    }
+
+    @Test
+    public void shouldNotLeaveSamplesBehindWhenClosedConcurrently() throws InterruptedException {
+        WriteCoalescer coalescer = new WriteCoalescer(64, Long.MAX_VALUE, TimeUnit.HOURS.toMillis(1), 3, (batch, completions) -> batches.add(batch));
+        AtomicInteger added = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        coalescer.add(createSamples(3));
+                        added.addAndGet(3);
+                    }
+                } catch (IllegalStateException e) {
+                    // closed
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(50);
+        coalescer.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(batches.stream().mapToInt(List::size).sum(), is(added.get()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectAddsAfterClose() {
+        WriteCoalescer coalescer = new WriteCoalescer(100, Long.MAX_VALUE, TimeUnit.HOURS.toMillis(1), 1, (batch, completions) -> batches.add(batch));
+        coalescer.close();
+        coalescer.add(createSamples(1));
+    }
+
+    @Test
+    public void shouldCompleteWritesOnceAllTheirBatchesCompleted() {
+        List<List<WriteCompletion>> completionsOfBatches = new ArrayList<>();
+        WriteCoalescer coalescer = new WriteCoalescer(10, Long.MAX_VALUE, TimeUnit.HOURS.toMillis(1), 1, (batch, completions) -> completionsOfBatches.add(completions));
+        WriteCompletion first = new WriteCompletion();
+        coalescer.add(createSamples(15), first);
+        first.release(null);
+        WriteCompletion second = new WriteCompletion();
+        coalescer.add(createSamples(3), second);
+        second.release(null);
+        coalescer.close();
+
+        assertThat(completionsOfBatches.size(), is(2));
+        assertThat(completionsOfBatches.get(0), contains(first));
+        assertThat(completionsOfBatches.get(1), contains(first, second));
+
+        completionsOfBatches.get(0).forEach(c -> c.release(null));
+        assertThat(first.getCompletionStage().toCompletableFuture().isDone(), is(false));
+        completionsOfBatches.get(1).forEach(c -> c.release(new IOException("lost")));
+        assertThat(first.getCompletionStage().toCompletableFuture().isCompletedExceptionally(), is(true));
+        assertThat(second.getCompletionStage().toCompletableFuture().isCompletedExceptionally(), is(true));
+    }
+
+    private static List<Sample> createSamples(int count) {
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(ImmutableMetric.builder()
+                            .intrinsicTag(IntrinsicTagNames.name, "metric")
+                            .intrinsicTag(IntrinsicTagNames.resourceId, "snmp:1:eth0")
+                            .build())
+                    .time(Instant.now())
+                    .value(1.0)
+                    .build());
+        }
+        return Collections.unmodifiableList(samples);
+    }
+}
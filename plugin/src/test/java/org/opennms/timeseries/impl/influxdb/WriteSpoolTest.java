@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2006-2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.influxdb;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteSpoolTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldReplayInOrder() throws IOException {
+        WriteSpool spool = createSpool(folder.getRoot().toPath(), 10 * SEGMENT_SIZE, InfluxdbConfig.SpoolEvictionPolicy.dropOldest);
+        for (int i = 0; i < 50; i++) {
+            assertThat(spool.append(createContent("batch" + i, 2)), is(true));
+        }
+        assertThat(spool.getPendingBatches(), is(50L));
+        assertThat(spool.getPendingSamples(), is(100L));
+
+        for (int i = 0; i < 50; i++) {
+            WriteSpool.SpooledBatch batch = spool.peek();
+            assertThat(new String(batch.getContent(), StandardCharsets.UTF_8), equalTo(content("batch" + i, 2)));
+            assertThat(batch.getLines(), is(2));
+            spool.commit(batch);
+        }
+        assertThat(spool.peek(), nullValue());
+        assertThat(spool.getPendingBatches(), is(0L));
+        assertThat(spool.getPendingSamples(), is(0L));
+        // only the tail segment is left
+        assertThat(spool.getSizeInBytes(), is((long) SEGMENT_SIZE));
+    }
+
+    @Test
+    public void shouldRecoverAfterRestart() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        WriteSpool spool = createSpool(directory, 10 * SEGMENT_SIZE, InfluxdbConfig.SpoolEvictionPolicy.dropOldest);
+        for (int i = 0; i < 20; i++) {
+            spool.append(createContent("batch" + i, 1));
+        }
+        for (int i = 0; i < 5; i++) {
+            spool.commit(spool.peek());
+        }
+        spool.close();
+
+        spool = createSpool(directory, 10 * SEGMENT_SIZE, InfluxdbConfig.SpoolEvictionPolicy.dropOldest);
+        assertThat(spool.getPendingBatches(), is(15L));
+        assertThat(new String(spool.peek().getContent(), StandardCharsets.UTF_8), equalTo(content("batch5", 1)));
+
+        spool.append(createContent("afterRestart", 1));
+        assertThat(spool.getPendingBatches(), is(16L));
+    }
+
+    @Test
+    public void shouldEvictOldestWhenFull() throws IOException {
+        WriteSpool spool = createSpool(folder.getRoot().toPath(), 2 * SEGMENT_SIZE, InfluxdbConfig.SpoolEvictionPolicy.dropOldest);
+        for (int i = 0; i < 100; i++) {
+            assertThat(spool.append(createContent("batch" + i, 1)), is(true));
+        }
+        assertThat(spool.getSizeInBytes(), is(2L * SEGMENT_SIZE));
+        assertThat(spool.getEvictedSamples() + spool.getPendingSamples(), is(100L));
+        assertThat(new String(spool.peek().getContent(), StandardCharsets.UTF_8).startsWith("batch"), is(true));
+    }
+
+    @Test
+    public void shouldRejectNewestWhenFull() throws IOException {
+        WriteSpool spool = createSpool(folder.getRoot().toPath(), SEGMENT_SIZE, InfluxdbConfig.SpoolEvictionPolicy.dropNewest);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (spool.append(createContent("batch" + i, 1))) {
+                accepted++;
+            }
+        }
+        assertThat(spool.getPendingBatches(), is((long) accepted));
+        assertThat(new String(spool.peek().getContent(), StandardCharsets.UTF_8), equalTo(content("batch0", 1)));
+    }
+
+    @Test
+    public void shouldRejectBatchesLargerThanSegment() throws IOException {
+        WriteSpool spool = createSpool(folder.getRoot().toPath(), 10 * SEGMENT_SIZE, InfluxdbConfig.SpoolEvictionPolicy.dropOldest);
+        assertThat(spool.append(createContent("big", 200)), is(false));
+    }
+
+    private static WriteSpool createSpool(Path directory, long maxSize, InfluxdbConfig.SpoolEvictionPolicy policy) throws IOException {
+        return new WriteSpool(directory, SEGMENT_SIZE, maxSize, policy);
+    }
+
+    private static String line(String prefix, int i) {
+        return prefix + ",intrinsic_resourceId=r value=" + i + " 1000";
+    }
+
+    private static String content(String prefix, int lines) {
+        LineProtocolBuffer buffer = createContent(prefix, lines);
+        return buffer.toString();
+    }
+
+    private static LineProtocolBuffer createContent(String prefix, int lines) {
+        LineProtocolBuffer buffer = new LineProtocolBuffer(64);
+        for (int i = 0; i < lines; i++) {
+            buffer.startLine();
+            buffer.write(line(prefix, i).getBytes(StandardCharsets.UTF_8));
+            buffer.endLine();
+        }
+        return buffer;
+    }
+}